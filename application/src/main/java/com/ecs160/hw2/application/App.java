@@ -3,44 +3,89 @@ package com.ecs160.hw2.application;
 import com.ecs160.hw2.application.model.BugIssue;
 import com.ecs160.hw2.application.model.IssueModel;
 import com.ecs160.hw2.application.model.RepoModel;
+import com.ecs160.hw2.application.service.LlmScheduler;
+import com.ecs160.hw2.application.service.PromptCache;
+import com.ecs160.hw2.application.service.RetryBudget;
+import com.ecs160.hw2.microservice.Deadline;
+import com.ecs160.hw2.microservice.DiskCacheTier;
+import com.ecs160.hw2.microservice.LoadBalancer;
+import com.ecs160.hw2.microservice.MicroserviceClient;
 import com.ecs160.hw2.microservice.MicroserviceLauncher;
+import com.ecs160.hw2.microservice.Span;
+import com.ecs160.hw2.microservice.Tracer;
+import com.ecs160.hw2.microservice.WorkerProcess;
 import com.ecs160.hw2.persistence.RedisDB;
 import com.ecs160.hw2.application.microservice.BugFinderMicroservice;
 import com.ecs160.hw2.application.microservice.IssueComparatorMicroservice;
 import com.ecs160.hw2.application.microservice.IssueSummarizerMicroservice;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class App {
     private static final String SELECTED_REPO_FILE = "selected_repo.dat";
     private static final String ANALYSIS_FILE = "ANALYSIS.md";
     private static final int MICROSERVICE_PORT = 8080;
     private static final String MICROSERVICE_BASE_URL = "http://localhost:" + MICROSERVICE_PORT;
+    // "inprocess" calls the co-located microservices directly, "http" goes through the server
+    private static final String MICROSERVICE_TRANSPORT = System.getProperty("microservice.transport", "inprocess");
+    // Number of worker JVMs to run behind a local load balancer on the microservice port; 0 serves in this JVM
+    private static final int MICROSERVICE_WORKERS = Integer.getInteger("microservice.workers", 0);
+    // Comma-separated base urls of workers on other hosts to add to the load balancer
+    private static final String MICROSERVICE_BACKENDS = System.getProperty("microservice.backends", "");
+    private static final Duration WORKER_STARTUP_TIMEOUT = Duration.ofSeconds(60);
+    private static final Duration WORKER_STOP_TIMEOUT = Duration.ofSeconds(30);
+    // files per second each client may send to the bug finder, after a burst; 0, the default, is
+    // no limit. the app's own batch counts against it too, so it is for servers shared with others
+    private static final double BUG_FINDER_CLIENT_RATE = Double.parseDouble(System.getProperty("microservice.findBugs.clientRateLimit", "0"));
+    private static final int BUG_FINDER_BURST = Integer.getInteger("microservice.findBugs.rateLimitBurst", 50);
+    // the whole run must finish within this; microservice calls and llm requests still going
+    // when it passes fail instead of holding the pipeline up
+    private static final Duration PIPELINE_TIMEOUT = Duration.ofSeconds(Long.getLong("pipeline.timeout.seconds", 1800));
+    private static final String RESPONSE_CACHE_DIR = System.getProperty("microservice.cache.dir", ".cache/microservice-responses");
+    private static final long RESPONSE_CACHE_MAX_BYTES = 256L * 1024 * 1024;
+    // Where the spans of a run are written, and whether as plain json or as otlp json
+    private static final String TRACE_FILE = System.getProperty("trace.file", ".cache/traces/trace.json");
+    private static final String TRACE_FORMAT = System.getProperty("trace.format", "json");
     
     private RedisDB redisDB;
     private RedisDB issueRedisDB;
     private Gson gson;
     private MicroserviceLauncher launcher;
+    private MicroserviceClient client;
+    private LoadBalancer loadBalancer;
+    private List<WorkerProcess> workers = new ArrayList<>();
     
     public App() {
         this.redisDB = new RedisDB("localhost", 6379, 0);
         this.issueRedisDB = new RedisDB("localhost", 6379, 1);
         this.gson = new Gson();
         this.launcher = new MicroserviceLauncher();
+        // workers live in other processes, so they can only be reached over http
+        this.client = MicroserviceClient.forTransport(usesWorkers() ? "http" : MICROSERVICE_TRANSPORT, 
+            launcher, MICROSERVICE_BASE_URL);
     }
     
     public static void main(String[] args) {
+        // Worker mode only serves the microservices, on the given port
+        if (args.length > 1 && "--worker".equals(args[0])) {
+            runWorker(Integer.parseInt(args[1]));
+            return;
+        }
+        
         App app = new App();
         
         // Check for cleanup flag
@@ -53,11 +98,13 @@ public class App {
     }
     
     public void run() {
+        // root span of the run; every microservice call and llm request below is traced under it
+        Span pipeline = Tracer.startSpan("pipeline");
+        Deadline deadline = Deadline.start(PIPELINE_TIMEOUT);
         try {
             // start microservices
             System.out.println("Starting microservices...");
             startMicroservices();
-            Thread.sleep(2000);
             
             // load selected repo
             System.out.println("Loading selected repository...");
@@ -102,6 +149,11 @@ public class App {
             System.out.println("Issues from GitHub: " + issueList1.size());
             System.out.println("Bugs found by LLM: " + issueList2.size());
             System.out.println("Common issues: " + commonIssues.size());
+            if (!usesWorkers()) {
+                System.out.println("Prompt cache: " + PromptCache.shared().stats());
+                System.out.println("LLM scheduler: " + LlmScheduler.shared().stats());
+                System.out.println("LLM retry budget: " + RetryBudget.shared().stats());
+            }
             
             System.out.println("\nCommon Issues:");
             for (BugIssue issue : commonIssues) {
@@ -110,37 +162,125 @@ public class App {
             }
 
             generateAnalysis(repo, issueList1, issueList2, commonIssues);
-
-            launcher.stop();
             
         } catch (Exception e) {
+            pipeline.recordError(e);
             System.err.println("Error: " + e.getMessage());
             e.printStackTrace();
         } finally {
+            // also on early returns, so that worker processes are not left running
+            // closed first, so that shutting the workers down is not cut short by it
+            deadline.close();
+            stopMicroservices();
+            pipeline.close();
+            exportTrace();
             redisDB.close();
             issueRedisDB.close();
         }
     }
     
-    private void startMicroservices() throws Exception {
+    private static boolean usesWorkers() {
+        return MICROSERVICE_WORKERS > 0 || !MICROSERVICE_BACKENDS.isEmpty();
+    }
+    
+    private static void registerMicroservices(MicroserviceLauncher launcher) throws Exception {
         launcher.registerMicroservice(
             IssueSummarizerMicroservice.class,
             BugFinderMicroservice.class,
             IssueComparatorMicroservice.class
         );
-        
-        Thread serverThread = new Thread(() -> {
-            boolean started = launcher.launch(MICROSERVICE_PORT);
-            if (!started) {
-                System.err.println("Failed to start microservice server. " +
-                    "Port " + MICROSERVICE_PORT + " may already be in use.");
-                System.err.println("Please stop any existing server or kill the process using: " +
-                    "lsof -ti:" + MICROSERVICE_PORT + " | xargs kill");
+        if (BUG_FINDER_CLIENT_RATE > 0) {
+            launcher.setRateLimit("find_bugs", 0, BUG_FINDER_CLIENT_RATE, BUG_FINDER_BURST);
+            launcher.setRateLimit("find_bugs_stream", 0, BUG_FINDER_CLIENT_RATE, BUG_FINDER_BURST);
+        }
+        // persists llm responses so re-running on an unchanged repo skips the llm calls
+        launcher.setCacheTier(new DiskCacheTier(RESPONSE_CACHE_DIR, RESPONSE_CACHE_MAX_BYTES));
+        // llm queue depth and wait times are served on /metrics alongside the endpoint metrics
+        launcher.addMetricsSource(LlmScheduler.shared()::renderMetrics);
+    }
+    
+    private static void runWorker(int port) {
+        try {
+            MicroserviceLauncher worker = new MicroserviceLauncher();
+            registerMicroservices(worker);
+            // the server threads keep the worker alive until it is told to shut down
+            if (!worker.launch(port)) {
                 System.exit(1);
             }
-        });
-        serverThread.setDaemon(true);
-        serverThread.start();
+        } catch (Exception e) {
+            System.err.println("Worker on port " + port + " failed to start: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+    
+    private void startMicroservices() throws Exception {
+        if (usesWorkers()) {
+            startWorkers();
+            return;
+        }
+        registerMicroservices(launcher);
+        
+        // launch returns once the server is bound, so requests can be sent right away
+        boolean started = launcher.launch(MICROSERVICE_PORT);
+        if (!started) {
+            System.err.println("Failed to start microservice server. " +
+                "Port " + MICROSERVICE_PORT + " may already be in use.");
+            System.err.println("Please stop any existing server or kill the process using: " +
+                "lsof -ti:" + MICROSERVICE_PORT + " | xargs kill");
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Starts worker JVMs on the ports after the microservice port and a load balancer on the
+     * microservice port that spreads requests over them and any remote backends. Each worker has
+     * its own LLM scheduler and prompt cache, so the workers split Ollama's parallel slots between
+     * them (at least one each) and each keeps its prompt and response caches in subdirectories of
+     * its own, since neither cache can be written by several processes at once.
+     */
+    private void startWorkers() throws Exception {
+        loadBalancer = new LoadBalancer();
+        int numParallel = Math.max(1, LlmScheduler.configuredConcurrency() / MICROSERVICE_WORKERS);
+        for (int i = 1; i <= MICROSERVICE_WORKERS; i++) {
+            int port = MICROSERVICE_PORT + i;
+            Map<String, String> properties = new LinkedHashMap<>();
+            properties.put("ollama.numParallel", String.valueOf(numParallel));
+            properties.put("ollama.cache.dir", PromptCache.configuredDirectory().resolve("worker-" + i).toString());
+            properties.put("microservice.cache.dir", Paths.get(RESPONSE_CACHE_DIR).resolve("worker-" + i).toString());
+            WorkerProcess worker = WorkerProcess.spawn(App.class, port, properties, "--worker", String.valueOf(port));
+            workers.add(worker);
+            loadBalancer.addBackend(worker.getBaseUrl());
+        }
+        for (String backend : MICROSERVICE_BACKENDS.split(",")) {
+            if (!backend.trim().isEmpty()) {
+                loadBalancer.addBackend(backend.trim());
+            }
+        }
+        
+        loadBalancer.start(MICROSERVICE_PORT);
+        if (!loadBalancer.awaitHealthy(WORKER_STARTUP_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("No microservice worker became ready within " + WORKER_STARTUP_TIMEOUT);
+        }
+    }
+    
+    private void exportTrace() {
+        try {
+            Tracer.export(Paths.get(TRACE_FILE), TRACE_FORMAT, "hw2-app");
+            System.out.println("Trace written to " + TRACE_FILE);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error writing trace: " + e.getMessage());
+        }
+    }
+    
+    private void stopMicroservices() {
+        if (loadBalancer == null) {
+            launcher.stop();
+            return;
+        }
+        loadBalancer.stop();
+        for (WorkerProcess worker : workers) {
+            worker.stop(WORKER_STOP_TIMEOUT);
+        }
     }
     
     private String loadSelectedRepo() {
@@ -298,23 +438,27 @@ public class App {
     private List<BugIssue> summarizeIssues(List<IssueModel> issues) throws IOException {
         List<BugIssue> summarizedIssues = new ArrayList<>();
         
+        // convert each IssueModel to json and summarize them all in one request, which packs
+        // several issues into each llm prompt
+        JsonArray inputs = new JsonArray();
         for (IssueModel issue : issues) {
-            // convert IssueModel to json for microservice
             JsonObject issueJson = new JsonObject();
             issueJson.addProperty("description", issue.getDescription());
             issueJson.addProperty("date", issue.getDate() != null ? 
                 new SimpleDateFormat("yyyy-MM-dd").format(issue.getDate()) : "");
-            
-            String input = issueJson.toString();
-            String response = callMicroservice("summarize_issue", input);
-            
-            if (response != null && !response.isEmpty()) {
-                try {
-                    BugIssue bugIssue = gson.fromJson(response, BugIssue.class);
-                    summarizedIssues.add(bugIssue);
-                } catch (Exception e) {
-                    System.err.println("Error parsing summarized issue: " + e.getMessage());
+            inputs.add(issueJson);
+        }
+        
+        String response = callMicroservice("summarize_issues", inputs.toString());
+        if (response != null && !response.isEmpty()) {
+            try {
+                for (BugIssue bugIssue : gson.fromJson(response, BugIssue[].class)) {
+                    if (bugIssue != null) {
+                        summarizedIssues.add(bugIssue);
+                    }
                 }
+            } catch (Exception e) {
+                System.err.println("Error parsing summarized issues: " + e.getMessage());
             }
         }
         
@@ -324,6 +468,8 @@ public class App {
     private List<BugIssue> findBugsInFiles(String repoPath, List<String> files) throws IOException {
         List<BugIssue> allBugs = new ArrayList<>();
         
+        List<String> inputs = new ArrayList<>();
+        List<String> batchFiles = new ArrayList<>();
         for (String filePath : files) {
             String fullPath = repoPath + "/" + filePath;
             File file = new File(fullPath);
@@ -339,11 +485,22 @@ public class App {
             JsonObject inputJson = new JsonObject();
             inputJson.addProperty("filename", filePath);
             inputJson.addProperty("content", content);
-            
-            String input = inputJson.toString();
-            String response = callMicroservice("find_bugs", input);
-            
-            if (response != null && !response.isEmpty()) {
+            inputs.add(inputJson.toString());
+            batchFiles.add(filePath);
+        }
+        
+        // analyze all files in one batch request. a file the batch failed on is tried once more
+        // on its own, and reported if that fails too, so that it is not left out silently
+        List<String> responses = callMicroserviceBatch("find_bugs", inputs);
+        List<String> failedFiles = new ArrayList<>();
+        for (int i = 0; i < responses.size(); i++) {
+            String response = responses.get(i);
+            if (response == null) {
+                response = callMicroservice("find_bugs", inputs.get(i));
+            }
+            if (response == null) {
+                failedFiles.add(batchFiles.get(i));
+            } else if (!response.isEmpty()) {
                 try {
                     BugIssue[] bugs = gson.fromJson(response, BugIssue[].class);
                     allBugs.addAll(Arrays.asList(bugs));
@@ -352,6 +509,10 @@ public class App {
                 }
             }
         }
+        if (!failedFiles.isEmpty()) {
+            System.err.println("Could not analyze " + failedFiles.size() + " of " + batchFiles.size() + 
+                " files: " + String.join(", ", failedFiles));
+        }
         
         return allBugs;
     }
@@ -377,32 +538,33 @@ public class App {
     }
     
     private String callMicroservice(String endpoint, String input) throws IOException {
-        try {
-            String url = MICROSERVICE_BASE_URL + "/" + endpoint + "?input=" + 
-                java.net.URLEncoder.encode(input, StandardCharsets.UTF_8.toString());
-            
-            URL urlObj = new URL(url);
-            HttpURLConnection conn = (HttpURLConnection) urlObj.openConnection();
-            conn.setRequestMethod("GET");
-            
-            int responseCode = conn.getResponseCode();
-            if (responseCode != HttpURLConnection.HTTP_OK) {
-                throw new IOException("Microservice returned error code: " + responseCode);
+        try (Span span = Tracer.startSpan(endpoint)) {
+            try {
+                return client.call(endpoint, input);
+            } catch (Exception e) {
+                span.recordError(e);
+                System.err.println("Error calling microservice " + endpoint + ": " + e.getMessage());
+                return null;
             }
-            
-            StringBuilder response = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    response.append(line);
+        }
+    }
+    
+    // sends all inputs to the endpoint as one batch
+    // returns the results in input order, with null for items that failed
+    private List<String> callMicroserviceBatch(String endpoint, List<String> inputs) {
+        try (Span span = Tracer.startSpan(endpoint)) {
+            span.setAttribute("batch.size", inputs.size());
+            try {
+                return client.callBatch(endpoint, inputs);
+            } catch (Exception e) {
+                span.recordError(e);
+                System.err.println("Error calling microservice " + endpoint + ": " + e.getMessage());
+                List<String> results = new ArrayList<>(inputs.size());
+                for (int i = 0; i < inputs.size(); i++) {
+                    results.add(null);
                 }
+                return results;
             }
-            
-            return response.toString();
-        } catch (Exception e) {
-            System.err.println("Error calling microservice " + endpoint + ": " + e.getMessage());
-            return null;
         }
     }
     
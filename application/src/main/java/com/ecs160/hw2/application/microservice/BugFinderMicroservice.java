@@ -1,175 +1,164 @@
 package com.ecs160.hw2.application.microservice;
 
 import com.ecs160.hw2.application.model.BugIssue;
+import com.ecs160.hw2.application.service.CFunctionChunker;
+import com.ecs160.hw2.application.service.LlmScheduler;
 import com.ecs160.hw2.application.service.OllamaClient;
+import com.ecs160.hw2.microservice.Cacheable;
+import com.ecs160.hw2.microservice.DegradedResponseException;
 import com.ecs160.hw2.microservice.Endpoint;
 import com.ecs160.hw2.microservice.Microservice;
+import com.ecs160.hw2.microservice.ResponseStream;
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 // microservice class for bug finder
-@Microservice
+@Microservice(threads = 4)
 public class BugFinderMicroservice {
+    // tokens the model reads per prompt; ollama's num_ctx, which defaults to 4096
+    private static final int CONTEXT_TOKENS = Integer.getInteger("ollama.contextTokens", 4096);
+    // room left in the context for the bug reports
+    private static final int OUTPUT_TOKENS = 1024;
+    // lines each chunk repeats from the one before it
+    private static final int OVERLAP_LINES = 5;
+    
     private OllamaClient ollamaClient;
     private Gson gson;
+    private CFunctionChunker chunker;
 
     public BugFinderMicroservice() {
-        this.ollamaClient = new OllamaClient();
+        // file scans are batch work, so other llm requests are scheduled ahead of them
+        this(OllamaClient.shared().withPriority(LlmScheduler.Priority.BATCH));
+    }
+
+    public BugFinderMicroservice(OllamaClient ollamaClient) {
+        this.ollamaClient = ollamaClient;
         this.gson = new Gson();
+        // about four characters per token, less the prompt around the code
+        this.chunker = new CFunctionChunker(
+            (CONTEXT_TOKENS - OUTPUT_TOKENS) * 4 - buildPrompt("unknown.c", "").length(), OVERLAP_LINES);
     }
 
-    @Endpoint(url = "find_bugs")
+    // a file whose analysis failed in part is answered with the bugs found in the rest, but that
+    // answer is not cached. not rate limited by default, since the app sends every file in one
+    // batch; see App.registerMicroservices for limiting other clients. every call is a long llm
+    // generation queued behind the scheduler, so a queued request waits for a slot until its own
+    // deadline rather than for a fixed queue timeout
+    @Cacheable(ttlSeconds = 7 * 24 * 3600)
+    @Endpoint(url = "find_bugs", maxConcurrency = 2, maxQueue = 16, queueTimeoutMillis = 0, 
+              adaptiveConcurrency = true)
     public String handleRequest(String input) {
+        Exception failure = null;
+        String result;
         try {
             // parses input json with filename and content
             JsonObject inputJson = JsonParser.parseString(input).getAsJsonObject();
-            String filename = inputJson.has("filename") ? inputJson.get("filename").getAsString() : "unknown.c";
-            String code = inputJson.has("content") ? inputJson.get("content").getAsString() : input;
+            String filename = extractFilename(inputJson);
+            String code = extractCode(inputJson, input);
             
-            // creates prompt for ollama
-            String prompt = String.format(
-                "Analyze the following C code and identify all bugs. " +
-                "Return a JSON array of bug reports. Each bug report should have:\n" +
-                "{\n" +
-                "  \"bug_type\": \"[type of bug like NullPointerException, MemoryLeak, etc.]\",\n" +
-                "  \"line\": [line number where the bug occurs],\n" +
-                "  \"description\": \"[brief description of the bug]\",\n" +
-                "  \"filename\": \"%s\"\n" +
-                "}\n\n" +
-                "C Code:\n%s\n\n" +
-                "Return only a JSON array of bug objects, no other text.",
-                filename, code
-            );
-            
-            // gets response from ollama
-            String response = ollamaClient.generate(prompt);
+            // analyzes the file's chunks concurrently, collecting each bug report as soon as the
+            // llm closes it and stopping each generation once its json array is complete
+            List<CFunctionChunker.Chunk> chunks = chunker.chunk(code);
+            List<CompletableFuture<List<BugIssue>>> results = new ArrayList<>();
+            for (CFunctionChunker.Chunk chunk : chunks) {
+                List<BugIssue> bugs = new ArrayList<>();
+                results.add(ollamaClient.generateBugIssuesAsync(buildPrompt(filename, chunk.getText()), bug -> {
+                    bug.setLine(chunk.toFileLine(bug.getLine()));
+                    bugs.add(bug);
+                    return true;
+                }).thenApply(response -> bugs));
+            }
             
-            // tries to parse response as json array
-            try {
-                // tries to extract json array from response
-                int arrayStart = response.indexOf("[");
-                int arrayEnd = response.lastIndexOf("]") + 1;
-                if (arrayStart >= 0 && arrayEnd > arrayStart) {
-                    String jsonStr = response.substring(arrayStart, arrayEnd);
-                    JsonArray jsonArray = JsonParser.parseString(jsonStr).getAsJsonArray();
-                    
-                    List<BugIssue> bugs = new ArrayList<>();
-                    for (int i = 0; i < jsonArray.size(); i++) {
-                        try {
-                            JsonObject bugObj = jsonArray.get(i).getAsJsonObject();
-                            BugIssue bug = parseBugIssueFromJson(bugObj);
-                            bugs.add(bug);
-                        } catch (Exception e) {
-                            System.err.println("Error parsing bug issue " + i + ": " + e.getMessage());
-                            // skips this issue
-                        }
-                    }
-                    
-                    return gson.toJson(bugs);
-                }
-                
-                // tries to parse as single object if no array found
-                int objStart = response.indexOf("{");
-                int objEnd = response.lastIndexOf("}") + 1;
-                if (objStart >= 0 && objEnd > objStart) {
-                    String jsonStr = response.substring(objStart, objEnd);
-                    try {
-                        JsonObject bugObj = JsonParser.parseString(jsonStr).getAsJsonObject();
-                        BugIssue bug = parseBugIssueFromJson(bugObj);
-                        List<BugIssue> bugs = new ArrayList<>();
-                        bugs.add(bug);
-                        return gson.toJson(bugs);
-                    } catch (Exception e) {
-                        System.err.println("Error parsing single bug object: " + e.getMessage());
+            // a bug on a line two chunks share is reported by both, so keeps only the first report
+            Map<String, BugIssue> bugs = new LinkedHashMap<>();
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    for (BugIssue bug : results.get(i).get()) {
+                        bugs.putIfAbsent(dedupeKey(bug), bug);
                     }
+                } catch (ExecutionException e) {
+                    System.err.println("Error finding bugs in lines " + chunks.get(i).getFirstLine() + "-" + 
+                        chunks.get(i).getLastLine() + " of " + filename + ": " + e.getCause().getMessage());
+                    failure = e;
                 }
-                
-                // returns empty array as fallback
-                return gson.toJson(new ArrayList<>());
-            } catch (Exception e) {
-                System.err.println("Error parsing Ollama response: " + e.getMessage());
-                e.printStackTrace();
-                return gson.toJson(new ArrayList<>());
             }
+            result = gson.toJson(new ArrayList<>(bugs.values()));
         } catch (Exception e) {
             System.err.println("Error finding bugs: " + e.getMessage());
             e.printStackTrace();
-            return gson.toJson(new ArrayList<>());
+            failure = e;
+            result = gson.toJson(new ArrayList<>());
         }
+        if (failure != null) {
+            throw new DegradedResponseException(result, failure);
+        }
+        return result;
     }
     
-    /**
-     * Safely parses BugIssue from JSON, handling "None" values and other edge cases.
-     */
-    private BugIssue parseBugIssueFromJson(JsonObject json) {
-        BugIssue bugIssue = new BugIssue();
-        
-        // handles bug_type
-        if (json.has("bug_type")) {
-            try {
-                bugIssue.setBug_type(json.get("bug_type").getAsString());
-            } catch (Exception e) {
-                bugIssue.setBug_type("Unknown");
-            }
-        } else {
-            bugIssue.setBug_type("Unknown");
-        }
-        
-        // handles line, converts none or invalid values to -1
-        if (json.has("line")) {
-            try {
-                String lineStr = json.get("line").getAsString().trim();
-                if (lineStr.equalsIgnoreCase("None") || lineStr.equalsIgnoreCase("null") || 
-                    lineStr.isEmpty() || lineStr.equals("-")) {
-                    bugIssue.setLine(-1);
-                } else {
-                    bugIssue.setLine(Integer.parseInt(lineStr));
-                }
-            } catch (Exception e) {
-                try {
-                    // tries as integer
-                    bugIssue.setLine(json.get("line").getAsInt());
-                } catch (Exception ex) {
-                    bugIssue.setLine(-1);
-                }
-            }
-        } else {
-            bugIssue.setLine(-1);
-        }
-        
-        // handles description
-        if (json.has("description")) {
-            try {
-                bugIssue.setDescription(json.get("description").getAsString());
-            } catch (Exception e) {
-                bugIssue.setDescription("");
+    // streams the raw llm analysis token by token instead of waiting for the whole generation,
+    // one chunk of the file after another
+    @Endpoint(url = "find_bugs_stream", maxConcurrency = 2, maxQueue = 16, queueTimeoutMillis = 0)
+    public void handleStreamingRequest(String input, ResponseStream out) throws IOException {
+        JsonObject inputJson = JsonParser.parseString(input).getAsJsonObject();
+        String filename = extractFilename(inputJson);
+        try {
+            for (CFunctionChunker.Chunk chunk : chunker.chunk(extractCode(inputJson, input))) {
+                ollamaClient.generateStream(buildPrompt(filename, chunk.getText()), token -> {
+                    try {
+                        out.write(token);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
             }
-        } else {
-            bugIssue.setDescription("");
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        
-        // handles filename
-        if (json.has("filename")) {
-            try {
-                String filename = json.get("filename").getAsString();
-                if (filename.equalsIgnoreCase("None") || filename.equalsIgnoreCase("null")) {
-                    bugIssue.setFilename("");
-                } else {
-                    bugIssue.setFilename(filename);
-                }
-            } catch (Exception e) {
-                bugIssue.setFilename("");
-            }
-        } else {
-            bugIssue.setFilename("");
+    }
+    
+    private String extractFilename(JsonObject inputJson) {
+        return inputJson.has("filename") ? inputJson.get("filename").getAsString() : "unknown.c";
+    }
+    
+    private String extractCode(JsonObject inputJson, String input) {
+        return inputJson.has("content") ? inputJson.get("content").getAsString() : input;
+    }
+    
+    // bugs of the same type on the same line are the same bug; without a line, the description decides
+    private static String dedupeKey(BugIssue bug) {
+        String type = bug.getBug_type() != null ? bug.getBug_type().trim().toLowerCase() : "";
+        if (bug.getLine() > 0) {
+            return type + "@" + bug.getLine();
         }
-        
-        return bugIssue;
+        return type + ":" + (bug.getDescription() != null ? bug.getDescription().trim().toLowerCase() : "");
+    }
+    
+    // creates prompt for ollama; the code is a chunk of numbered lines
+    private String buildPrompt(String filename, String code) {
+        return String.format(
+            "Analyze the following C code and identify all bugs. " +
+            "Each line of code starts with its line number in the file. " +
+            "Return a JSON array of bug reports. Each bug report should have:\n" +
+            "{\n" +
+            "  \"bug_type\": \"[type of bug like NullPointerException, MemoryLeak, etc.]\",\n" +
+            "  \"line\": [line number where the bug occurs],\n" +
+            "  \"description\": \"[brief description of the bug]\",\n" +
+            "  \"filename\": \"%s\"\n" +
+            "}\n\n" +
+            "C Code:\n%s\n\n" +
+            "Return only a JSON array of bug objects, no other text.",
+            filename, code
+        );
     }
 }
-
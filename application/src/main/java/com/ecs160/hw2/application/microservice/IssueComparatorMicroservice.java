@@ -1,249 +1,259 @@
 package com.ecs160.hw2.application.microservice;
 
 import com.ecs160.hw2.application.model.BugIssue;
+import com.ecs160.hw2.application.service.BugIssueCodec;
+import com.ecs160.hw2.application.service.BugIssueMatcher;
+import com.ecs160.hw2.application.service.EmbeddingIndex;
 import com.ecs160.hw2.application.service.OllamaClient;
+import com.ecs160.hw2.microservice.Cacheable;
+import com.ecs160.hw2.microservice.DegradedResponseException;
 import com.ecs160.hw2.microservice.Endpoint;
 import com.ecs160.hw2.microservice.Microservice;
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 // microservice class for issue comparator
-@Microservice
+// runs on its own single thread so its long prompts cannot starve the other services
+@Microservice(threads = 1, queueCapacity = 4)
 public class IssueComparatorMicroservice {
+    // tokens the model reads per prompt; ollama's num_ctx, which defaults to 4096
+    private static final int CONTEXT_TOKENS = Integer.getInteger("ollama.contextTokens", 4096);
+    // room left in the context for the list of common bugs
+    private static final int OUTPUT_TOKENS = 1024;
+    // "llm" sends both lists in one prompt, "embedding" only the pairs whose embeddings are
+    // close, and "auto" the lists while they fit the context window and the pairs after that
+    private static final String MODE = System.getProperty("comparator.mode", "auto");
+    private static final float SIMILARITY_THRESHOLD = 
+        Float.parseFloat(System.getProperty("comparator.similarityThreshold", "0.75"));
+    // closest issues of list2 sent for confirmation per issue of list1
+    private static final int CANDIDATES_PER_ISSUE = 3;
+    private static final int MAX_PAIRS_PER_PROMPT = 10;
+    private static final String MATCHER = System.getProperty("comparator.matcher", "indexed");
+    private static final int OUTPUT_TOKENS_PER_PAIR = 16;
+    private static final String CONFIRM_PROMPT = 
+        "For each of these pairs of bug reports, decide whether both reports describe the same bug.\n\n" +
+        "%s" +
+        "Return a JSON array with one object per pair, in the following format:\n" +
+        "{\n" +
+        "  \"pair\": [pair number],\n" +
+        "  \"same\": [true or false]\n" +
+        "}\n" +
+        "Only return the JSON array, no other text.";
+    
     private OllamaClient ollamaClient;
     private Gson gson;
 
     public IssueComparatorMicroservice() {
-        this.ollamaClient = new OllamaClient();
+        this(OllamaClient.shared());
+    }
+
+    public IssueComparatorMicroservice(OllamaClient ollamaClient) {
+        this.ollamaClient = ollamaClient;
         this.gson = new Gson();
     }
 
-    @Endpoint(url = "check_equivalence")
+    // answers that fall back to word matching because ollama failed, or to nothing, are not cached
+    @Cacheable(ttlSeconds = 7 * 24 * 3600)
+    @Endpoint(url = "check_equivalence", maxConcurrency = 1, maxQueue = 4, queueTimeoutMillis = 0)
     public String handleRequest(String input) {
         try {
-            // parses input json with two arrays: list1 and list2
-            JsonObject inputJson = JsonParser.parseString(input).getAsJsonObject();
-            JsonArray list1Json = inputJson.has("list1") ? inputJson.get("list1").getAsJsonArray() : new JsonArray();
-            JsonArray list2Json = inputJson.has("list2") ? inputJson.get("list2").getAsJsonArray() : new JsonArray();
-            
-            // converts json arrays to lists of bugissue
+            // reads input json with two arrays, list1 and list2, straight into lists of bugissue
             List<BugIssue> list1 = new ArrayList<>();
-            for (int i = 0; i < list1Json.size(); i++) {
-                try {
-                    JsonObject issueJson = list1Json.get(i).getAsJsonObject();
-                    BugIssue issue = parseBugIssueFromJson(issueJson);
-                    list1.add(issue);
-                } catch (Exception e) {
-                    System.err.println("Error parsing issue in list1: " + e.getMessage());
-                    // skips this issue
+            List<BugIssue> list2 = new ArrayList<>();
+            String mode = MODE;
+            JsonReader reader = BugIssueCodec.reader(input, 0);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("list1") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    list1 = BugIssueCodec.readArray(reader);
+                } else if (name.equals("list2") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    list2 = BugIssueCodec.readArray(reader);
+                } else if (name.equals("mode") && reader.peek() == JsonToken.STRING) {
+                    mode = reader.nextString();
+                } else {
+                    reader.skipValue();
                 }
             }
             
-            List<BugIssue> list2 = new ArrayList<>();
-            for (int i = 0; i < list2Json.size(); i++) {
+            // lists too long for one prompt are matched by embedding instead
+            String prompt = buildPrompt(list1, list2);
+            if (mode.equals("embedding") || 
+                (mode.equals("auto") && prompt.length() / 4 + OUTPUT_TOKENS > CONTEXT_TOKENS)) {
                 try {
-                    JsonObject issueJson = list2Json.get(i).getAsJsonObject();
-                    BugIssue issue = parseBugIssueFromJson(issueJson);
-                    list2.add(issue);
+                    return gson.toJson(findCommonBugsByEmbedding(list1, list2));
                 } catch (Exception e) {
-                    System.err.println("Error parsing issue in list2: " + e.getMessage());
-                    // skips this issue
+                    System.err.println("Error matching issues by embedding, using simple comparison: " + e.getMessage());
+                    throw new DegradedResponseException(gson.toJson(findCommonBugs(list1, list2)), e);
                 }
             }
             
-            // uses ollama to compare issues and find common ones
-            String prompt = String.format(
-                "Compare these two lists of bug reports and identify which bugs are the same or very similar.\n\n" +
-                "List 1:\n%s\n\n" +
-                "List 2:\n%s\n\n" +
-                "Return a JSON array containing only the bugs that appear in both lists (or are very similar). " +
-                "Each bug should be in the format:\n" +
-                "{\n" +
-                "  \"bug_type\": \"[type]\",\n" +
-                "  \"line\": [line number],\n" +
-                "  \"description\": \"[description]\",\n" +
-                "  \"filename\": \"[filename]\"\n" +
-                "}\n\n" +
-                "Return only the JSON array, no other text.",
-                gson.toJson(list1), gson.toJson(list2)
-            );
-            
             // gets response from ollama
             String response = ollamaClient.generate(prompt);
             
             // tries to parse response as json array
-            try {
-                JsonArray jsonArray = parseJsonArrayFromResponse(response);
-                if (jsonArray != null) {
-                    List<BugIssue> commonBugs = new ArrayList<>();
-                    for (int i = 0; i < jsonArray.size(); i++) {
-                        try {
-                            JsonObject bugObj = jsonArray.get(i).getAsJsonObject();
-                            BugIssue bug = parseBugIssueFromJson(bugObj);
-                            commonBugs.add(bug);
-                        } catch (Exception e) {
-                            System.err.println("Error parsing bug issue " + i + ": " + e.getMessage());
-                            // skips this issue
-                        }
-                    }
-                    
-                    return gson.toJson(commonBugs);
-                }
-            } catch (Exception e) {
-                System.err.println("Error parsing Ollama response: " + e.getMessage());
-                e.printStackTrace();
+            List<BugIssue> commonBugs = BugIssueCodec.parseAll(response);
+            if (commonBugs != null) {
+                return gson.toJson(commonBugs);
             }
             
             // fallback: uses simple comparison based on description similarity
-            List<BugIssue> commonBugs = findCommonBugs(list1, list2);
-            return gson.toJson(commonBugs);
+            return gson.toJson(findCommonBugs(list1, list2));
+        } catch (DegradedResponseException e) {
+            throw e;
         } catch (Exception e) {
             System.err.println("Error comparing issues: " + e.getMessage());
             e.printStackTrace();
-            return gson.toJson(new ArrayList<>());
+            throw new DegradedResponseException(gson.toJson(new ArrayList<>()), e);
         }
     }
     
-    /**
-     * Simple fallback method to find common bugs based on description similarity.
-     */
-    private List<BugIssue> findCommonBugs(List<BugIssue> list1, List<BugIssue> list2) {
-        List<BugIssue> common = new ArrayList<>();
+    // uses ollama to compare issues and find common ones
+    private String buildPrompt(List<BugIssue> list1, List<BugIssue> list2) {
+        return String.format(
+            "Compare these two lists of bug reports and identify which bugs are the same or very similar.\n\n" +
+            "List 1:\n%s\n\n" +
+            "List 2:\n%s\n\n" +
+            "Return a JSON array containing only the bugs that appear in both lists (or are very similar). " +
+            "Each bug should be in the format:\n" +
+            "{\n" +
+            "  \"bug_type\": \"[type]\",\n" +
+            "  \"line\": [line number],\n" +
+            "  \"description\": \"[description]\",\n" +
+            "  \"filename\": \"[filename]\"\n" +
+            "}\n\n" +
+            "Return only the JSON array, no other text.",
+            gson.toJson(list1), gson.toJson(list2)
+        );
+    }
+    
+    // finds the bugs of list1 that are also in list2 by embedding every description, pairing each
+    // bug of list1 with the closest bugs of list2 by cosine similarity, and asking the llm to
+    // confirm only those pairs, several pairs per prompt. the prompts stay small however long
+    // the lists are. a batch the llm fails to answer, in full or in part, fails the whole match
+    private List<BugIssue> findCommonBugsByEmbedding(List<BugIssue> list1, List<BugIssue> list2) throws IOException {
+        if (list1.isEmpty() || list2.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<float[]> vectors1 = embedAll(list1);
+        EmbeddingIndex index = new EmbeddingIndex(embedAll(list2));
+        List<int[]> candidates = new ArrayList<>();
+        for (int i = 0; i < list1.size(); i++) {
+            for (EmbeddingIndex.Match match : index.search(vectors1.get(i), SIMILARITY_THRESHOLD, CANDIDATES_PER_ISSUE)) {
+                candidates.add(new int[] {i, match.getIndex()});
+            }
+        }
         
-        for (BugIssue bug1 : list1) {
-            for (BugIssue bug2 : list2) {
-                // simple similarity check: same bug type and similar description
-                if (bug1.getBug_type().equalsIgnoreCase(bug2.getBug_type())) {
-                    String desc1 = bug1.getDescription().toLowerCase();
-                    String desc2 = bug2.getDescription().toLowerCase();
-                    
-                    // checks if descriptions share significant words
-                    String[] words1 = desc1.split("\\s+");
-                    String[] words2 = desc2.split("\\s+");
-                    int commonWords = 0;
-                    for (String word1 : words1) {
-                        if (word1.length() > 3) { // Only check words longer than 3 chars
-                            for (String word2 : words2) {
-                                if (word1.equals(word2)) {
-                                    commonWords++;
-                                    break;
-                                }
-                            }
-                        }
-                    }
-                    
-                    // considers them common if at least 2 significant words match
-                    if (commonWords >= 2) {
-                        common.add(bug1);
-                        break;
-                    }
+        // once a bug of list1 is confirmed, its remaining candidates are skipped
+        boolean[] common = new boolean[list1.size()];
+        int budget = CONTEXT_TOKENS - CONFIRM_PROMPT.length() / 4;
+        int next = 0;
+        while (next < candidates.size()) {
+            List<int[]> batch = new ArrayList<>();
+            int used = 0;
+            while (next < candidates.size() && batch.size() < MAX_PAIRS_PER_PROMPT) {
+                int[] pair = candidates.get(next);
+                if (common[pair[0]]) {
+                    next++;
+                    continue;
                 }
+                int cost = (gson.toJson(list1.get(pair[0])).length() + gson.toJson(list2.get(pair[1])).length()) / 4 + 
+                    OUTPUT_TOKENS_PER_PAIR;
+                if (!batch.isEmpty() && used + cost > budget) {
+                    break;
+                }
+                batch.add(pair);
+                used += cost;
+                next++;
+            }
+            if (!batch.isEmpty()) {
+                confirm(batch, list1, list2, common);
             }
         }
         
-        return common;
+        List<BugIssue> commonBugs = new ArrayList<>();
+        for (int i = 0; i < list1.size(); i++) {
+            if (common[i]) {
+                commonBugs.add(list1.get(i));
+            }
+        }
+        return commonBugs;
     }
     
-    /**
-     * Safely parses JSON array from LLM response.
-     */
-    private JsonArray parseJsonArrayFromResponse(String response) {
-        if (response == null || response.trim().isEmpty()) {
-            return null;
+    // embeds each bug's type and description, requesting each distinct text once
+    private List<float[]> embedAll(List<BugIssue> bugs) throws IOException {
+        Map<String, CompletableFuture<float[]>> requests = new HashMap<>();
+        List<CompletableFuture<float[]>> vectors = new ArrayList<>();
+        for (BugIssue bug : bugs) {
+            String text = bug.getBug_type() + ": " + bug.getDescription();
+            vectors.add(requests.computeIfAbsent(text, ollamaClient::embedAsync));
         }
-        
+        List<float[]> result = new ArrayList<>();
         try {
-            // tries parsing directly first
-            return JsonParser.parseString(response).getAsJsonArray();
-        } catch (Exception e) {
-            // tries extracting json array from response
-            int arrayStart = response.indexOf("[");
-            int arrayEnd = response.lastIndexOf("]") + 1;
-            if (arrayStart >= 0 && arrayEnd > arrayStart) {
-                try {
-                    String jsonStr = response.substring(arrayStart, arrayEnd);
-                    return JsonParser.parseString(jsonStr).getAsJsonArray();
-                } catch (Exception ex) {
-                    return null;
-                }
+            for (CompletableFuture<float[]> vector : vectors) {
+                result.add(vector.get());
             }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() 
+                : new IOException("Embedding failed: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while embedding issues", e);
         }
-        
-        return null;
+        return result;
     }
     
-    /**
-     * Safely parses BugIssue from JSON, handling "None" values and other edge cases.
-     */
-    private BugIssue parseBugIssueFromJson(JsonObject json) {
-        BugIssue bugIssue = new BugIssue();
-        
-        // handles bug_type
-        if (json.has("bug_type")) {
-            try {
-                bugIssue.setBug_type(json.get("bug_type").getAsString());
-            } catch (Exception e) {
-                bugIssue.setBug_type("Unknown");
-            }
-        } else {
-            bugIssue.setBug_type("Unknown");
+    // asks the llm which candidate pairs are the same bug, marking their bugs of list1 as common.
+    // throws if the llm fails or leaves any pair unanswered, rather than guessing those pairs
+    private void confirm(List<int[]> batch, List<BugIssue> list1, List<BugIssue> list2, boolean[] common)
+            throws IOException {
+        StringBuilder listing = new StringBuilder();
+        for (int n = 1; n <= batch.size(); n++) {
+            listing.append(String.format("Pair %d:\nA: %s\nB: %s\n\n", n, 
+                gson.toJson(list1.get(batch.get(n - 1)[0])), gson.toJson(list2.get(batch.get(n - 1)[1]))));
         }
         
-        // handles line, converts none or invalid values to -1
-        if (json.has("line")) {
+        // stops the generation once every pair has its answer
+        boolean[] answered = new boolean[batch.size()];
+        int[] remaining = {batch.size()};
+        ollamaClient.generateJson(String.format(CONFIRM_PROMPT, listing), object -> {
             try {
-                String lineStr = json.get("line").getAsString().trim();
-                if (lineStr.equalsIgnoreCase("None") || lineStr.equalsIgnoreCase("null") || 
-                    lineStr.isEmpty() || lineStr.equals("-")) {
-                    bugIssue.setLine(-1);
-                } else {
-                    bugIssue.setLine(Integer.parseInt(lineStr));
-                }
-                } catch (Exception e) {
-                try {
-                    // tries as integer
-                    bugIssue.setLine(json.get("line").getAsInt());
-                } catch (Exception ex) {
-                    bugIssue.setLine(-1);
+                int n = object.get("pair").getAsInt();
+                if (n >= 1 && n <= batch.size() && !answered[n - 1]) {
+                    answered[n - 1] = true;
+                    remaining[0]--;
+                    if (object.get("same").getAsBoolean()) {
+                        common[batch.get(n - 1)[0]] = true;
+                    }
                 }
-            }
-        } else {
-            bugIssue.setLine(-1);
-        }
-        
-        // handles description
-        if (json.has("description")) {
-            try {
-                bugIssue.setDescription(json.get("description").getAsString());
             } catch (Exception e) {
-                bugIssue.setDescription("");
+                // not an answer, so ignores it
             }
-        } else {
-            bugIssue.setDescription("");
+            return remaining[0] > 0;
+        });
+        if (remaining[0] > 0) {
+            throw new IOException("LLM left " + remaining[0] + " of " + batch.size() + " candidate pairs unanswered");
         }
-        
-        // handles filename
-        if (json.has("filename")) {
-            try {
-                String filename = json.get("filename").getAsString();
-                if (filename.equalsIgnoreCase("None") || filename.equalsIgnoreCase("null")) {
-                    bugIssue.setFilename("");
-                } else {
-                    bugIssue.setFilename(filename);
-                }
-            } catch (Exception e) {
-                bugIssue.setFilename("");
-            }
-        } else {
-            bugIssue.setFilename("");
+    }
+    
+    /**
+     * Simple fallback method to find common bugs based on description similarity.
+     * The comparator.matcher property set to "pairwise" selects the original pair-by-pair
+     * comparison instead of the inverted index, which finds the same bugs.
+     */
+    private List<BugIssue> findCommonBugs(List<BugIssue> list1, List<BugIssue> list2) {
+        if (MATCHER.equals("pairwise")) {
+            return BugIssueMatcher.findCommonBugsPairwise(list1, list2);
         }
-        
-        return bugIssue;
+        return BugIssueMatcher.findCommonBugs(list1, list2);
     }
 }
-
@@ -1,179 +1,310 @@
 package com.ecs160.hw2.application.microservice;
 
 import com.ecs160.hw2.application.model.BugIssue;
+import com.ecs160.hw2.application.service.BugIssueCodec;
+import com.ecs160.hw2.application.service.LlmScheduler;
 import com.ecs160.hw2.application.service.OllamaClient;
+import com.ecs160.hw2.microservice.Cacheable;
+import com.ecs160.hw2.microservice.DegradedResponseException;
 import com.ecs160.hw2.microservice.Endpoint;
 import com.ecs160.hw2.microservice.Microservice;
+import com.ecs160.hw2.microservice.ResponseStream;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 // microservice class for issue summarizer
-@Microservice
+@Microservice(threads = 8)
 public class IssueSummarizerMicroservice {
+    // tokens the model reads per prompt; ollama's num_ctx, which defaults to 4096
+    private static final int CONTEXT_TOKENS = Integer.getInteger("ollama.contextTokens", 4096);
+    // room left in the context for each issue's answer
+    private static final int OUTPUT_TOKENS_PER_ISSUE = 128;
+    // beyond this small models start dropping or merging issues
+    private static final int MAX_ISSUES_PER_PROMPT = 10;
+    private static final String BATCH_PROMPT = 
+        "Summarize each of these GitHub issues into a bug report format. " +
+        "For each issue, extract the bug type, estimated line number if mentioned, description, " +
+        "and filename if mentioned.\n\n" +
+        "%s" +
+        "Return a JSON array with one object per issue, in the following format:\n" +
+        "{\n" +
+        "  \"index\": [issue number],\n" +
+        "  \"bug_type\": \"[type of bug]\",\n" +
+        "  \"line\": [line number or -1 if not specified],\n" +
+        "  \"description\": \"[brief description]\",\n" +
+        "  \"filename\": \"[filename or empty string if not specified]\"\n" +
+        "}\n" +
+        "Only return the JSON array, no other text.";
+    
     private OllamaClient ollamaClient;
     private Gson gson;
 
     public IssueSummarizerMicroservice() {
-        this.ollamaClient = new OllamaClient();
+        // summaries are interactive, so they are scheduled ahead of other llm work
+        this(OllamaClient.shared().withPriority(LlmScheduler.Priority.INTERACTIVE));
+    }
+
+    public IssueSummarizerMicroservice(OllamaClient ollamaClient) {
+        this.ollamaClient = ollamaClient;
         this.gson = new Gson();
     }
 
-    @Endpoint(url = "summarize_issue")
+    // an issue that cannot be summarized is answered with an "Error" summary, which is not cached
+    @Cacheable(ttlSeconds = 7 * 24 * 3600)
+    @Endpoint(url = "summarize_issue", maxConcurrency = 4, maxQueue = 64, queueTimeoutMillis = 0, 
+              adaptiveConcurrency = true)
     public String handleRequest(String input) {
         try {
             // parses input json (github issue)
             JsonObject issueJson = JsonParser.parseString(input).getAsJsonObject();
-            
-            // extracts relevant fields
-            String title = issueJson.has("title") ? issueJson.get("title").getAsString() : "";
-            String body = issueJson.has("body") ? issueJson.get("body").getAsString() : "";
-            String description = issueJson.has("description") ? issueJson.get("description").getAsString() : 
-                               (body != null && !body.isEmpty() ? body : title);
-            
-            // creates prompt for ollama
-            String prompt = String.format(
-                "Summarize this GitHub issue into a bug report format. " +
-                "Extract the bug type, estimated line number if mentioned, description, and filename if mentioned.\n\n" +
-                "Title: %s\n" +
-                "Description: %s\n\n" +
-                "Return a JSON object with the following format:\n" +
-                "{\n" +
-                "  \"bug_type\": \"[type of bug]\",\n" +
-                "  \"line\": [line number or -1 if not specified],\n" +
-                "  \"description\": \"[brief description]\",\n" +
-                "  \"filename\": \"[filename or empty string if not specified]\"\n" +
-                "}\n" +
-                "Only return the JSON object, no other text.",
-                title, description
-            );
-            
-            // gets response from ollama
-            String response = ollamaClient.generate(prompt);
-            
-            // tries to parse response as json
-            try {
-                JsonObject jsonResponse = parseJsonFromResponse(response);
-                if (jsonResponse != null) {
-                    BugIssue bugIssue = parseBugIssueFromJson(jsonResponse);
-                    return gson.toJson(bugIssue);
-                }
-            } catch (Exception e) {
-                System.err.println("Error parsing JSON: " + e.getMessage());
-            }
-            
-            // fallback: creates a basic bug issue
-            BugIssue bugIssue = new BugIssue();
-            bugIssue.setBug_type("Unknown");
-            bugIssue.setLine(-1);
-            bugIssue.setDescription(description);
-            bugIssue.setFilename("");
-            return gson.toJson(bugIssue);
+            return gson.toJson(summarize(issueJson));
         } catch (Exception e) {
             System.err.println("Error summarizing issue: " + e.getMessage());
             e.printStackTrace();
-            
-            // returns error response
-            BugIssue errorIssue = new BugIssue();
-            errorIssue.setBug_type("Error");
-            errorIssue.setLine(-1);
-            errorIssue.setDescription("Error processing issue: " + e.getMessage());
-            errorIssue.setFilename("");
-            return gson.toJson(errorIssue);
+            throw new DegradedResponseException(gson.toJson(errorIssue(e)), e);
         }
     }
     
-    // safely parses json from llm response, handling various formats
-    private JsonObject parseJsonFromResponse(String response) {
-        if (response == null || response.trim().isEmpty()) {
-            return null;
-        }
-        
+    // summarizes many issues in few llm calls. input is a json array of issues, output a json array
+    // of their summaries in the same order. issues are packed into prompts that fit the model's
+    // context window, each asking for a json array of summaries tagged with the issue number;
+    // issues whose summary is missing or invalid are then summarized one at a time. like the other
+    // llm endpoints, it has no queue timeout: a request waits for a slot until its deadline
+    @Cacheable(ttlSeconds = 7 * 24 * 3600)
+    @Endpoint(url = "summarize_issues", maxConcurrency = 2, maxQueue = 16, queueTimeoutMillis = 0)
+    public String handleBatchRequest(String input) {
+        JsonArray issues;
         try {
-            // tries parsing directly first
-            return JsonParser.parseString(response).getAsJsonObject();
+            issues = JsonParser.parseString(input).getAsJsonArray();
         } catch (Exception e) {
-            // tries extracting json object from response
-            int jsonStart = response.indexOf("{");
-            int jsonEnd = response.lastIndexOf("}") + 1;
-            if (jsonStart >= 0 && jsonEnd > jsonStart) {
+            System.err.println("Error parsing issues: " + e.getMessage());
+            return gson.toJson(new ArrayList<>());
+        }
+        
+        BugIssue[] summaries = new BugIssue[issues.size()];
+        Exception failure = null;
+        for (List<Integer> batch : pack(issues)) {
+            if (batch.size() > 1) {
+                summarizeBatch(issues, batch, summaries);
+            }
+            for (int i : batch) {
+                if (summaries[i] != null) {
+                    continue;
+                }
                 try {
-                    String jsonStr = response.substring(jsonStart, jsonEnd);
-                    return JsonParser.parseString(jsonStr).getAsJsonObject();
-                } catch (Exception ex) {
-                    // continues to return null
+                    summaries[i] = summarize(issues.get(i).getAsJsonObject());
+                } catch (Exception e) {
+                    System.err.println("Error summarizing issue " + i + ": " + e.getMessage());
+                    summaries[i] = errorIssue(e);
+                    failure = e;
                 }
             }
         }
-        
-        return null;
+        // the issues that failed are answered with "Error" summaries, so the answer is not cached
+        if (failure != null) {
+            throw new DegradedResponseException(gson.toJson(Arrays.asList(summaries)), failure);
+        }
+        return gson.toJson(Arrays.asList(summaries));
     }
     
-    // safely parses bug issue from json, handling none values and other edge cases
-    private BugIssue parseBugIssueFromJson(JsonObject json) {
-        BugIssue bugIssue = new BugIssue();
+    // summarizes one issue in its own llm call
+    private BugIssue summarize(JsonObject issueJson) throws IOException {
+        // extracts relevant fields
+        String title = extractTitle(issueJson);
+        String description = extractDescription(issueJson);
         
-        // handles bug_type
-        if (json.has("bug_type")) {
-            try {
-                bugIssue.setBug_type(json.get("bug_type").getAsString());
-            } catch (Exception e) {
-                bugIssue.setBug_type("Unknown");
-            }
-        } else {
-            bugIssue.setBug_type("Unknown");
+        // creates prompt for ollama
+        String prompt = buildPrompt(title, description);
+        
+        // gets response from ollama, stopping the generation as soon as the summary object is complete
+        BugIssue[] summary = new BugIssue[1];
+        String response = ollamaClient.generateBugIssues(prompt, bug -> {
+            summary[0] = bug;
+            return false;
+        });
+        if (summary[0] != null) {
+            return summary[0];
         }
         
-        // handles line, converts none or invalid values to -1
-        if (json.has("line")) {
-            try {
-                String lineStr = json.get("line").getAsString().trim();
-                if (lineStr.equalsIgnoreCase("None") || lineStr.equalsIgnoreCase("null") || 
-                    lineStr.isEmpty() || lineStr.equals("-")) {
-                    bugIssue.setLine(-1);
-                } else {
-                    bugIssue.setLine(Integer.parseInt(lineStr));
-                }
-            } catch (Exception e) {
-                try {
-                    // tries as integer
-                    bugIssue.setLine(json.get("line").getAsInt());
-                } catch (Exception ex) {
-                    bugIssue.setLine(-1);
-                }
-            }
-        } else {
-            bugIssue.setLine(-1);
+        // otherwise looks for a json object anywhere in the response
+        BugIssue parsed = BugIssueCodec.parse(response);
+        if (parsed != null) {
+            return parsed;
         }
         
-        // handles description
-        if (json.has("description")) {
+        // fallback: creates a basic bug issue
+        BugIssue bugIssue = new BugIssue();
+        bugIssue.setBug_type("Unknown");
+        bugIssue.setLine(-1);
+        bugIssue.setDescription(description);
+        bugIssue.setFilename("");
+        return bugIssue;
+    }
+    
+    // summarizes a batch of issues in one llm call, filling in the summaries that come back valid.
+    // issues that cannot be read are left out, to fail on their own
+    private void summarizeBatch(JsonArray issues, List<Integer> candidates, BugIssue[] summaries) {
+        List<Integer> batch = new ArrayList<>();
+        StringBuilder listing = new StringBuilder();
+        for (int i : candidates) {
             try {
-                bugIssue.setDescription(json.get("description").getAsString());
+                JsonObject issueJson = issues.get(i).getAsJsonObject();
+                listing.append(String.format("Issue %d:\nTitle: %s\nDescription: %s\n\n", 
+                    batch.size() + 1, extractTitle(issueJson), extractDescription(issueJson)));
+                batch.add(i);
             } catch (Exception e) {
-                bugIssue.setDescription("");
+                System.err.println("Error reading issue " + i + ": " + e.getMessage());
             }
-        } else {
-            bugIssue.setDescription("");
         }
+        if (batch.isEmpty()) {
+            return;
+        }
+        String prompt = String.format(BATCH_PROMPT, listing);
         
-        // handles filename
-        if (json.has("filename")) {
+        // stops the generation once every issue in the batch has its summary
+        int[] remaining = {batch.size()};
+        try {
+            ollamaClient.generateJson(prompt, object -> {
+                int n = issueNumber(object);
+                if (n >= 1 && n <= batch.size() && summaries[batch.get(n - 1)] == null && isSummary(object)) {
+                    summaries[batch.get(n - 1)] = BugIssueCodec.fromJson(object);
+                    remaining[0]--;
+                }
+                return remaining[0] > 0;
+            });
+        } catch (IOException e) {
+            System.err.println("Error summarizing batch of " + batch.size() + " issues, " + 
+                "summarizing them one at a time: " + e.getMessage());
+        }
+    }
+    
+    // groups issues, by position, into batches whose prompt and answers fit the context window
+    private List<List<Integer>> pack(JsonArray issues) {
+        int budget = CONTEXT_TOKENS - estimateTokens(BATCH_PROMPT);
+        List<List<Integer>> batches = new ArrayList<>();
+        List<Integer> batch = new ArrayList<>();
+        int used = 0;
+        for (int i = 0; i < issues.size(); i++) {
+            int cost = OUTPUT_TOKENS_PER_ISSUE;
+            if (issues.get(i).isJsonObject()) {
+                JsonObject issueJson = issues.get(i).getAsJsonObject();
+                cost += estimateTokens(extractTitle(issueJson) + extractDescription(issueJson));
+            }
+            if (!batch.isEmpty() && (used + cost > budget || batch.size() == MAX_ISSUES_PER_PROMPT)) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                used = 0;
+            }
+            batch.add(i);
+            used += cost;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+    
+    // rough token count for sizing prompts; about four characters per token for english and code
+    private static int estimateTokens(String text) {
+        return text.length() / 4 + 1;
+    }
+    
+    // the issue number a batch summary is tagged with, or -1 if it has none
+    private static int issueNumber(JsonObject object) {
+        try {
+            return object.has("index") ? object.get("index").getAsInt() : -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+    
+    // a usable summary names at least a bug type or a description
+    private static boolean isSummary(JsonObject object) {
+        for (String field : new String[] {"bug_type", "description"}) {
             try {
-                String filename = json.get("filename").getAsString();
-                if (filename.equalsIgnoreCase("None") || filename.equalsIgnoreCase("null")) {
-                    bugIssue.setFilename("");
-                } else {
-                    bugIssue.setFilename(filename);
+                if (object.has(field) && !object.get(field).getAsString().trim().isEmpty()) {
+                    return true;
                 }
             } catch (Exception e) {
-                bugIssue.setFilename("");
+                // not a string, so not usable
             }
-        } else {
-            bugIssue.setFilename("");
         }
-        
-        return bugIssue;
+        return false;
+    }
+    
+    private static BugIssue errorIssue(Exception e) {
+        BugIssue errorIssue = new BugIssue();
+        errorIssue.setBug_type("Error");
+        errorIssue.setLine(-1);
+        errorIssue.setDescription("Error processing issue: " + e.getMessage());
+        errorIssue.setFilename("");
+        return errorIssue;
+    }
+    
+    // streams the llm summary token by token instead of waiting for the whole generation
+    @Endpoint(url = "summarize_issue_stream", maxConcurrency = 4, maxQueue = 64, queueTimeoutMillis = 0)
+    public void handleStreamingRequest(String input, ResponseStream out) throws IOException {
+        JsonObject issueJson = JsonParser.parseString(input).getAsJsonObject();
+        String prompt = buildPrompt(extractTitle(issueJson), extractDescription(issueJson));
+        try {
+            ollamaClient.generateStream(prompt, token -> {
+                try {
+                    out.write(token);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+    
+    private String extractTitle(JsonObject issueJson) {
+        String title = extractString(issueJson, "title");
+        return title != null ? title : "";
+    }
+    
+    // prefers an explicit description, then the body, then the title
+    private String extractDescription(JsonObject issueJson) {
+        String description = extractString(issueJson, "description");
+        if (description != null) {
+            return description;
+        }
+        String body = extractString(issueJson, "body");
+        return body != null && !body.isEmpty() ? body : extractTitle(issueJson);
+    }
+    
+    // the field as a string, or null if it is missing, json null, an object or an array
+    private static String extractString(JsonObject issueJson, String field) {
+        JsonElement value = issueJson.get(field);
+        return value != null && value.isJsonPrimitive() ? value.getAsString() : null;
+    }
+    
+    // creates prompt for ollama
+    private String buildPrompt(String title, String description) {
+        return String.format(
+            "Summarize this GitHub issue into a bug report format. " +
+            "Extract the bug type, estimated line number if mentioned, description, and filename if mentioned.\n\n" +
+            "Title: %s\n" +
+            "Description: %s\n\n" +
+            "Return a JSON object with the following format:\n" +
+            "{\n" +
+            "  \"bug_type\": \"[type of bug]\",\n" +
+            "  \"line\": [line number or -1 if not specified],\n" +
+            "  \"description\": \"[brief description]\",\n" +
+            "  \"filename\": \"[filename or empty string if not specified]\"\n" +
+            "}\n" +
+            "Only return the JSON object, no other text.",
+            title, description
+        );
     }
 }
-
@@ -0,0 +1,253 @@
+package com.ecs160.hw2.application.service;
+
+import com.ecs160.hw2.application.model.BugIssue;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+// reads bug issues out of llm output and microservice requests with gson's streaming JsonReader,
+// field by field straight into BugIssue, without building a JsonObject first. tolerates what
+// small models write: prose around the json, "None" or null for missing values, line numbers
+// as strings and values of the wrong type. none of these costs an exception; only malformed
+// json does.
+// a missing or unusable bug_type is "Unknown", line -1, and description and filename empty
+public final class BugIssueCodec {
+    // not an int, as far as parseInt is concerned
+    private static final int INVALID = Integer.MIN_VALUE;
+
+    private BugIssueCodec() {
+    }
+
+    // the first json object in the text that parses, or null if there is none
+    public static BugIssue parse(String text) {
+        if (text == null) {
+            return null;
+        }
+        for (int start = text.indexOf('{'); start >= 0; start = text.indexOf('{', start + 1)) {
+            BugIssue bug = parseAt(text, start);
+            if (bug != null) {
+                return bug;
+            }
+        }
+        return null;
+    }
+
+    // the text as one json object, or null if it is malformed
+    public static BugIssue parseObject(String json) {
+        return parseAt(json, 0);
+    }
+
+    // the first json array in the text that parses and holds objects (or nothing), with its
+    // objects as bug issues and anything else in it skipped, or null if there is none. an array
+    // of other values, like a [1] in prose, is not the answer
+    public static List<BugIssue> parseAll(String text) {
+        if (text == null) {
+            return null;
+        }
+        for (int start = text.indexOf('['); start >= 0; start = text.indexOf('[', start + 1)) {
+            try {
+                List<BugIssue> bugs = new ArrayList<>();
+                boolean otherValues = false;
+                JsonReader in = reader(text, start);
+                in.beginArray();
+                while (in.hasNext()) {
+                    if (in.peek() == JsonToken.BEGIN_OBJECT) {
+                        bugs.add(read(in));
+                    } else {
+                        in.skipValue();
+                        otherValues = true;
+                    }
+                }
+                in.endArray();
+                if (!bugs.isEmpty() || !otherValues) {
+                    return bugs;
+                }
+            } catch (IOException | IllegalStateException e) {
+                // prose or malformed json, so tries the next bracket
+            }
+        }
+        return null;
+    }
+
+    // reads the object at the reader's position
+    public static BugIssue read(JsonReader in) throws IOException {
+        BugIssue bug = new BugIssue();
+        bug.setBug_type("Unknown");
+        bug.setLine(-1);
+        bug.setDescription("");
+        bug.setFilename("");
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "bug_type":
+                    String type = readString(in);
+                    bug.setBug_type(type != null ? type : "Unknown");
+                    break;
+                case "line":
+                    bug.setLine(readLine(in));
+                    break;
+                case "description":
+                    String description = readString(in);
+                    bug.setDescription(description != null ? description : "");
+                    break;
+                case "filename":
+                    String filename = readString(in);
+                    bug.setFilename(filename != null && !isNone(filename) ? filename : "");
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return bug;
+    }
+
+    // reads the array at the reader's position, skipping elements that are not objects
+    public static List<BugIssue> readArray(JsonReader in) throws IOException {
+        List<BugIssue> bugs = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            if (in.peek() == JsonToken.BEGIN_OBJECT) {
+                bugs.add(read(in));
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endArray();
+        return bugs;
+    }
+
+    // for objects that are already parsed, such as ones carrying fields besides the bug's
+    public static BugIssue fromJson(JsonObject json) {
+        BugIssue bug = new BugIssue();
+        String type = string(json.get("bug_type"));
+        bug.setBug_type(type != null ? type : "Unknown");
+        JsonElement line = json.get("line");
+        bug.setLine(line != null && line.isJsonPrimitive() ? lineOf(line.getAsJsonPrimitive()) : -1);
+        String description = string(json.get("description"));
+        bug.setDescription(description != null ? description : "");
+        String filename = string(json.get("filename"));
+        bug.setFilename(filename != null && !isNone(filename) ? filename : "");
+        return bug;
+    }
+
+    // a lenient reader, so single quotes and unquoted names are read too
+    public static JsonReader reader(String text, int start) {
+        StringReader source = new StringReader(text);
+        try {
+            source.skip(start);
+        } catch (IOException e) {
+            // a StringReader does not fail
+        }
+        JsonReader reader = new JsonReader(source);
+        reader.setStrictness(Strictness.LENIENT);
+        return reader;
+    }
+
+    private static BugIssue parseAt(String text, int start) {
+        try {
+            return read(reader(text, start));
+        } catch (IOException | IllegalStateException e) {
+            return null;
+        }
+    }
+
+    // a scalar as a string, or null for json null, objects and arrays
+    private static String readString(JsonReader in) throws IOException {
+        switch (in.peek()) {
+            case STRING:
+            case NUMBER:
+                return in.nextString();
+            case BOOLEAN:
+                return Boolean.toString(in.nextBoolean());
+            case NULL:
+                in.nextNull();
+                return null;
+            default:
+                in.skipValue();
+                return null;
+        }
+    }
+
+    // a line number, written as a number or a string; anything else is -1
+    private static int readLine(JsonReader in) throws IOException {
+        switch (in.peek()) {
+            case NUMBER:
+                return numberToLine(in.nextString());
+            case STRING:
+                return stringToLine(in.nextString());
+            default:
+                in.skipValue();
+                return -1;
+        }
+    }
+
+    private static String string(JsonElement element) {
+        return element != null && element.isJsonPrimitive() ? element.getAsString() : null;
+    }
+
+    private static int lineOf(JsonPrimitive line) {
+        if (line.isNumber()) {
+            return numberToLine(line.getAsString());
+        }
+        return line.isString() ? stringToLine(line.getAsString()) : -1;
+    }
+
+    // a json number, with any fraction dropped
+    private static int numberToLine(String number) {
+        int line = parseInt(number);
+        if (line != INVALID) {
+            return line;
+        }
+        try {
+            return (int) Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // a quoted line number; "None", "12.5" and the like are -1
+    private static int stringToLine(String text) {
+        String trimmed = text.trim();
+        if (isNone(trimmed) || trimmed.isEmpty() || trimmed.equals("-")) {
+            return -1;
+        }
+        int line = parseInt(trimmed);
+        return line != INVALID ? line : -1;
+    }
+
+    private static boolean isNone(String value) {
+        return value.equalsIgnoreCase("None") || value.equalsIgnoreCase("null");
+    }
+
+    // the string as an int if it is a plain decimal integer of up to nine digits, else INVALID
+    private static int parseInt(String text) {
+        int length = text.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) {
+            negative = text.charAt(0) == '-';
+            i = 1;
+        }
+        if (i == length || length - i > 9) {
+            return INVALID;
+        }
+        int value = 0;
+        for (; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return INVALID;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+}
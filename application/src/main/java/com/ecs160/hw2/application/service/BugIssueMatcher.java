@@ -0,0 +1,157 @@
+package com.ecs160.hw2.application.service;
+
+import com.ecs160.hw2.application.model.BugIssue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// finds the bugs of one list that also appear in another without an llm: two bugs match when
+// they have the same type and at least two words longer than three characters of the first
+// bug's description also appear in the second's. a word repeated in the first description
+// counts each time.
+// the second list is tokenized once into an inverted index from (type, word) to the bugs whose
+// description has that word, so each bug of the first list only scores the bugs it shares a
+// word with instead of comparing every pair word by word
+public class BugIssueMatcher {
+    // words this short never count towards a match
+    private static final int MIN_WORD_LENGTH = 4;
+    private static final int MIN_COMMON_WORDS = 2;
+
+    private final Map<String, Integer> tokenIds = new HashMap<>();
+    private final Map<Long, int[]> postings = new HashMap<>();
+    // scores of the current query, and which of them are non-zero so they can be reset
+    private final int[] scores;
+    private final int[] touched;
+
+    public BugIssueMatcher(List<BugIssue> bugs) {
+        this.scores = new int[bugs.size()];
+        this.touched = new int[bugs.size()];
+        Map<Long, List<Integer>> building = new HashMap<>();
+        for (int i = 0; i < bugs.size(); i++) {
+            int type = intern(typeOf(bugs.get(i)));
+            for (String word : words(bugs.get(i))) {
+                List<Integer> bugsWithWord = building.computeIfAbsent(key(type, intern(word)), k -> new ArrayList<>());
+                // a description with the word twice is still one posting
+                if (bugsWithWord.isEmpty() || bugsWithWord.get(bugsWithWord.size() - 1) != i) {
+                    bugsWithWord.add(i);
+                }
+            }
+        }
+        for (Map.Entry<Long, List<Integer>> entry : building.entrySet()) {
+            int[] list = new int[entry.getValue().size()];
+            for (int i = 0; i < list.length; i++) {
+                list[i] = entry.getValue().get(i);
+            }
+            postings.put(entry.getKey(), list);
+        }
+    }
+
+    // the bugs of list1 that match some bug of list2, in list1 order
+    public static List<BugIssue> findCommonBugs(List<BugIssue> list1, List<BugIssue> list2) {
+        BugIssueMatcher matcher = new BugIssueMatcher(list2);
+        List<BugIssue> common = new ArrayList<>();
+        for (BugIssue bug : list1) {
+            if (matcher.hasMatch(bug)) {
+                common.add(bug);
+            }
+        }
+        return common;
+    }
+
+    // the original matcher, comparing every pair word by word, kept to check the index against
+    public static List<BugIssue> findCommonBugsPairwise(List<BugIssue> list1, List<BugIssue> list2) {
+        List<BugIssue> common = new ArrayList<>();
+
+        for (BugIssue bug1 : list1) {
+            for (BugIssue bug2 : list2) {
+                // simple similarity check: same bug type and similar description
+                if (bug1.getBug_type().equalsIgnoreCase(bug2.getBug_type())) {
+                    String desc1 = bug1.getDescription().toLowerCase();
+                    String desc2 = bug2.getDescription().toLowerCase();
+
+                    // checks if descriptions share significant words
+                    String[] words1 = desc1.split("\\s+");
+                    String[] words2 = desc2.split("\\s+");
+                    int commonWords = 0;
+                    for (String word1 : words1) {
+                        if (word1.length() > 3) { // Only check words longer than 3 chars
+                            for (String word2 : words2) {
+                                if (word1.equals(word2)) {
+                                    commonWords++;
+                                    break;
+                                }
+                            }
+                        }
+                    }
+
+                    // considers them common if at least 2 significant words match
+                    if (commonWords >= 2) {
+                        common.add(bug1);
+                        break;
+                    }
+                }
+            }
+        }
+
+        return common;
+    }
+
+    // whether the bug matches any indexed bug. not thread-safe, since queries share the score table
+    public boolean hasMatch(BugIssue bug) {
+        Integer type = tokenIds.get(typeOf(bug));
+        if (type == null) {
+            return false;
+        }
+        int touchedCount = 0;
+        boolean matched = false;
+        for (String word : words(bug)) {
+            Integer token = tokenIds.get(word);
+            int[] bugsWithWord = token != null ? postings.get(key(type, token)) : null;
+            if (bugsWithWord == null) {
+                continue;
+            }
+            for (int other : bugsWithWord) {
+                if (scores[other]++ == 0) {
+                    touched[touchedCount++] = other;
+                }
+                if (scores[other] >= MIN_COMMON_WORDS) {
+                    matched = true;
+                    break;
+                }
+            }
+            if (matched) {
+                break;
+            }
+        }
+        for (int i = 0; i < touchedCount; i++) {
+            scores[touched[i]] = 0;
+        }
+        return matched;
+    }
+
+    private int intern(String token) {
+        return tokenIds.computeIfAbsent(token, t -> tokenIds.size());
+    }
+
+    // types are compared ignoring case, and kept apart from words by a prefix no word can have
+    private static String typeOf(BugIssue bug) {
+        return " " + bug.getBug_type().toLowerCase();
+    }
+
+    // the description's words that can count towards a match, repeats included
+    private static List<String> words(BugIssue bug) {
+        List<String> words = new ArrayList<>();
+        for (String word : bug.getDescription().toLowerCase().split("\\s+")) {
+            if (word.length() >= MIN_WORD_LENGTH) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    private static long key(int type, int token) {
+        return ((long) type << 32) | (token & 0xffffffffL);
+    }
+}
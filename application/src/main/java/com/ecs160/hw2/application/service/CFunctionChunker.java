@@ -0,0 +1,199 @@
+package com.ecs160.hw2.application.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// splits c source into chunks that fit an llm prompt, cutting only between top-level
+// definitions where it can, so that each function is analyzed whole. every line is prefixed
+// with its line number in the file, and each chunk after the first repeats the last few lines
+// of the one before it, so that a bug on a cut still has its context in some chunk
+public class CFunctionChunker {
+    private final int maxChars;
+    private final int overlapLines;
+
+    // maxChars is the size of a chunk's numbered text, not counting the overlap; a single line
+    // longer than that still makes a chunk of its own
+    public CFunctionChunker(int maxChars, int overlapLines) {
+        this.maxChars = maxChars;
+        this.overlapLines = overlapLines;
+    }
+
+    public List<Chunk> chunk(String source) {
+        String[] lines = source.split("\r?\n", -1);
+        if (lines.length > 1 && lines[lines.length - 1].isEmpty()) {
+            String[] trimmed = new String[lines.length - 1];
+            System.arraycopy(lines, 0, trimmed, 0, trimmed.length);
+            lines = trimmed;
+        }
+        int[] lengths = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            lengths[i] = numbered(i, lines[i]).length();
+        }
+
+        // greedily packs whole top-level units, and splits between lines any unit too big for a chunk
+        List<Chunk> chunks = new ArrayList<>();
+        int start = -1;
+        int used = 0;
+        for (int[] unit : units(lines)) {
+            int unitChars = sum(lengths, unit[0], unit[1]);
+            if (start >= 0 && used + unitChars > maxChars) {
+                chunks.add(chunk(lines, start, unit[0] - 1));
+                start = -1;
+            }
+            if (start < 0) {
+                start = unit[0];
+                used = 0;
+            }
+            if (used + unitChars <= maxChars) {
+                used += unitChars;
+                continue;
+            }
+            for (int line = unit[0]; line <= unit[1]; line++) {
+                if (line > start && used + lengths[line] > maxChars) {
+                    chunks.add(chunk(lines, start, line - 1));
+                    start = line;
+                    used = 0;
+                }
+                used += lengths[line];
+            }
+        }
+        if (start >= 0) {
+            chunks.add(chunk(lines, start, lines.length - 1));
+        }
+        return chunks;
+    }
+
+    // ranges of lines, 0-based and inclusive, each ending where a top-level definition or
+    // declaration does: at a closing brace back at depth 0 or a semicolon outside any braces.
+    // comments, string and char literals and preprocessor lines are skipped when counting braces
+    private static List<int[]> units(String[] lines) {
+        List<int[]> units = new ArrayList<>();
+        int unitStart = 0;
+        int depth = 0;
+        boolean inComment = false;
+        boolean continued = false;
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            if (continued || (depth == 0 && !inComment && line.trim().startsWith("#"))) {
+                continued = line.endsWith("\\");
+                continue;
+            }
+            boolean closed = false;
+            char last = 0;
+            for (int j = 0; j < line.length(); j++) {
+                char c = line.charAt(j);
+                char next = j + 1 < line.length() ? line.charAt(j + 1) : 0;
+                if (inComment) {
+                    if (c == '*' && next == '/') {
+                        inComment = false;
+                        j++;
+                    }
+                    continue;
+                }
+                if (c == '/' && next == '/') {
+                    break;
+                }
+                if (c == '/' && next == '*') {
+                    inComment = true;
+                    j++;
+                    continue;
+                }
+                if (c == '"' || c == '\'') {
+                    j = skipLiteral(line, j);
+                    last = c;
+                    continue;
+                }
+                if (c == '{') {
+                    depth++;
+                } else if (c == '}' && depth > 0) {
+                    depth--;
+                    closed |= depth == 0;
+                }
+                if (!Character.isWhitespace(c)) {
+                    last = c;
+                }
+            }
+            if (depth == 0 && !inComment && (closed || last == ';')) {
+                units.add(new int[] {unitStart, i});
+                unitStart = i + 1;
+            }
+        }
+        if (unitStart < lines.length) {
+            units.add(new int[] {unitStart, lines.length - 1});
+        }
+        return units;
+    }
+
+    // index of the quote closing the literal that opens at start, or the end of the line
+    private static int skipLiteral(String line, int start) {
+        char quote = line.charAt(start);
+        for (int j = start + 1; j < line.length(); j++) {
+            char c = line.charAt(j);
+            if (c == '\\') {
+                j++;
+            } else if (c == quote) {
+                return j;
+            }
+        }
+        return line.length();
+    }
+
+    private Chunk chunk(String[] lines, int start, int end) {
+        int first = Math.max(0, start - overlapLines);
+        StringBuilder text = new StringBuilder();
+        for (int i = first; i <= end; i++) {
+            text.append(numbered(i, lines[i])).append('\n');
+        }
+        return new Chunk(first + 1, end + 1, text.toString());
+    }
+
+    private static String numbered(int index, String line) {
+        return (index + 1) + ": " + line;
+    }
+
+    private static int sum(int[] lengths, int from, int to) {
+        int total = 0;
+        for (int i = from; i <= to; i++) {
+            total += lengths[i];
+        }
+        return total;
+    }
+
+    // a run of numbered lines, firstLine to lastLine of the file (1-based, inclusive)
+    public static class Chunk {
+        private final int firstLine;
+        private final int lastLine;
+        private final String text;
+
+        Chunk(int firstLine, int lastLine, String text) {
+            this.firstLine = firstLine;
+            this.lastLine = lastLine;
+            this.text = text;
+        }
+
+        public int getFirstLine() {
+            return firstLine;
+        }
+
+        public int getLastLine() {
+            return lastLine;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        // maps a line number the llm reported for this chunk to a line of the file. models
+        // mostly quote the prefixes, but some count from the top of the chunk instead;
+        // anything that fits neither reading is unknown (-1)
+        public int toFileLine(int reported) {
+            if (reported >= firstLine && reported <= lastLine) {
+                return reported;
+            }
+            if (reported >= 1 && reported <= lastLine - firstLine + 1) {
+                return firstLine + reported - 1;
+            }
+            return -1;
+        }
+    }
+}
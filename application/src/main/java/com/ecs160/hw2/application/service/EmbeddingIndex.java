@@ -0,0 +1,101 @@
+package com.ecs160.hw2.application.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// brute-force cosine similarity search over a fixed set of embedding vectors. the vectors are
+// normalized once and stored back to back in one float array, so a search is a single pass of
+// dot products over contiguous memory
+public class EmbeddingIndex {
+    private final float[] vectors;
+    private final int dimensions;
+    private final int size;
+
+    // all vectors must have the same number of dimensions
+    public EmbeddingIndex(List<float[]> vectors) {
+        this.size = vectors.size();
+        this.dimensions = size > 0 ? vectors.get(0).length : 0;
+        this.vectors = new float[size * dimensions];
+        for (int i = 0; i < size; i++) {
+            float[] vector = vectors.get(i);
+            if (vector.length != dimensions) {
+                throw new IllegalArgumentException("Vector " + i + " has " + vector.length +
+                    " dimensions, expected " + dimensions);
+            }
+            float norm = (float) Math.sqrt(dot(vector, 0, vector, 0, dimensions));
+            for (int d = 0; d < dimensions; d++) {
+                this.vectors[i * dimensions + d] = norm > 0 ? vector[d] / norm : 0;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // the at most limit vectors whose cosine similarity to the query is at least threshold,
+    // most similar first
+    public List<Match> search(float[] query, float threshold, int limit) {
+        if (query.length != dimensions) {
+            throw new IllegalArgumentException("Query has " + query.length + " dimensions, expected " + dimensions);
+        }
+        float norm = (float) Math.sqrt(dot(query, 0, query, 0, dimensions));
+        if (norm == 0 || limit <= 0) {
+            return new ArrayList<>();
+        }
+        // keeps the best matches so far, worst on top
+        PriorityQueue<Match> best = new PriorityQueue<>(limit + 1, (a, b) -> Float.compare(a.score, b.score));
+        for (int i = 0; i < size; i++) {
+            float score = dot(query, 0, vectors, i * dimensions, dimensions) / norm;
+            if (score >= threshold && (best.size() < limit || score > best.peek().score)) {
+                best.add(new Match(i, score));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+        List<Match> matches = new ArrayList<>(best);
+        matches.sort((a, b) -> Float.compare(b.score, a.score));
+        return matches;
+    }
+
+    // dot product kernel. four independent accumulators let the cpu overlap the multiply-adds
+    // instead of waiting on one running sum, which the jit will not reorder for floats
+    static float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float s0 = 0;
+        float s1 = 0;
+        float s2 = 0;
+        float s3 = 0;
+        int i = 0;
+        for (; i + 3 < length; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    // an indexed vector and its cosine similarity to the query
+    public static class Match {
+        private final int index;
+        private final float score;
+
+        Match(int index, float score) {
+            this.index = index;
+            this.score = score;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public float getScore() {
+            return score;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.ecs160.hw2.application.service;
+
+import com.ecs160.hw2.application.model.BugIssue;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+// incremental scanner that picks complete json objects out of llm output as it is generated
+// text is fed in arbitrary chunks; each outermost object is parsed and passed on as soon as its
+// closing brace arrives. prose around the json and a leading <think> block are skipped
+public class JsonObjectScanner {
+    private static final String THINK_OPEN = "<think>";
+    private static final String THINK_CLOSE = "</think>";
+
+    // parses the text of a complete object and passes it on: null if it is not a json object,
+    // else whether to keep scanning
+    private final Function<String, Boolean> onText;
+    // text of the object being scanned, from its opening brace
+    private final StringBuilder current = new StringBuilder();
+    // leading non-whitespace text, held back until it is known whether it opens a <think> block
+    private final StringBuilder leading = new StringBuilder();
+    private boolean scanning;
+    private boolean thinking;
+    private int thinkCloseMatched;
+    private int objectDepth;
+    private int arrayDepth;
+    private int arrayObjects;
+    private boolean arrayHasOtherValues;
+    private boolean inString;
+    private boolean escaped;
+    private boolean stopped;
+    private boolean arrayClosed;
+
+    // onObject returns false once it has what it needs, which stops the scan
+    public JsonObjectScanner(Predicate<JsonObject> onObject) {
+        this.onText = text -> {
+            JsonObject object;
+            try {
+                object = JsonParser.parseString(text).getAsJsonObject();
+            } catch (JsonParseException | IllegalStateException e) {
+                return null;
+            }
+            return onObject.test(object);
+        };
+    }
+
+    private JsonObjectScanner(Function<String, Boolean> onText) {
+        this.onText = onText;
+    }
+
+    // a scanner that reads each object straight into a BugIssue with BugIssueCodec
+    public static JsonObjectScanner forBugIssues(Predicate<BugIssue> onBug) {
+        Function<String, Boolean> onText = text -> {
+            BugIssue bug = BugIssueCodec.parseObject(text);
+            return bug != null ? onBug.test(bug) : null;
+        };
+        return new JsonObjectScanner(onText);
+    }
+
+    // scans the next chunk of output, returning false once there is no point in reading more:
+    // onObject asked to stop, or a top-level array of objects (or an empty one) has closed
+    public boolean feed(CharSequence chunk) {
+        for (int i = 0; i < chunk.length() && !isDone(); i++) {
+            char c = chunk.charAt(i);
+            if (scanning) {
+                scan(c);
+            } else if (thinking) {
+                skipThink(c);
+            } else {
+                lead(c);
+            }
+        }
+        return !isDone();
+    }
+
+    public boolean isDone() {
+        return stopped || arrayClosed;
+    }
+
+    // true once a top-level json array has been scanned to its closing bracket
+    public boolean isArrayClosed() {
+        return arrayClosed;
+    }
+
+    private void lead(char c) {
+        if (Character.isWhitespace(c) && leading.length() == 0) {
+            return;
+        }
+        leading.append(c);
+        if (leading.length() == THINK_OPEN.length() && THINK_OPEN.contentEquals(leading)) {
+            thinking = true;
+            leading.setLength(0);
+        } else if (!THINK_OPEN.startsWith(leading.toString())) {
+            // not a think block after all, so the held back text is output
+            scanning = true;
+            String held = leading.toString();
+            leading.setLength(0);
+            for (int i = 0; i < held.length() && !isDone(); i++) {
+                scan(held.charAt(i));
+            }
+        }
+    }
+
+    private void skipThink(char c) {
+        if (c == THINK_CLOSE.charAt(thinkCloseMatched)) {
+            thinkCloseMatched++;
+            if (thinkCloseMatched == THINK_CLOSE.length()) {
+                thinking = false;
+                scanning = true;
+            }
+        } else {
+            thinkCloseMatched = c == THINK_CLOSE.charAt(0) ? 1 : 0;
+        }
+    }
+
+    private void scan(char c) {
+        if (objectDepth > 0) {
+            scanObject(c);
+            return;
+        }
+        // outside objects only brackets matter, so quotes and apostrophes in prose are harmless
+        if (c == '{') {
+            objectDepth = 1;
+            current.append(c);
+        } else if (c == '[') {
+            arrayDepth++;
+            if (arrayDepth == 1) {
+                arrayObjects = 0;
+                arrayHasOtherValues = false;
+            }
+        } else if (c == ']' && arrayDepth > 0) {
+            arrayDepth--;
+            // an array of other values, like a [1] in prose, is not the answer
+            if (arrayDepth == 0 && (arrayObjects > 0 || !arrayHasOtherValues)) {
+                arrayClosed = true;
+            }
+        } else if (arrayDepth > 0 && c != ',' && !Character.isWhitespace(c)) {
+            arrayHasOtherValues = true;
+        }
+    }
+
+    private void scanObject(char c) {
+        current.append(c);
+        if (inString) {
+            if (escaped) {
+                escaped = false;
+            } else if (c == '\\') {
+                escaped = true;
+            } else if (c == '"') {
+                inString = false;
+            }
+            return;
+        }
+        if (c == '"') {
+            inString = true;
+        } else if (c == '{') {
+            objectDepth++;
+        } else if (c == '}') {
+            objectDepth--;
+            if (objectDepth == 0) {
+                String text = current.toString();
+                current.setLength(0);
+                emit(text);
+            }
+        }
+    }
+
+    private void emit(String text) {
+        Boolean more = onText.apply(text);
+        if (more == null) {
+            // braces in prose or a malformed object; skips it and keeps scanning
+            if (arrayDepth > 0) {
+                arrayHasOtherValues = true;
+            }
+            return;
+        }
+        if (arrayDepth > 0) {
+            arrayObjects++;
+        }
+        if (!more) {
+            stopped = true;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.ecs160.hw2.application.service;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// admits llm requests to ollama at most maxConcurrency at a time, so that the microservices queue
+// here in a known order instead of piling up inside ollama.
+// waiting requests are served by priority class first. within a class, jobs take turns one
+// request at a time, so one large job cannot hold back the others queued behind it.
+// a request still queued when its deadline passes is dropped with a QueueDeadlineExceededException
+public class LlmScheduler {
+    // interactive requests, like summarizing an issue, go before normal ones, which go before batch
+    // work like scanning files for bugs
+    public enum Priority { INTERACTIVE, NORMAL, BATCH }
+
+    private static final Duration DEFAULT_DEADLINE = Duration.ofSeconds(Long.getLong("ollama.queueDeadline.seconds", 1800));
+
+    private final int maxConcurrency;
+    private final Duration defaultDeadline;
+    // per priority, the jobs with queued requests in turn order
+    private final Map<String, ArrayDeque<Task<?>>>[] queues;
+    private final ScheduledThreadPoolExecutor deadlines;
+    private int running;
+    private int queued;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder waitCount = new LongAdder();
+    private final LongAdder waitSumNanos = new LongAdder();
+    private final AtomicLong waitMaxNanos = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public LlmScheduler(int maxConcurrency, Duration defaultDeadline) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.defaultDeadline = defaultDeadline;
+        this.queues = new Map[Priority.values().length];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new LinkedHashMap<>();
+        }
+        this.deadlines = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "llm-scheduler-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // a request's timer is cancelled once it starts, and should not hold on to it until then
+        this.deadlines.setRemoveOnCancelPolicy(true);
+    }
+
+    // the scheduler every OllamaClient in this process goes through. its concurrency matches
+    // ollama's: the ollama.numParallel system property, else the OLLAMA_NUM_PARALLEL environment
+    // variable, else 1
+    public static LlmScheduler shared() {
+        return Shared.INSTANCE;
+    }
+
+    // the concurrency shared() is created with, read without creating it
+    public static int configuredConcurrency() {
+        String configured = System.getProperty("ollama.numParallel", System.getenv("OLLAMA_NUM_PARALLEL"));
+        try {
+            return configured != null ? Math.max(1, Integer.parseInt(configured.trim())) : 1;
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    // queues a request under the default deadline; see submit(priority, job, deadline, request)
+    public <T> CompletableFuture<T> submit(Priority priority, String job, Supplier<CompletableFuture<T>> request) {
+        return submit(priority, job, defaultDeadline, request);
+    }
+
+    // queues a request, which is started by calling request once it is admitted. the returned future
+    // completes with the request's result, or with a QueueDeadlineExceededException if the request
+    // was still waiting after the deadline. cancelling it while queued withdraws the request
+    public <T> CompletableFuture<T> submit(Priority priority, String job, Duration deadline,
+                                           Supplier<CompletableFuture<T>> request) {
+        Task<T> task = new Task<>(priority, job, request);
+        synchronized (this) {
+            queues[priority.ordinal()].computeIfAbsent(job, key -> new ArrayDeque<>()).add(task);
+            queued++;
+        }
+        task.expiry = deadlines.schedule(() -> expire(task, deadline), deadline.toNanos(), TimeUnit.NANOSECONDS);
+        // the request may have started, or been cancelled, before its timer was set
+        if (task.started || task.result.isDone()) {
+            task.expiry.cancel(false);
+        }
+        task.result.whenComplete((result, error) -> task.cancelExpiry());
+        dispatch();
+        return task.result;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queued;
+    }
+
+    public synchronized int getQueueDepth(Priority priority) {
+        int depth = 0;
+        for (ArrayDeque<Task<?>> tasks : queues[priority.ordinal()].values()) {
+            depth += tasks.size();
+        }
+        return depth;
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    // requests dropped because their deadline passed while queued
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getMaxQueueWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitMaxNanos.get());
+    }
+
+    public double getMeanQueueWaitMillis() {
+        long count = waitCount.sum();
+        return count == 0 ? 0 : waitSumNanos.sum() / 1e6 / count;
+    }
+
+    // the scheduler's metrics in the prometheus text format, for MicroserviceLauncher.addMetricsSource
+    public String renderMetrics() {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP llm_scheduler_queue_depth LLM requests waiting for a slot.\n");
+        out.append("# TYPE llm_scheduler_queue_depth gauge\n");
+        for (Priority priority : Priority.values()) {
+            out.append("llm_scheduler_queue_depth{priority=\"").append(priority.name().toLowerCase())
+                .append("\"} ").append(getQueueDepth(priority)).append('\n');
+        }
+        metric(out, "llm_scheduler_running", "LLM requests currently sent to ollama.", "gauge", getRunning());
+        metric(out, "llm_scheduler_max_concurrency", "LLM requests allowed at once.", "gauge", maxConcurrency);
+        metric(out, "llm_scheduler_completed_total", "LLM requests that finished.", "counter", getCompleted());
+        metric(out, "llm_scheduler_dropped_total", "LLM requests dropped at their deadline.", "counter", getDropped());
+        out.append("# HELP llm_scheduler_queue_wait_seconds Time LLM requests waited for a slot.\n");
+        out.append("# TYPE llm_scheduler_queue_wait_seconds summary\n");
+        out.append("llm_scheduler_queue_wait_seconds_sum ").append(waitSumNanos.sum() / 1e9).append('\n');
+        out.append("llm_scheduler_queue_wait_seconds_count ").append(waitCount.sum()).append('\n');
+        metric(out, "llm_scheduler_queue_wait_max_seconds", "Longest time an LLM request waited for a slot.",
+            "gauge", waitMaxNanos.get() / 1e9);
+        return out.toString();
+    }
+
+    public String stats() {
+        return String.format("%d completed, %d dropped, %d queued, mean wait %.0f ms, max wait %d ms",
+            getCompleted(), getDropped(), getQueueDepth(), getMeanQueueWaitMillis(), getMaxQueueWaitMillis());
+    }
+
+    // starts queued requests while there are free slots
+    private void dispatch() {
+        while (true) {
+            Task<?> task;
+            synchronized (this) {
+                if (running >= maxConcurrency) {
+                    return;
+                }
+                task = next();
+                if (task == null) {
+                    return;
+                }
+                running++;
+            }
+            start(task);
+        }
+    }
+
+    // takes the next live request: highest priority first, and within it the job whose turn it is
+    private Task<?> next() {
+        for (Map<String, ArrayDeque<Task<?>>> jobs : queues) {
+            while (!jobs.isEmpty()) {
+                Map.Entry<String, ArrayDeque<Task<?>>> turn = jobs.entrySet().iterator().next();
+                ArrayDeque<Task<?>> tasks = turn.getValue();
+                Task<?> task = tasks.poll();
+                // the job goes to the back of the line, or leaves it once it has nothing queued
+                jobs.remove(turn.getKey());
+                if (!tasks.isEmpty()) {
+                    jobs.put(task.job, tasks);
+                }
+                queued--;
+                // a request cancelled while queued is skipped
+                if (!task.result.isDone()) {
+                    return task;
+                }
+            }
+        }
+        return null;
+    }
+
+    private <T> void start(Task<T> task) {
+        task.started = true;
+        task.cancelExpiry();
+        long waited = System.nanoTime() - task.queuedAt;
+        waitCount.increment();
+        waitSumNanos.add(waited);
+        waitMaxNanos.accumulateAndGet(waited, Math::max);
+
+        CompletableFuture<T> request;
+        try {
+            request = task.request.get();
+        } catch (RuntimeException e) {
+            request = CompletableFuture.failedFuture(e);
+        }
+        request.whenComplete((result, error) -> {
+            synchronized (this) {
+                running--;
+            }
+            completed.increment();
+            if (error != null) {
+                task.result.completeExceptionally(error);
+            } else {
+                task.result.complete(result);
+            }
+            dispatch();
+        });
+    }
+
+    private void expire(Task<?> task, Duration deadline) {
+        synchronized (this) {
+            ArrayDeque<Task<?>> tasks = queues[task.priority.ordinal()].get(task.job);
+            if (tasks == null || !tasks.remove(task)) {
+                // already started, finished or withdrawn
+                return;
+            }
+            queued--;
+            if (tasks.isEmpty()) {
+                queues[task.priority.ordinal()].remove(task.job);
+            }
+        }
+        dropped.increment();
+        task.result.completeExceptionally(new QueueDeadlineExceededException(
+            "LLM request dropped after waiting " + deadline.toMillis() + " ms in the " 
+                + task.priority.name().toLowerCase() + " queue"));
+    }
+
+    private static void metric(StringBuilder out, String name, String help, String type, Number value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static class Task<T> {
+        final Priority priority;
+        final String job;
+        final Supplier<CompletableFuture<T>> request;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final long queuedAt = System.nanoTime();
+        volatile boolean started;
+        volatile ScheduledFuture<?> expiry;
+
+        Task(Priority priority, String job, Supplier<CompletableFuture<T>> request) {
+            this.priority = priority;
+            this.job = job;
+            this.request = request;
+        }
+
+        void cancelExpiry() {
+            ScheduledFuture<?> timer = expiry;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+    }
+
+    private static class Shared {
+        static final LlmScheduler INSTANCE = new LlmScheduler(configuredConcurrency(), DEFAULT_DEADLINE);
+    }
+}
@@ -1,65 +1,654 @@
 package com.ecs160.hw2.application.service;
 
+import com.ecs160.hw2.application.model.BugIssue;
+import com.ecs160.hw2.microservice.Deadline;
+import com.ecs160.hw2.microservice.DeadlineExceededException;
+import com.ecs160.hw2.microservice.Span;
+import com.ecs160.hw2.microservice.Tracer;
 import com.google.gson.Gson;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 
-import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 // client class for interacting with ollama api
+// all clients share one HttpClient, so connections to ollama are kept alive and reused, and
+// every request that is not answered from the cache waits its turn in an LlmScheduler.
+// a generation is bounded by the caller's Deadline, if there is one. failures before any output
+// are retried, and a generation whose first token is slower than usual is hedged by sending it
+// to a second server or model as well; both are limited by a RetryBudget so that they cannot
+// pile load onto an ollama that is already struggling
 public class OllamaClient {
-    private static final String OLLAMA_URL = "http://localhost:11434/api/generate";
+    private static final URI OLLAMA_URI = URI.create(System.getProperty("ollama.url", "http://localhost:11434") + "/api/generate");
     private static final String MODEL = "deepcoder:1.5b";
+    private static final String EMBEDDING_MODEL = System.getProperty("ollama.embeddingModel", "nomic-embed-text");
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    // time allowed until ollama starts responding, which for a non-streaming request is the whole generation
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(Long.getLong("ollama.timeout.seconds", 600));
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int MAX_ATTEMPTS = Integer.getInteger("ollama.retry.maxAttempts", 3);
+    private static final Duration RETRY_BACKOFF = Duration.ofMillis(250);
+    // a generation is hedged once its first token is later than this percentile of recent ones,
+    // or, until there are enough of them, later than the hedge's initial delay
+    private static final double HEDGE_PERCENTILE = Double.parseDouble(System.getProperty("ollama.hedge.percentile", "95"));
+    private static final Duration HEDGE_DELAY = Duration.ofMillis(Long.getLong("ollama.hedge.delay.ms", 10_000));
+    // generation options sent with every request; part of the cache key, so changing them
+    // does not serve responses generated under the old ones
+    private static final JsonObject OPTIONS = new JsonObject();
+    // full generations and those cut short after the json are cached under different keys
+    private static final String FULL = "full";
+    private static final String UNTIL_JSON = "until-json";
     private Gson gson;
+    private final PromptCache cache;
+    private final URI uri;
+    private final LlmScheduler scheduler;
+    private final LlmScheduler.Priority priority;
+    private final Hedge hedge;
+    private final RetryBudget retryBudget;
+    // first token latencies of non-streaming and streaming generations, which differ a lot
+    private final FirstTokenLatency[] latencies;
 
     public OllamaClient() {
+        this(PromptCache.shared());
+    }
+
+    public OllamaClient(PromptCache cache) {
+        this(cache, OLLAMA_URI);
+    }
+
+    // uri of the generate api, for an ollama server other than the configured one
+    public OllamaClient(PromptCache cache, URI uri) {
+        this(cache, uri, LlmScheduler.shared(), LlmScheduler.Priority.NORMAL);
+    }
+
+    // hedges to the server given by the ollama.hedge.url property and the model given by
+    // ollama.hedge.model if either is set, each defaulting to this client's
+    public OllamaClient(PromptCache cache, URI uri, LlmScheduler scheduler, LlmScheduler.Priority priority) {
+        this(cache, uri, scheduler, priority, Hedge.configured(uri), RetryBudget.shared(),
+            new FirstTokenLatency[] {new FirstTokenLatency(), new FirstTokenLatency()});
+    }
+
+    private OllamaClient(PromptCache cache, URI uri, LlmScheduler scheduler, LlmScheduler.Priority priority,
+                         Hedge hedge, RetryBudget retryBudget, FirstTokenLatency[] latencies) {
         this.gson = new Gson();
+        this.cache = cache;
+        this.uri = uri;
+        this.scheduler = scheduler;
+        this.priority = priority;
+        this.hedge = hedge;
+        this.retryBudget = retryBudget;
+        this.latencies = latencies;
+    }
+
+    // the client shared by all microservices in this process
+    public static OllamaClient shared() {
+        return Shared.INSTANCE;
     }
 
     // sends prompt to ollama and returns response
     public String generate(String prompt) throws IOException {
+        return await(generateAsync(prompt));
+    }
+
+    // sends prompt to ollama without blocking; the future completes with the response,
+    // or exceptionally with an IOException
+    public CompletableFuture<String> generateAsync(String prompt) {
+        return execute("ollama.generate", prompt, FULL, false, token -> true);
+    }
+
+    // sends prompt to ollama with streaming enabled, passing each token to the consumer as it arrives
+    // returns the full generated text once ollama reports that it is done
+    public String generateStream(String prompt, Consumer<String> onToken) throws IOException {
+        return await(execute("ollama.generate_stream", prompt, FULL, true, token -> {
+            onToken.accept(token);
+            return true;
+        }));
+    }
+
+    // streams the generation through a JsonObjectScanner, passing each complete json object to
+    // onObject as soon as it closes. generation is cut short once onObject returns false or a
+    // top-level json array has closed, since the prompts ask for nothing after the json.
+    // returns the text generated up to that point
+    public String generateJson(String prompt, Predicate<JsonObject> onObject) throws IOException {
+        return await(generateJsonAsync(prompt, onObject));
+    }
+
+    // generateJson without blocking; onObject is called on whichever thread reads the response
+    public CompletableFuture<String> generateJsonAsync(String prompt, Predicate<JsonObject> onObject) {
+        return generateJsonAsync(prompt, new JsonObjectScanner(onObject));
+    }
+
+    // generateJson for prompts that ask for bug reports, reading each straight into a BugIssue
+    public String generateBugIssues(String prompt, Predicate<BugIssue> onBug) throws IOException {
+        return await(generateBugIssuesAsync(prompt, onBug));
+    }
+
+    public CompletableFuture<String> generateBugIssuesAsync(String prompt, Predicate<BugIssue> onBug) {
+        return generateJsonAsync(prompt, JsonObjectScanner.forBugIssues(onBug));
+    }
+
+    private CompletableFuture<String> generateJsonAsync(String prompt, JsonObjectScanner scanner) {
+        return execute("ollama.generate_json", prompt, UNTIL_JSON, true, scanner::feed);
+    }
+
+    // embeds text through ollama's /api/embeddings with the embedding model. vectors are cached
+    // like generations, keyed by model and text
+    public float[] embed(String text) throws IOException {
+        return await(embedAsync(text));
+    }
+
+    public CompletableFuture<float[]> embedAsync(String text) {
+        Span span = Tracer.startAsyncSpan("ollama.embed")
+            .setAttribute("model", EMBEDDING_MODEL)
+            .setAttribute("prompt.chars", text.length());
+        String key = PromptCache.key(EMBEDDING_MODEL, "embedding", text);
+        String cached = cache.get(key);
+        span.setAttribute("cache", cached != null ? "hit" : "miss");
+        if (cached != null) {
+            span.close();
+            return CompletableFuture.completedFuture(decodeVector(cached));
+        }
+        if (cache.getMode() == PromptCache.Mode.REPLAY) {
+            IOException e = new IOException("No recorded embedding for " + key + " in replay mode");
+            span.recordError(e).close();
+            return CompletableFuture.failedFuture(e);
+        }
+        if (Deadline.current() != null && Deadline.current().isExpired()) {
+            IOException e = new DeadlineExceededException("ollama.embed");
+            span.recordError(e).close();
+            return CompletableFuture.failedFuture(e);
+        }
+        Duration timeout = Deadline.cap(REQUEST_TIMEOUT);
+
+        CompletableFuture<float[]> result = scheduler.submit(priority, span.getTraceId(), () -> sendEmbedding(text, key, timeout, span));
+        result.whenComplete((vector, error) -> {
+            if (error != null) {
+                span.recordError(error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error);
+            }
+            span.close();
+        });
+        return result;
+    }
+
+    // a client sharing this one's cache and scheduler whose requests are queued at the given priority
+    public OllamaClient withPriority(LlmScheduler.Priority priority) {
+        return new OllamaClient(cache, uri, scheduler, priority, hedge, retryBudget, latencies);
+    }
+
+    // a client like this one that hedges slow generations by sending them to the generate api at
+    // uri with the given model as well, waiting initialDelay until it has seen enough first tokens
+    // to know what slow is. hedged responses from another model are not cached
+    public OllamaClient withHedge(URI uri, String model, Duration initialDelay) {
+        return new OllamaClient(cache, this.uri, scheduler, priority, new Hedge(uri, model, initialDelay),
+            retryBudget, latencies);
+    }
+
+    // a client like this one whose retries and hedges draw on the given budget
+    public OllamaClient withRetryBudget(RetryBudget retryBudget) {
+        return new OllamaClient(cache, uri, scheduler, priority, hedge, retryBudget, latencies);
+    }
+
+    public PromptCache getCache() {
+        return cache;
+    }
+
+    // stores a response for the prompt as if ollama had generated it, so that tests can replay it
+    public void record(String prompt, String response) {
+        cache.put(cacheKey(prompt, FULL), response);
+        cache.put(cacheKey(prompt, UNTIL_JSON), response);
+    }
+
+    // runs one generation, from the cache when possible and otherwise from ollama, passing the
+    // response to onToken piece by piece as it arrives; a cached response arrives as one piece.
+    // the span ends when the future completes, on whichever thread completes it
+    private CompletableFuture<String> execute(String spanName, String prompt, String variant, boolean stream,
+                                              Predicate<String> onToken) {
+        Span span = Tracer.startAsyncSpan(spanName)
+            .setAttribute("model", MODEL)
+            .setAttribute("prompt.chars", prompt.length());
+        String key = cacheKey(prompt, variant);
+        String cached = cache.get(key);
+        span.setAttribute("cache", cached != null ? "hit" : "miss");
+        if (cached != null) {
+            CompletableFuture<String> result = new CompletableFuture<>();
+            try {
+                onToken.test(cached);
+                result.complete(cached);
+            } catch (RuntimeException e) {
+                span.recordError(e);
+                result.completeExceptionally(e);
+            }
+            span.close();
+            return result;
+        }
+        if (cache.getMode() == PromptCache.Mode.REPLAY) {
+            IOException e = new IOException("No recorded response for prompt " + key + " in replay mode");
+            span.recordError(e).close();
+            return CompletableFuture.failedFuture(e);
+        }
+        Deadline deadline = Deadline.current();
+        if (deadline != null && deadline.isExpired()) {
+            IOException e = new DeadlineExceededException(spanName);
+            span.recordError(e).close();
+            return CompletableFuture.failedFuture(e);
+        }
+
+        // requests are fair-queued per trace, so each pipeline run or client request is one job
+        long queuedAt = System.nanoTime();
+        Supplier<CompletableFuture<String>> request = () -> {
+            span.setAttribute("queue_wait_ms", (System.nanoTime() - queuedAt) / 1_000_000);
+            return new Generation(spanName, prompt, stream, onToken, key, span, deadline).start();
+        };
+        // a request still queued when the caller's deadline passes is dropped
+        CompletableFuture<String> result = deadline != null
+            ? scheduler.submit(priority, span.getTraceId(), deadline.remaining(), request)
+            : scheduler.submit(priority, span.getTraceId(), request);
+        // not chained, so that cancelling the returned future withdraws the queued request
+        result.whenComplete((response, error) -> {
+            if (error != null) {
+                span.recordError(error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error);
+            }
+            span.close();
+        });
+        return result;
+    }
+
+    private CompletableFuture<float[]> sendEmbedding(String text, String key, Duration timeout, Span span) {
         JsonObject requestBody = new JsonObject();
-        requestBody.addProperty("model", MODEL);
+        requestBody.addProperty("model", EMBEDDING_MODEL);
+        requestBody.addProperty("prompt", text);
+        HttpRequest request = HttpRequest.newBuilder(uri.resolve("embeddings"))
+            .timeout(timeout)
+            .header("Content-Type", "application/json")
+            .header("traceparent", span.traceparent())
+            .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString(), StandardCharsets.UTF_8))
+            .build();
+        return Shared.HTTP_CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+            .thenApply(response -> {
+                if (response.statusCode() != HTTP_OK) {
+                    throw new CompletionException(new StatusException(response.statusCode()));
+                }
+                JsonObject body = gson.fromJson(response.body(), JsonObject.class);
+                if (body == null || !body.has("embedding") || !body.get("embedding").isJsonArray()) {
+                    throw new CompletionException(new IOException("Ollama returned no embedding"));
+                }
+                JsonArray values = body.getAsJsonArray("embedding");
+                float[] vector = new float[values.size()];
+                for (int i = 0; i < vector.length; i++) {
+                    vector[i] = values.get(i).getAsFloat();
+                }
+                span.setAttribute("dimensions", vector.length);
+                cache.put(key, encodeVector(vector));
+                return vector;
+            });
+    }
+
+    // one generation as sent to ollama: the first attempt, retries of it, and a hedge, of which
+    // the first to deliver a token wins and the others are cancelled. since only the winner's
+    // tokens reach onToken, a generation is only retried while none have
+    private class Generation {
+        private final String operation;
+        private final String prompt;
+        private final boolean stream;
+        private final Predicate<String> onToken;
+        private final String key;
+        private final Span span;
+        private final Deadline deadline;
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private final AtomicReference<Attempt> winner = new AtomicReference<>();
+        private final List<Attempt> attempts = new CopyOnWriteArrayList<>();
+        private final List<ScheduledFuture<?>> timers = new CopyOnWriteArrayList<>();
+        private int retries;
+
+        Generation(String operation, String prompt, boolean stream, Predicate<String> onToken, String key,
+                   Span span, Deadline deadline) {
+            this.operation = operation;
+            this.prompt = prompt;
+            this.stream = stream;
+            this.onToken = onToken;
+            this.key = key;
+            this.span = span;
+            this.deadline = deadline;
+        }
+
+        CompletableFuture<String> start() {
+            retryBudget.recordRequest();
+            synchronized (this) {
+                launch(uri, MODEL, false);
+            }
+            if (hedge != null) {
+                long delay = latencies[stream ? 1 : 0].percentileNanos(HEDGE_PERCENTILE);
+                schedule(this::hedge, delay >= 0 ? delay : hedge.initialDelay.toNanos());
+            }
+            if (deadline != null) {
+                schedule(() -> result.completeExceptionally(new DeadlineExceededException(operation)),
+                    deadline.remaining().toNanos());
+            }
+            result.whenComplete((response, error) -> {
+                timers.forEach(timer -> timer.cancel(false));
+                attempts.forEach(Attempt::cancel);
+                span.setAttribute("retries", retries);
+            });
+            return result;
+        }
+
+        private synchronized void hedge() {
+            if (result.isDone() || winner.get() != null || !retryBudget.tryRetry()) {
+                return;
+            }
+            span.setAttribute("hedged", true);
+            launch(hedge.uri, hedge.model, true);
+        }
+
+        private synchronized void retry() {
+            if (!result.isDone() && winner.get() == null) {
+                launch(uri, MODEL, false);
+            }
+        }
+
+        private void launch(URI target, String model, boolean hedged) {
+            Duration timeout = REQUEST_TIMEOUT;
+            if (deadline != null) {
+                Duration remaining = deadline.remaining();
+                timeout = remaining.compareTo(timeout) < 0 ? remaining : timeout;
+            }
+            Attempt attempt = new Attempt(model, hedged);
+            attempts.add(attempt);
+            attempt.send(request(target, model, prompt, stream,
+                timeout.toMillis() < 1 ? Duration.ofMillis(1) : timeout, span));
+        }
+
+        private void schedule(Runnable task, long delayNanos) {
+            timers.add(Shared.TIMERS.schedule(task, delayNanos, TimeUnit.NANOSECONDS));
+        }
+
+        // makes the attempt the winner if there is none yet, cancelling the others
+        private boolean claim(Attempt attempt) {
+            if (!winner.compareAndSet(null, attempt)) {
+                return winner.get() == attempt;
+            }
+            span.setAttribute("winner", attempt.hedged ? "hedge" : "primary");
+            for (Attempt other : attempts) {
+                if (other != attempt) {
+                    other.cancel();
+                }
+            }
+            return true;
+        }
+
+        private synchronized void finished(Attempt attempt, String response, Throwable error) {
+            Attempt won = winner.get();
+            if (result.isDone() || (won != null && won != attempt)) {
+                return;
+            }
+            if (error == null) {
+                // a response without a single token wins here
+                claim(attempt);
+                span.setAttribute("response.chars", response.length());
+                if (attempt.model.equals(MODEL)) {
+                    cache.put(key, response);
+                }
+                result.complete(response);
+                return;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null
+                ? error.getCause() : error;
+            if (won == null && attempts.stream().anyMatch(other -> other != attempt && !other.done)) {
+                // another attempt may still answer
+                return;
+            }
+            if (won == null && retryable(cause) && attempts.size() < MAX_ATTEMPTS
+                && (deadline == null || !deadline.isExpired()) && retryBudget.tryRetry()) {
+                retries++;
+                schedule(this::retry, RETRY_BACKOFF.toNanos() << (retries - 1));
+                return;
+            }
+            result.completeExceptionally(cause);
+        }
+
+        private class Attempt {
+            private final String model;
+            private final boolean hedged;
+            private final long startedAt = System.nanoTime();
+            private volatile OllamaResponseSubscriber subscriber;
+            private volatile CompletableFuture<HttpResponse<String>> http;
+            private volatile boolean cancelled;
+            private volatile boolean done;
+            private volatile boolean firstToken = true;
+
+            Attempt(String model, boolean hedged) {
+                this.model = model;
+                this.hedged = hedged;
+            }
+
+            void send(HttpRequest request) {
+                Predicate<String> gated = token -> {
+                    if (firstToken) {
+                        firstToken = false;
+                        recordLatency();
+                    }
+                    if (!claim(this)) {
+                        return false;
+                    }
+                    boolean more = onToken.test(token);
+                    if (!more) {
+                        span.setAttribute("stopped_early", true);
+                    }
+                    return more;
+                };
+                HttpResponse.BodyHandler<String> handler = responseInfo -> {
+                    if (responseInfo.statusCode() != HTTP_OK) {
+                        return HttpResponse.BodySubscribers.replacing(null);
+                    }
+                    subscriber = new OllamaResponseSubscriber(gated, gson);
+                    if (cancelled) {
+                        subscriber.abort(new IOException("Ollama request cancelled"));
+                    }
+                    return subscriber;
+                };
+                http = Shared.HTTP_CLIENT.sendAsync(request, handler);
+                http.whenComplete((response, error) -> {
+                    done = true;
+                    if (error == null && response.statusCode() != HTTP_OK) {
+                        finished(this, null, new StatusException(response.statusCode()));
+                    } else {
+                        finished(this, error == null ? response.body() : null, error);
+                    }
+                });
+            }
+
+            // stops the attempt and closes its connection, which makes ollama abort the generation
+            void cancel() {
+                if (done || cancelled) {
+                    return;
+                }
+                cancelled = true;
+                if (firstToken) {
+                    // a primary that lost to its hedge took at least this long
+                    recordLatency();
+                }
+                OllamaResponseSubscriber current = subscriber;
+                if (current != null) {
+                    current.abort(new IOException("Ollama request cancelled"));
+                }
+                CompletableFuture<HttpResponse<String>> request = http;
+                if (request != null) {
+                    request.cancel(true);
+                }
+            }
+
+            // only the primary server's latency decides when to hedge
+            private void recordLatency() {
+                if (!hedged) {
+                    latencies[stream ? 1 : 0].record(System.nanoTime() - startedAt);
+                }
+            }
+        }
+    }
+
+    // overloads and outages are worth retrying; bad requests, errors the model reports and
+    // exceptions thrown by the callback are not
+    private static boolean retryable(Throwable error) {
+        if (error instanceof StatusException) {
+            int status = ((StatusException) error).status;
+            return status >= 500 || status == HTTP_TOO_MANY_REQUESTS;
+        }
+        return error instanceof IOException && !(error instanceof DeadlineExceededException);
+    }
+
+    // vectors are cached as base64 of their floats, a quarter the size of their json
+    private static String encodeVector(float[] vector) {
+        ByteBuffer bytes = ByteBuffer.allocate(vector.length * Float.BYTES);
+        bytes.asFloatBuffer().put(vector);
+        return Base64.getEncoder().encodeToString(bytes.array());
+    }
+
+    private static float[] decodeVector(String encoded) {
+        FloatBuffer floats = ByteBuffer.wrap(Base64.getDecoder().decode(encoded)).asFloatBuffer();
+        float[] vector = new float[floats.remaining()];
+        floats.get(vector);
+        return vector;
+    }
+
+    private String cacheKey(String prompt, String variant) {
+        return PromptCache.key(MODEL, OPTIONS.toString(), variant, prompt);
+    }
+
+    private HttpRequest request(URI uri, String model, String prompt, boolean stream, Duration timeout, Span span) {
+        JsonObject requestBody = new JsonObject();
+        requestBody.addProperty("model", model);
         requestBody.addProperty("prompt", prompt);
-        requestBody.addProperty("stream", false);
+        requestBody.addProperty("stream", stream);
+        requestBody.add("options", OPTIONS);
 
-        URL url = new URL(OLLAMA_URL);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setDoOutput(true);
+        return HttpRequest.newBuilder(uri)
+            .timeout(timeout)
+            .header("Content-Type", "application/json")
+            .header("traceparent", span.traceparent())
+            .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString(), StandardCharsets.UTF_8))
+            .build();
+    }
 
-        // sends request
-        try (OutputStream os = conn.getOutputStream()) {
-            byte[] input = requestBody.toString().getBytes(StandardCharsets.UTF_8);
-            os.write(input, 0, input.length);
+    // waits for a generation, rethrowing its failure as thrown by the callback or the transport
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Ollama request failed: " + cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for Ollama", e);
+        }
+    }
+
+    private static class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        StatusException(int status) {
+            super("Ollama API returned error code: " + status);
+            this.status = status;
         }
+    }
+
+    // where hedged generations go
+    private static class Hedge {
+        final URI uri;
+        final String model;
+        final Duration initialDelay;
 
-        // reads response
-        int responseCode = conn.getResponseCode();
-        if (responseCode != HttpURLConnection.HTTP_OK) {
-            throw new IOException("Ollama API returned error code: " + responseCode);
+        Hedge(URI uri, String model, Duration initialDelay) {
+            this.uri = uri;
+            this.model = model;
+            this.initialDelay = initialDelay;
         }
 
-        StringBuilder response = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(
-                new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
-            String responseLine;
-            while ((responseLine = br.readLine()) != null) {
-                response.append(responseLine.trim());
+        static Hedge configured(URI primary) {
+            String url = System.getProperty("ollama.hedge.url");
+            String model = System.getProperty("ollama.hedge.model");
+            if (url == null && model == null) {
+                return null;
             }
+            return new Hedge(url != null ? URI.create(url + "/api/generate") : primary,
+                model != null ? model : MODEL, HEDGE_DELAY);
         }
+    }
+
+    // the last few hundred first token latencies, for the hedging threshold
+    private static class FirstTokenLatency {
+        private static final int MIN_SAMPLES = 20;
+        private final long[] samples = new long[256];
+        private int count;
+        private int next;
 
-        // parses response
-        JsonObject jsonResponse = gson.fromJson(response.toString(), JsonObject.class);
-        if (jsonResponse.has("response")) {
-            return jsonResponse.get("response").getAsString();
+        synchronized void record(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
         }
 
-        return "";
+        // the percentile of the recorded latencies, or -1 while there are too few to tell
+        synchronized long percentileNanos(double percentile) {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100 * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, rank))];
+        }
     }
-}
 
+    private static class Shared {
+        // ollama serves plain http/1.1, so the client does not try an h2c upgrade on every new connection
+        static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
+        // hedge, retry and deadline timers, which only complete futures or start requests
+        static final ScheduledExecutorService TIMERS = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ollama-timers");
+            thread.setDaemon(true);
+            return thread;
+        });
+        static final OllamaClient INSTANCE = new OllamaClient();
+    }
+}
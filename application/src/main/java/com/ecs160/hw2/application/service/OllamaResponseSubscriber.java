@@ -0,0 +1,146 @@
+package com.ecs160.hw2.application.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.function.Predicate;
+
+// body subscriber for ollama's /api/generate responses. splits the body into ndjson lines straight
+// out of the client's network buffers, without an InputStream and reader in between, and passes
+// the "response" piece of each line to onToken. a non-streaming response is a single line.
+// once onToken returns false the subscription is cancelled, which closes the connection and
+// makes ollama abort the generation
+class OllamaResponseSubscriber implements HttpResponse.BodySubscriber<String> {
+    private final Predicate<String> onToken;
+    private final Gson gson;
+    private final CompletableFuture<String> result = new CompletableFuture<>();
+    private final StringBuilder response = new StringBuilder();
+    private byte[] line = new byte[4096];
+    private int lineLength;
+    private volatile Flow.Subscription subscription;
+    private boolean stopped;
+
+    OllamaResponseSubscriber(Predicate<String> onToken, Gson gson) {
+        this.onToken = onToken;
+        this.gson = gson;
+    }
+
+    @Override
+    public CompletionStage<String> getBody() {
+        return result;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        if (result.isDone()) {
+            subscription.cancel();
+            return;
+        }
+        subscription.request(1);
+    }
+
+    // gives up on the response from any thread: cancels the subscription, which closes the
+    // connection, and fails the body with the cause
+    void abort(Throwable cause) {
+        result.completeExceptionally(cause);
+        Flow.Subscription current = subscription;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> buffers) {
+        if (result.isDone()) {
+            // aborted
+            return;
+        }
+        try {
+            for (ByteBuffer buffer : buffers) {
+                split(buffer);
+                if (stopped) {
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            subscription.cancel();
+            result.completeExceptionally(e);
+            return;
+        }
+        if (stopped) {
+            subscription.cancel();
+            result.complete(response.toString());
+        } else {
+            subscription.request(1);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        try {
+            endLine();
+            result.complete(response.toString());
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    // a newline byte never occurs inside a multi-byte utf-8 character, so lines split on bytes
+    private void split(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit() && !stopped; i++) {
+            if (buffer.get(i) == '\n') {
+                append(buffer, i - buffer.position());
+                buffer.get();
+                endLine();
+            }
+        }
+        if (!stopped) {
+            append(buffer, buffer.remaining());
+        }
+        buffer.position(buffer.limit());
+    }
+
+    private void append(ByteBuffer buffer, int length) {
+        if (lineLength + length > line.length) {
+            byte[] grown = new byte[Math.max(line.length * 2, lineLength + length)];
+            System.arraycopy(line, 0, grown, 0, lineLength);
+            line = grown;
+        }
+        buffer.get(line, lineLength, length);
+        lineLength += length;
+    }
+
+    private void endLine() {
+        if (lineLength == 0 || stopped) {
+            lineLength = 0;
+            return;
+        }
+        JsonObject chunk = gson.fromJson(new String(line, 0, lineLength, StandardCharsets.UTF_8), JsonObject.class);
+        lineLength = 0;
+        if (chunk.has("error")) {
+            throw new UncheckedIOException(new IOException("Ollama error: " + chunk.get("error").getAsString()));
+        }
+        if (chunk.has("response")) {
+            String token = chunk.get("response").getAsString();
+            response.append(token);
+            if (!onToken.test(token)) {
+                stopped = true;
+            }
+        }
+    }
+}
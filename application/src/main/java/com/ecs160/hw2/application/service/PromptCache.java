@@ -0,0 +1,171 @@
+package com.ecs160.hw2.application.service;
+
+import com.ecs160.hw2.microservice.ContentHash;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// content-addressed cache of llm responses, keyed by a hash of the model, options and prompt.
+// a bounded in-memory lru tier sits in front of an on-disk PromptCacheStore, so the same prompts
+// built from the same issues and files are not generated again on the next run
+public class PromptCache implements Closeable {
+    // READ_WRITE serves hits and stores misses, RECORD always calls the llm and stores the result,
+    // REPLAY only serves stored responses so tests are deterministic, and OFF bypasses the cache
+    public enum Mode { READ_WRITE, RECORD, REPLAY, OFF }
+
+    private static final String DEFAULT_DIRECTORY = ".cache/ollama-prompts";
+    private static final long DEFAULT_DISK_MAX_BYTES = 256L * 1024 * 1024;
+    private static final long DEFAULT_MEMORY_MAX_BYTES = 16L * 1024 * 1024;
+    private static final long SEGMENT_BYTES = 16L * 1024 * 1024;
+
+    private final PromptCacheStore store;
+    private final long memoryMaxBytes;
+    private final Mode mode;
+    private final LinkedHashMap<String, String> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    private final LongAdder memoryHits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+
+    // directory may be null for a memory-only cache
+    public PromptCache(Path directory, long diskMaxBytes, long memoryMaxBytes, Mode mode) {
+        this.memoryMaxBytes = memoryMaxBytes;
+        this.mode = mode;
+        this.store = mode != Mode.OFF && directory != null ? openStore(directory, diskMaxBytes) : null;
+    }
+
+    // the cache shared by every OllamaClient in this process, configured by the system properties
+    // ollama.cache (read_write, record, replay or off), ollama.cache.dir and ollama.cache.maxBytes
+    public static PromptCache shared() {
+        return Shared.INSTANCE;
+    }
+
+    // the directory shared() keeps its disk tier in
+    public static Path configuredDirectory() {
+        return Paths.get(System.getProperty("ollama.cache.dir", DEFAULT_DIRECTORY));
+    }
+
+    // sha-256 over the parts, as lowercase hex; the same content hash the response cache uses
+    public static String key(String... parts) {
+        return ContentHash.of(parts);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    // returns the cached response, or null when the llm has to be called
+    public String get(String key) {
+        if (mode == Mode.OFF || mode == Mode.RECORD) {
+            return null;
+        }
+        synchronized (memory) {
+            String value = memory.get(key);
+            if (value != null) {
+                memoryHits.increment();
+                return value;
+            }
+        }
+        String value = store != null ? store.get(key) : null;
+        if (value == null) {
+            misses.increment();
+            return null;
+        }
+        diskHits.increment();
+        remember(key, value);
+        return value;
+    }
+
+    public void put(String key, String value) {
+        if (mode == Mode.OFF || mode == Mode.REPLAY) {
+            return;
+        }
+        writes.increment();
+        remember(key, value);
+        if (store != null) {
+            try {
+                store.put(key, value);
+            } catch (IOException e) {
+                System.err.println("Error writing prompt cache entry " + key + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.sum();
+    }
+
+    public long getDiskHits() {
+        return diskHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    // entries evicted from the disk tier
+    public long getEvictions() {
+        return store != null ? store.getEvictions() : 0;
+    }
+
+    public String stats() {
+        return String.format("%d memory hits, %d disk hits, %d misses, %d writes, %d evictions (%s, %d entries on disk)",
+            getMemoryHits(), getDiskHits(), getMisses(), getWrites(), getEvictions(), mode,
+            store != null ? store.size() : 0);
+    }
+
+    // releases the disk tier so that another cache can open its directory
+    @Override
+    public void close() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    // adds to the memory tier, evicting least recently used entries past the byte budget
+    private void remember(String key, String value) {
+        long bytes = 2L * (key.length() + value.length());
+        if (bytes > memoryMaxBytes) {
+            return;
+        }
+        synchronized (memory) {
+            String previous = memory.put(key, value);
+            memoryBytes += bytes - (previous != null ? 2L * (key.length() + previous.length()) : 0);
+            Iterator<Map.Entry<String, String>> eldest = memory.entrySet().iterator();
+            while (memoryBytes > memoryMaxBytes && eldest.hasNext()) {
+                Map.Entry<String, String> entry = eldest.next();
+                memoryBytes -= 2L * (entry.getKey().length() + entry.getValue().length());
+                eldest.remove();
+            }
+        }
+    }
+
+    // falls back to the memory tier alone when the directory cannot be used
+    private static PromptCacheStore openStore(Path directory, long maxBytes) {
+        try {
+            return new PromptCacheStore(directory, maxBytes, Math.min(SEGMENT_BYTES, Math.max(1, maxBytes / 4)));
+        } catch (IOException e) {
+            System.err.println("Prompt cache on disk disabled: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static class Shared {
+        static final PromptCache INSTANCE = new PromptCache(
+            configuredDirectory(),
+            Long.getLong("ollama.cache.maxBytes", DEFAULT_DISK_MAX_BYTES),
+            DEFAULT_MEMORY_MAX_BYTES,
+            Mode.valueOf(System.getProperty("ollama.cache", "read_write").toUpperCase()));
+    }
+}
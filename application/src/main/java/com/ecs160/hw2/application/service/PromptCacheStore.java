@@ -0,0 +1,248 @@
+package com.ecs160.hw2.application.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+// on-disk tier of the prompt cache: append-only segment files plus an in-memory index from key
+// to record location, rebuilt by scanning the segments when the store is opened.
+// each record is the 32-byte key, the value length, the utf-8 value and a crc32 of all three, so
+// a record torn by a crash fails its check and is cut off on the next open.
+// when the segments outgrow maxBytes the oldest segment is deleted with every entry in it
+class PromptCacheStore implements Closeable {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOCK_FILE = "LOCK";
+    private static final int KEY_BYTES = 32;
+    private static final int HEADER_BYTES = KEY_BYTES + 4;
+    private static final int CRC_BYTES = 4;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long segmentBytes;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final TreeMap<Long, FileChannel> segments = new TreeMap<>();
+    private final Map<String, Location> index = new HashMap<>();
+    private long totalBytes;
+    private long activeSegment;
+    private long evictions;
+
+    // opens the store, failing if another process already has it open
+    PromptCacheStore(Path directory, long maxBytes, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+
+        // appends from two processes would interleave, so only one may use the directory
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new IOException("Prompt cache " + directory + " is in use by another process");
+        }
+        lock = acquired;
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(id, FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            }
+        }
+        for (Map.Entry<Long, FileChannel> segment : segments.entrySet()) {
+            load(segment.getKey(), segment.getValue());
+        }
+        activeSegment = segments.isEmpty() ? 1 : segments.lastKey();
+        if (segments.isEmpty()) {
+            segments.put(activeSegment, openSegment(activeSegment));
+        }
+    }
+
+    // returns the stored value, or null if the key is absent or its record is unreadable
+    String get(String key) {
+        Location location;
+        FileChannel channel;
+        synchronized (this) {
+            location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            channel = segments.get(location.segment);
+        }
+        try {
+            ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + location.length + CRC_BYTES);
+            while (record.hasRemaining()) {
+                if (channel.read(record, location.offset + record.position()) < 0) {
+                    return null;
+                }
+            }
+            record.flip();
+            return checked(record, location.length);
+        } catch (IOException e) {
+            // the segment was evicted while reading
+            return null;
+        }
+    }
+
+    synchronized void put(String key, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + bytes.length + CRC_BYTES);
+        record.put(keyBytes(key)).putInt(bytes.length).put(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        FileChannel channel = segments.get(activeSegment);
+        if (channel.size() > 0 && channel.size() + record.remaining() > segmentBytes) {
+            activeSegment++;
+            channel = openSegment(activeSegment);
+            segments.put(activeSegment, channel);
+        }
+        long offset = channel.size();
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+        index.put(key, new Location(activeSegment, offset, bytes.length));
+        totalBytes += record.limit();
+
+        while (totalBytes > maxBytes && segments.size() > 1) {
+            evictOldestSegment();
+        }
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    // entries dropped with evicted segments
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (FileChannel channel : segments.values()) {
+            channel.close();
+        }
+        segments.clear();
+        index.clear();
+        lock.release();
+        lockChannel.close();
+    }
+
+    // indexes a segment's records, cutting it off at the first incomplete or corrupt one
+    private void load(long segment, FileChannel channel) throws IOException {
+        long size = channel.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (offset + HEADER_BYTES + CRC_BYTES <= size) {
+            header.clear();
+            channel.read(header, offset);
+            int length = header.getInt(KEY_BYTES);
+            long recordBytes = (long) HEADER_BYTES + length + CRC_BYTES;
+            if (length < 0 || offset + recordBytes > size) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate((int) recordBytes);
+            channel.read(record, offset);
+            record.flip();
+            if (checked(record, length) == null) {
+                break;
+            }
+            index.put(keyHex(record.array()), new Location(segment, offset, length));
+            offset += recordBytes;
+        }
+        if (offset < size) {
+            System.err.println("Truncating prompt cache segment " + segment + " at byte " + offset);
+            channel.truncate(offset);
+        }
+        totalBytes += offset;
+    }
+
+    // decodes the record's value, or returns null if its checksum does not match
+    private static String checked(ByteBuffer record, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, HEADER_BYTES + length);
+        if ((int) crc.getValue() != record.getInt(HEADER_BYTES + length)) {
+            return null;
+        }
+        return new String(record.array(), HEADER_BYTES, length, StandardCharsets.UTF_8);
+    }
+
+    private void evictOldestSegment() throws IOException {
+        Map.Entry<Long, FileChannel> oldest = segments.pollFirstEntry();
+        totalBytes -= oldest.getValue().size();
+        oldest.getValue().close();
+        Files.deleteIfExists(segmentPath(oldest.getKey()));
+        Iterator<Location> locations = index.values().iterator();
+        while (locations.hasNext()) {
+            if (locations.next().segment == oldest.getKey()) {
+                locations.remove();
+                evictions++;
+            }
+        }
+    }
+
+    private FileChannel openSegment(long id) throws IOException {
+        return FileChannel.open(segmentPath(id), StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    // keys are sha-256 hex strings, stored as their 32 raw bytes
+    private static byte[] keyBytes(String key) {
+        byte[] bytes = new byte[KEY_BYTES];
+        for (int i = 0; i < KEY_BYTES; i++) {
+            bytes[i] = (byte) Integer.parseInt(key.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String keyHex(byte[] record) {
+        StringBuilder hex = new StringBuilder(KEY_BYTES * 2);
+        for (int i = 0; i < KEY_BYTES; i++) {
+            hex.append(Character.forDigit((record[i] >> 4) & 0xf, 16)).append(Character.forDigit(record[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static class Location {
+        final long segment;
+        final long offset;
+        final int length;
+
+        Location(long segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
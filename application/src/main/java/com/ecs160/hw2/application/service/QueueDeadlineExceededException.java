@@ -0,0 +1,13 @@
+package com.ecs160.hw2.application.service;
+
+import java.io.IOException;
+
+// thrown when an llm request is dropped because its deadline passed while it waited in the
+// LlmScheduler queue, before it was ever sent to ollama
+public class QueueDeadlineExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public QueueDeadlineExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,71 @@
+package com.ecs160.hw2.application.service;
+
+// limits retries and hedged requests to a fraction of all requests, so that when ollama is
+// overloaded or down the clients do not multiply its load. every request deposits ratio of a
+// retry, a trickle of minPerSecond retries is always allowed, and each retry withdraws one.
+// the balance is capped so that a quiet spell cannot save up a burst
+public class RetryBudget {
+    private final double ratio;
+    private final double minPerSecond;
+    private final double maxBalance;
+    private double balance;
+    private long lastRefillNanos;
+    private long retries;
+    private long refused;
+
+    public RetryBudget(double ratio, double minPerSecond, double maxBalance) {
+        this.ratio = ratio;
+        this.minPerSecond = minPerSecond;
+        this.maxBalance = maxBalance;
+        this.balance = maxBalance;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    // the budget shared by all clients in this process, configured by the ollama.retry.ratio
+    // (default 0.1) and ollama.retry.minPerSecond (default 0.2) properties
+    public static RetryBudget shared() {
+        return Shared.INSTANCE;
+    }
+
+    public synchronized void recordRequest() {
+        refill();
+        balance = Math.min(maxBalance, balance + ratio);
+    }
+
+    // withdraws a retry if the budget has one
+    public synchronized boolean tryRetry() {
+        refill();
+        if (balance < 1) {
+            refused++;
+            return false;
+        }
+        balance--;
+        retries++;
+        return true;
+    }
+
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    public synchronized long getRefused() {
+        return refused;
+    }
+
+    public synchronized String stats() {
+        return String.format("%d retries and hedges, %d refused", retries, refused);
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        balance = Math.min(maxBalance, balance + (now - lastRefillNanos) / 1e9 * minPerSecond);
+        lastRefillNanos = now;
+    }
+
+    private static class Shared {
+        static final RetryBudget INSTANCE = new RetryBudget(
+            Double.parseDouble(System.getProperty("ollama.retry.ratio", "0.1")),
+            Double.parseDouble(System.getProperty("ollama.retry.minPerSecond", "0.2")),
+            10);
+    }
+}
@@ -0,0 +1,138 @@
+package com.ecs160.hw2.application;
+
+import com.ecs160.hw2.application.model.BugIssue;
+import com.ecs160.hw2.application.service.BugIssueCodec;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares BugIssueCodec with the substring, JsonParser and per-field exception parsing the
+ * microservices used before, on bug finder answers as deepcoder writes them. Not a test; run with
+ *
+ *   mvn -B -q test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java \
+ *       -Dexec.args="-cp %classpath org.openjdk.jmh.Main BugIssueCodecBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BugIssueCodecBenchmark {
+    @Param({"clean", "noisy"})
+    public String output;
+
+    private String response;
+
+    @Setup
+    public void setUp() {
+        StringBuilder bugs = new StringBuilder("[\n");
+        for (int i = 0; i < 8; i++) {
+            if (i > 0) {
+                bugs.append(",\n");
+            }
+            boolean noisy = output.equals("noisy");
+            // small models often quote line numbers or write None for unknown ones and files
+            String line = !noisy ? String.valueOf(10 * i + 3) : i % 3 == 0 ? "\"None\"" : "\"" + (10 * i + 3) + "\"";
+            String filename = noisy && i % 2 == 0 ? "None" : "src/buffer.c";
+            bugs.append("  {\n")
+                .append("    \"bug_type\": \"").append(i % 2 == 0 ? "MemoryLeak" : "BufferOverflow").append("\",\n")
+                .append("    \"line\": ").append(line).append(",\n")
+                .append("    \"description\": \"The buffer allocated in read_chunk is not freed when the ")
+                .append("header check fails, so every malformed packet leaks ").append(i).append(" KB.\",\n")
+                .append("    \"filename\": \"").append(filename).append("\"\n")
+                .append("  }");
+        }
+        bugs.append("\n]");
+        response = output.equals("noisy")
+            ? "<think>\nThe user wants bugs. Let me look at read_chunk {and the loop}.\n</think>\n" +
+              "Here are the bugs I found:\n" + bugs + "\nLet me know if you need more detail."
+            : bugs.toString();
+    }
+
+    @Benchmark
+    public List<BugIssue> codec() {
+        return BugIssueCodec.parseAll(response);
+    }
+
+    @Benchmark
+    public List<BugIssue> substringAndTree() {
+        List<BugIssue> bugs = new ArrayList<>();
+        JsonArray array = legacyArray(response);
+        if (array != null) {
+            for (int i = 0; i < array.size(); i++) {
+                bugs.add(legacyBugIssue(array.get(i).getAsJsonObject()));
+            }
+        }
+        return bugs;
+    }
+
+    private static JsonArray legacyArray(String response) {
+        try {
+            return JsonParser.parseString(response).getAsJsonArray();
+        } catch (Exception e) {
+            int arrayStart = response.indexOf("[");
+            int arrayEnd = response.lastIndexOf("]") + 1;
+            if (arrayStart >= 0 && arrayEnd > arrayStart) {
+                try {
+                    return JsonParser.parseString(response.substring(arrayStart, arrayEnd)).getAsJsonArray();
+                } catch (Exception ex) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static BugIssue legacyBugIssue(JsonObject json) {
+        BugIssue bugIssue = new BugIssue();
+        try {
+            bugIssue.setBug_type(json.get("bug_type").getAsString());
+        } catch (Exception e) {
+            bugIssue.setBug_type("Unknown");
+        }
+        try {
+            String lineStr = json.get("line").getAsString().trim();
+            if (lineStr.equalsIgnoreCase("None") || lineStr.equalsIgnoreCase("null") ||
+                lineStr.isEmpty() || lineStr.equals("-")) {
+                bugIssue.setLine(-1);
+            } else {
+                bugIssue.setLine(Integer.parseInt(lineStr));
+            }
+        } catch (Exception e) {
+            try {
+                bugIssue.setLine(json.get("line").getAsInt());
+            } catch (Exception ex) {
+                bugIssue.setLine(-1);
+            }
+        }
+        try {
+            bugIssue.setDescription(json.get("description").getAsString());
+        } catch (Exception e) {
+            bugIssue.setDescription("");
+        }
+        try {
+            String filename = json.get("filename").getAsString();
+            bugIssue.setFilename(filename.equalsIgnoreCase("None") || filename.equalsIgnoreCase("null") ? "" : filename);
+        } catch (Exception e) {
+            bugIssue.setFilename("");
+        }
+        return bugIssue;
+    }
+}
@@ -0,0 +1,909 @@
+package com.ecs160.hw2.application;
+
+import com.ecs160.hw2.microservice.Cacheable;
+import com.ecs160.hw2.microservice.Deadline;
+import com.ecs160.hw2.microservice.DeadlineExceededException;
+import com.ecs160.hw2.microservice.DegradedResponseException;
+import com.ecs160.hw2.microservice.Endpoint;
+import com.ecs160.hw2.microservice.HttpMicroserviceClient;
+import com.ecs160.hw2.microservice.LoadBalancer;
+import com.ecs160.hw2.microservice.Microservice;
+import com.ecs160.hw2.microservice.MicroserviceClient;
+import com.ecs160.hw2.microservice.MicroserviceLauncher;
+import com.ecs160.hw2.microservice.NioServerEngine;
+import com.ecs160.hw2.microservice.RateLimitExceededException;
+import com.ecs160.hw2.microservice.ResponseCache;
+import com.ecs160.hw2.microservice.ResponseStream;
+import com.ecs160.hw2.microservice.Span;
+import com.ecs160.hw2.microservice.Tracer;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the microservice framework using small in-test services instead of the LLM.
+ */
+public class MicroserviceLauncherTest {
+
+    @Microservice
+    public static class EchoMicroservice {
+        @Endpoint(url = "echo")
+        public String echo(String input) {
+            return input;
+        }
+
+        @Endpoint(url = "echo_stream")
+        public void echoStream(String input, ResponseStream out) throws IOException {
+            for (String word : input.split(" ")) {
+                out.write(word + "\n");
+            }
+        }
+    }
+
+    @Microservice
+    public static class DeadlineMicroservice {
+        @Endpoint(url = "remaining")
+        public String remaining(String input) {
+            Deadline deadline = Deadline.current();
+            return deadline != null ? String.valueOf(deadline.remaining().toMillis()) : "none";
+        }
+    }
+
+    @Microservice
+    public static class SlowMicroservice {
+        static final CountDownLatch started = new CountDownLatch(1);
+        static final CountDownLatch release = new CountDownLatch(1);
+
+        @Endpoint(url = "slow", maxConcurrency = 1, maxQueue = 0)
+        public String slow(String input) throws InterruptedException {
+            started.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return input;
+        }
+    }
+
+    @Microservice
+    public static class GatedStreamMicroservice {
+        static final CountDownLatch started = new CountDownLatch(1);
+        static final CountDownLatch release = new CountDownLatch(1);
+
+        @Endpoint(url = "gated_stream")
+        public void gatedStream(String input, ResponseStream out) throws IOException, InterruptedException {
+            out.write("before\n");
+            started.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            out.write("after\n");
+        }
+    }
+
+    @Microservice
+    public static class QueueLimitedMicroservice {
+        @Endpoint(url = "queue_limited", maxConcurrency = 2, maxQueue = 4, queueTimeoutMillis = 50, 
+                  adaptiveConcurrency = true)
+        public String queueLimited(String input) throws InterruptedException {
+            Thread.sleep(100);
+            return input;
+        }
+    }
+
+    @Microservice
+    public static class CountingMicroservice {
+        static final AtomicInteger invocations = new AtomicInteger();
+
+        @Cacheable(ttlSeconds = 60, maxEntries = 10)
+        @Endpoint(url = "count")
+        public String count(String input) {
+            invocations.incrementAndGet();
+            return input.toUpperCase();
+        }
+    }
+
+    @Microservice
+    public static class HeldMicroservice {
+        static final AtomicInteger invocations = new AtomicInteger();
+        static final CountDownLatch started = new CountDownLatch(1);
+        static final CountDownLatch release = new CountDownLatch(1);
+
+        @Endpoint(url = "held")
+        public String held(String input) throws InterruptedException {
+            invocations.incrementAndGet();
+            started.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return input;
+        }
+    }
+
+    @Microservice
+    public static class FlakyMicroservice {
+        static final AtomicInteger invocations = new AtomicInteger();
+
+        // the first call falls back to a degraded answer, as if its backend were down
+        @Cacheable(ttlSeconds = 60, maxEntries = 10)
+        @Endpoint(url = "flaky")
+        public String flaky(String input) {
+            if (invocations.incrementAndGet() == 1) {
+                throw new DegradedResponseException("fallback", new IOException("backend down"));
+            }
+            return "answer:" + input;
+        }
+    }
+
+    @Microservice
+    public static class GatedMicroservice {
+        static final AtomicInteger invocations = new AtomicInteger();
+        static final CountDownLatch release = new CountDownLatch(1);
+
+        @Endpoint(url = "gated")
+        public String gated(String input) throws InterruptedException {
+            invocations.incrementAndGet();
+            release.await(10, TimeUnit.SECONDS);
+            return "result:" + input;
+        }
+    }
+
+    @Microservice
+    public static class DrainMicroservice {
+        static final CountDownLatch started = new CountDownLatch(1);
+        static final CountDownLatch release = new CountDownLatch(1);
+
+        @Endpoint(url = "long_running")
+        public String longRunning(String input) throws InterruptedException {
+            started.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return "done:" + input;
+        }
+    }
+
+    @Microservice(threads = 1, queueCapacity = 0)
+    public static class IsolatedMicroservice {
+        static final CountDownLatch started = new CountDownLatch(1);
+        static final CountDownLatch release = new CountDownLatch(1);
+
+        @Endpoint(url = "isolated")
+        public String isolated(String input) throws InterruptedException {
+            started.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return Thread.currentThread().getName();
+        }
+    }
+
+    @Microservice
+    public static class BalancedMicroservice {
+        static final CountDownLatch started = new CountDownLatch(1);
+        static final CountDownLatch release = new CountDownLatch(1);
+
+        @Endpoint(url = "hold")
+        public String hold(String input) throws InterruptedException {
+            started.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return whoami(input);
+        }
+
+        @Endpoint(url = "whoami", coalesce = false)
+        public String whoami(String input) {
+            return String.valueOf(System.identityHashCode(this));
+        }
+    }
+
+    @Microservice
+    public static class BurstLimitedMicroservice {
+        @Endpoint(url = "burst_limited", clientRateLimit = 1, rateLimitBurst = 50)
+        public String limited(String input) {
+            return input;
+        }
+    }
+
+    @Microservice
+    public static class RateLimitedMicroservice {
+        @Endpoint(url = "limited", clientRateLimit = 0.1, rateLimitBurst = 2)
+        public String limited(String input) {
+            return input;
+        }
+    }
+
+    @Test
+    public void testNonAsciiResponseIsNotTruncated() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(EchoMicroservice.class);
+        assertTrue(launcher.launch(18181));
+
+        String input = "naïve café – 漢字";
+        HttpURLConnection conn = open(18181, "echo", input);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals(input, readBody(conn));
+        launcher.stop();
+    }
+
+    @Test
+    public void testStreamingEndpointUsesChunkedEncoding() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(EchoMicroservice.class);
+        assertTrue(launcher.launch(18182));
+
+        HttpURLConnection conn = open(18182, "echo_stream", "first second third");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("chunked", conn.getHeaderField("Transfer-Encoding"));
+        assertEquals("first\nsecond\nthird\n", readBody(conn));
+        launcher.stop();
+    }
+
+    @Test
+    public void testRequestsBeyondConcurrencyLimitAreShed() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(SlowMicroservice.class);
+        assertTrue(launcher.launch(18183));
+
+        Thread first = new Thread(() -> {
+            try {
+                open(18183, "slow", "first").getResponseCode();
+            } catch (IOException e) {
+                // the first request only needs to hold the single slot
+            }
+        });
+        first.start();
+        assertTrue(SlowMicroservice.started.await(5, TimeUnit.SECONDS));
+
+        HttpURLConnection second = open(18183, "slow", "second");
+        assertEquals(503, second.getResponseCode());
+        assertNotNull(second.getHeaderField("Retry-After"));
+
+        SlowMicroservice.release.countDown();
+        first.join();
+        launcher.stop();
+    }
+
+    @Test
+    public void testCacheableEndpointIsInvokedOncePerInput() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(CountingMicroservice.class);
+        assertTrue(launcher.launch(18184));
+
+        assertEquals("ABC", readBody(open(18184, "count", "abc")));
+        assertEquals("ABC", readBody(open(18184, "count", "abc")));
+        assertEquals("XYZ", readBody(open(18184, "count", "xyz")));
+
+        assertEquals(2, CountingMicroservice.invocations.get());
+        ResponseCache cache = launcher.getResponseCache("count");
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        launcher.stop();
+    }
+
+    @Test
+    public void testBatchItemsWaitOutTheEndpointsQueueTimeout() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(QueueLimitedMicroservice.class);
+        MicroserviceClient client = MicroserviceClient.forTransport("inprocess", launcher, "http://localhost:18206");
+
+        // Every call outlasts the queue timeout, so items beyond the limit would be shed
+        List<String> inputs = Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h");
+        assertEquals(inputs, client.callBatch("queue_limited", inputs));
+        launcher.stop();
+    }
+
+    @Test
+    public void testCoalescedRequestGivesUpAtItsOwnDeadline() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(HeldMicroservice.class);
+        MicroserviceClient client = MicroserviceClient.forTransport("inprocess", launcher, "http://localhost:18202");
+
+        ExecutorService clients = Executors.newFixedThreadPool(1);
+        Future<String> leader = clients.submit(() -> client.call("held", "same"));
+        assertTrue(HeldMicroservice.started.await(5, TimeUnit.SECONDS));
+
+        // waits on the leader's invocation, which outlasts its deadline
+        long start = System.nanoTime();
+        try (Deadline deadline = Deadline.start(Duration.ofMillis(300))) {
+            assertSame(deadline, Deadline.current());
+            client.call("held", "same");
+            fail("Expected the deadline to pass");
+        } catch (DeadlineExceededException e) {
+            assertTrue(System.nanoTime() - start < 2_000_000_000L);
+        }
+        HeldMicroservice.release.countDown();
+        assertEquals("same", leader.get(5, TimeUnit.SECONDS));
+        assertEquals(1, HeldMicroservice.invocations.get());
+        clients.shutdown();
+        launcher.stop();
+    }
+
+    @Test
+    public void testDegradedResponsesAreSentButNotCached() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(FlakyMicroservice.class);
+        assertTrue(launcher.launch(18201));
+
+        HttpURLConnection conn = open(18201, "flaky", "a");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("fallback", readBody(conn));
+        assertEquals("answer:a", readBody(open(18201, "flaky", "a")));
+        assertEquals("answer:a", readBody(open(18201, "flaky", "a")));
+
+        assertEquals(2, FlakyMicroservice.invocations.get());
+        assertEquals(1, launcher.getResponseCache("flaky").getHits());
+        launcher.stop();
+    }
+
+    @Test
+    public void testConcurrentIdenticalRequestsShareOneInvocation() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(GatedMicroservice.class);
+        assertTrue(launcher.launch(18185));
+
+        ExecutorService clients = Executors.newFixedThreadPool(3);
+        List<Future<String>> responses = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            responses.add(clients.submit(() -> readBody(open(18185, "gated", "same"))));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (launcher.getCoalescedRequests("gated") < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        GatedMicroservice.release.countDown();
+
+        for (Future<String> response : responses) {
+            assertEquals("result:same", response.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, GatedMicroservice.invocations.get());
+        assertEquals(2, launcher.getCoalescedRequests("gated"));
+        clients.shutdown();
+        launcher.stop();
+    }
+
+    @Test
+    public void testBatchRouteReturnsOneTaggedResultPerInput() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(EchoMicroservice.class);
+        assertTrue(launcher.launch(18186));
+
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:18186/batch/echo?ordered=true")
+            .openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        try (OutputStream os = conn.getOutputStream()) {
+            os.write("[\"a\", {\"k\": 1}, \"c\"]".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(200, conn.getResponseCode());
+
+        String[] lines = readBody(conn).split("\n");
+        assertEquals(3, lines.length);
+        String[] expected = {"a", "{\"k\":1}", "c"};
+        for (int i = 0; i < lines.length; i++) {
+            JsonObject line = JsonParser.parseString(lines[i]).getAsJsonObject();
+            assertEquals(i, line.get("index").getAsInt());
+            assertEquals(200, line.get("status").getAsInt());
+            assertEquals(expected[i], line.get("result").getAsString());
+        }
+        launcher.stop();
+    }
+
+    @Test
+    public void testInProcessAndHttpClientsReturnTheSameResults() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(EchoMicroservice.class);
+        assertTrue(launcher.launch(18187));
+
+        String baseUrl = "http://localhost:18187";
+        for (String transport : new String[] {"inprocess", "http"}) {
+            MicroserviceClient client = MicroserviceClient.forTransport(transport, launcher, baseUrl);
+            assertEquals("line one\nline two", client.call("echo", "line one\nline two"));
+            assertEquals(Arrays.asList("x", "y"), client.callBatch("echo", Arrays.asList("x", "y")));
+            assertEquals("async", client.callAsync("echo", "async").get(5, TimeUnit.SECONDS));
+        }
+        launcher.stop();
+    }
+
+    @Test
+    public void testHttpClientDecodesLargeMultiByteBodies() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(EchoMicroservice.class);
+        assertTrue(launcher.launch(18188));
+
+        // Large enough to span many network buffers, so characters get split between them
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            input.append("é漢").append(i % 10);
+        }
+        HttpMicroserviceClient client = new HttpMicroserviceClient("http://localhost:18188");
+        assertEquals(input.toString(), client.call("echo", input.toString()));
+        launcher.stop();
+    }
+
+    @Test
+    public void testMetricsRouteExposesPrometheusText() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(EchoMicroservice.class);
+        assertTrue(launcher.launch(18189));
+
+        readBody(open(18189, "echo", "one"));
+        readBody(open(18189, "echo", "two"));
+
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:18189/metrics").openConnection();
+        assertEquals(200, conn.getResponseCode());
+        assertTrue(conn.getContentType().startsWith("text/plain"));
+        String metrics = readBody(conn);
+        assertTrue(metrics.contains("# TYPE microservice_requests_total counter"));
+        assertTrue(metrics.contains("microservice_requests_total{endpoint=\"echo\"} 2"));
+        assertTrue(metrics.contains("microservice_errors_total{endpoint=\"echo\"} 0"));
+        assertTrue(metrics.contains("microservice_request_duration_seconds{endpoint=\"echo\",quantile=\"0.99\"}"));
+        assertTrue(metrics.contains("microservice_request_duration_seconds_count{endpoint=\"echo\"} 2"));
+        launcher.stop();
+    }
+
+    @Test
+    public void testNioEngineServesPlainAndStreamingEndpoints() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.setServerEngine(new NioServerEngine());
+        launcher.registerMicroservice(EchoMicroservice.class);
+        assertTrue(launcher.launch(18190));
+
+        String input = "naïve café – 漢字";
+        HttpURLConnection conn = open(18190, "echo", input);
+        assertEquals(200, conn.getResponseCode());
+        assertEquals(input, readBody(conn));
+
+        conn = open(18190, "echo_stream", "first second third");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("chunked", conn.getHeaderField("Transfer-Encoding"));
+        assertEquals("first\nsecond\nthird\n", readBody(conn));
+
+        assertEquals(404, open(18190, "missing", "x").getResponseCode());
+
+        // Large enough to span several pooled buffers in both directions
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            large.append("é漢").append(i % 10);
+        }
+        HttpMicroserviceClient client = new HttpMicroserviceClient("http://localhost:18190");
+        assertEquals(large.toString(), client.call("echo", large.toString()));
+        launcher.stop();
+    }
+
+    @Test
+    public void testNioEngineAnswersPipelinedRequestsInOrder() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.setServerEngine(new NioServerEngine());
+        launcher.registerMicroservice(EchoMicroservice.class);
+        assertTrue(launcher.launch(18191));
+
+        try (Socket socket = new Socket("localhost", 18191)) {
+            socket.setSoTimeout(5000);
+            // Two keep-alive requests in a single write, then one that closes the connection
+            String requests =
+                "GET /echo?input=one HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                "POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 3\r\n\r\ntwo" +
+                "GET /echo?input=three HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+            socket.getOutputStream().write(requests.getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                received.write(buffer, 0, n);
+            }
+            String responses = new String(received.toByteArray(), StandardCharsets.UTF_8);
+            int first = responses.indexOf("\r\n\r\none");
+            int second = responses.indexOf("\r\n\r\ntwo");
+            int third = responses.indexOf("\r\n\r\nthree");
+            assertTrue(responses, first >= 0 && first < second && second < third);
+            assertEquals(3, responses.split("HTTP/1.1 200 OK", -1).length - 1);
+        }
+        launcher.stop();
+    }
+
+    @Test
+    public void testNioEngineSendsContinueOnlyAfterEarlierResponses() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.setServerEngine(new NioServerEngine());
+        launcher.registerMicroservice(EchoMicroservice.class);
+        launcher.registerMicroservice(GatedStreamMicroservice.class);
+        assertTrue(launcher.launch(18205));
+
+        try (Socket socket = new Socket("localhost", 18205)) {
+            socket.setSoTimeout(5000);
+            // A streaming request, then one that waits for 100 Continue before sending its body
+            String requests =
+                "GET /gated_stream?input=x HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                "POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 3\r\n" +
+                "Expect: 100-continue\r\nConnection: close\r\n\r\n";
+            OutputStream out = socket.getOutputStream();
+            out.write(requests.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            assertTrue(GatedStreamMicroservice.started.await(5, TimeUnit.SECONDS));
+            Thread.sleep(200);
+            GatedStreamMicroservice.release.countDown();
+
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[4096];
+            while (!received.toString(StandardCharsets.US_ASCII).contains("100 Continue")) {
+                int n = in.read(buffer);
+                assertTrue("Connection closed before 100 Continue", n > 0);
+                received.write(buffer, 0, n);
+            }
+            out.write("two".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                received.write(buffer, 0, n);
+            }
+
+            // The interim response goes out between the two responses, never inside the stream
+            String responses = received.toString(StandardCharsets.UTF_8);
+            int streamEnd = responses.indexOf("after\n\r\n0\r\n\r\n");
+            int interim = responses.indexOf("HTTP/1.1 100 Continue\r\n\r\n");
+            int echoed = responses.indexOf("\r\n\r\ntwo");
+            assertTrue(responses, streamEnd >= 0 && streamEnd < interim && interim < echoed);
+        }
+        launcher.stop();
+    }
+
+    @Test
+    public void testDrainFinishesInFlightRequestsBeforeStopping() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(DrainMicroservice.class);
+        launcher.start(18192);
+        assertTrue(launcher.awaitReady(1, TimeUnit.SECONDS));
+        assertEquals(200, status(18192, "health"));
+        assertEquals(200, status(18192, "ready"));
+
+        ExecutorService clients = Executors.newFixedThreadPool(2);
+        Future<String> inFlight = clients.submit(() -> readBody(open(18192, "long_running", "work")));
+        assertTrue(DrainMicroservice.started.await(5, TimeUnit.SECONDS));
+
+        Future<Boolean> drained = clients.submit(() -> launcher.drain(Duration.ofSeconds(10)));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (launcher.isReady() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // Draining: liveness still passes, readiness fails and new work is refused
+        assertEquals(200, status(18192, "health"));
+        assertEquals(503, status(18192, "ready"));
+        HttpURLConnection refused = open(18192, "long_running", "late");
+        assertEquals(503, refused.getResponseCode());
+        assertNotNull(refused.getHeaderField("Retry-After"));
+
+        DrainMicroservice.release.countDown();
+        assertEquals("done:work", inFlight.get(5, TimeUnit.SECONDS));
+        assertTrue(drained.get(5, TimeUnit.SECONDS));
+        assertFalse(launcher.isReady());
+        clients.shutdown();
+    }
+
+    @Test
+    public void testSaturatedBulkheadDoesNotBlockOtherMicroservices() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(IsolatedMicroservice.class, EchoMicroservice.class);
+        assertTrue(launcher.launch(18193));
+
+        ExecutorService clients = Executors.newSingleThreadExecutor();
+        Future<String> first = clients.submit(() -> readBody(open(18193, "isolated", "first")));
+        assertTrue(IsolatedMicroservice.started.await(5, TimeUnit.SECONDS));
+
+        // The bulkhead's only thread is busy and it has no queue, so a second call is rejected
+        assertEquals(503, open(18193, "isolated", "second").getResponseCode());
+        assertEquals("still served", readBody(open(18193, "echo", "still served")));
+
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:18193/metrics").openConnection();
+        String metrics = readBody(conn);
+        assertTrue(metrics.contains("microservice_bulkhead_active_threads{bulkhead=\"IsolatedMicroservice\"} 1"));
+        assertTrue(metrics.contains("microservice_bulkhead_rejected_total{bulkhead=\"IsolatedMicroservice\"} 1"));
+
+        IsolatedMicroservice.release.countDown();
+        assertTrue(first.get(5, TimeUnit.SECONDS).startsWith("bulkhead-IsolatedMicroservice-"));
+        clients.shutdown();
+        launcher.stop();
+    }
+
+    @Test
+    public void testLargeResponsesAreCompressedWhenAccepted() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(EchoMicroservice.class);
+        assertTrue(launcher.launch(18194));
+
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            large.append("{\"bug_type\":\"NullPointer\",\"line\":").append(i).append(",\"note\":\"漢字\"}");
+        }
+
+        HttpURLConnection conn = open(18194, "echo", large.toString());
+        conn.setRequestProperty("Accept-Encoding", "deflate;q=0.5, gzip");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("gzip", conn.getHeaderField("Content-Encoding"));
+        assertEquals(large.toString(), inflate(new GZIPInputStream(conn.getInputStream())));
+
+        conn = open(18194, "echo", "tiny");
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        assertNull(conn.getHeaderField("Content-Encoding"));
+        assertEquals("tiny", readBody(conn));
+
+        conn = (HttpURLConnection) new URL("http://localhost:18194/batch/echo?ordered=true").openConnection();
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Accept-Encoding", "deflate");
+        conn.setDoOutput(true);
+        try (OutputStream os = conn.getOutputStream()) {
+            os.write("[\"a\", \"b\"]".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals("deflate", conn.getHeaderField("Content-Encoding"));
+        String[] lines = inflate(new InflaterInputStream(conn.getInputStream())).split("\n");
+        assertEquals("b", JsonParser.parseString(lines[1]).getAsJsonObject().get("result").getAsString());
+        launcher.stop();
+    }
+
+    @Test
+    public void testLoadBalancerPrefersLeastBusyHealthyBackend() throws Exception {
+        MicroserviceLauncher first = new MicroserviceLauncher();
+        first.registerMicroservice(BalancedMicroservice.class);
+        assertTrue(first.launch(18195));
+        MicroserviceLauncher second = new MicroserviceLauncher();
+        second.registerMicroservice(BalancedMicroservice.class);
+        assertTrue(second.launch(18196));
+
+        LoadBalancer balancer = new LoadBalancer();
+        balancer.addBackend("http://localhost:18195");
+        balancer.addBackend("http://localhost:18196");
+        balancer.setHealthCheckInterval(Duration.ofMillis(50));
+        balancer.start(18197);
+        assertTrue(balancer.awaitHealthy(5, TimeUnit.SECONDS));
+
+        ExecutorService clients = Executors.newSingleThreadExecutor();
+        Future<String> held = clients.submit(() -> readBody(open(18197, "hold", "x")));
+        assertTrue(BalancedMicroservice.started.await(5, TimeUnit.SECONDS));
+
+        // One backend is busy, so every other request goes to the idle one
+        String idle = readBody(open(18197, "whoami", "a"));
+        assertEquals(idle, readBody(open(18197, "whoami", "b")));
+
+        // Once the idle backend goes down, requests go to the busy one instead
+        MicroserviceLauncher idleLauncher = 
+            idle.equals(readBody(open(18195, "whoami", "c"))) ? first : second;
+        idleLauncher.stop();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (balancer.getHealthyBackendCount() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        String busy = readBody(open(18197, "whoami", "d"));
+        assertNotEquals(idle, busy);
+
+        BalancedMicroservice.release.countDown();
+        assertEquals(busy, held.get(5, TimeUnit.SECONDS));
+        clients.shutdown();
+        balancer.stop();
+        first.stop();
+        second.stop();
+    }
+
+    @Test
+    public void testBatchLargerThanTheBurstIsServedOnceTheLimitIsLifted() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(BurstLimitedMicroservice.class);
+        assertTrue(launcher.launch(18203));
+
+        List<String> inputs = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            inputs.add("file" + i);
+        }
+        // each item takes a token, so the items past the burst of 50 are rejected
+        HttpMicroserviceClient client = new HttpMicroserviceClient("http://localhost:18203");
+        List<String> results = client.callBatch("burst_limited", inputs);
+        assertEquals(50, results.stream().filter(result -> result != null).count());
+
+        launcher.setRateLimit("burst_limited", 0, 0, 0);
+        assertEquals(inputs, client.callBatch("burst_limited", inputs));
+        launcher.stop();
+    }
+
+    @Test
+    public void testClientReadsEveryFormOfRetryAfter() throws Exception {
+        // A server that answers 429 with the Retry-After header named by the request path
+        String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(30));
+        HttpServer server = HttpServer.create(new InetSocketAddress(18204), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/date")) {
+                exchange.getResponseHeaders().set("Retry-After", date);
+            } else if (path.equals("/malformed")) {
+                exchange.getResponseHeaders().set("Retry-After", "soon");
+            } else if (path.equals("/seconds")) {
+                exchange.getResponseHeaders().set("Retry-After", "7");
+            }
+            exchange.sendResponseHeaders(429, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            // Its own HTTP/1.1 client, so that no h2c upgrade or pooled connection of another test is involved
+            HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            HttpMicroserviceClient client = 
+                new HttpMicroserviceClient("http://localhost:18204", httpClient, Duration.ofSeconds(5));
+            assertEquals(7, retryAfter(client, "seconds"));
+            long fromDate = retryAfter(client, "date");
+            assertTrue("Retry-After date gave " + fromDate, fromDate > 20 && fromDate <= 30);
+            assertEquals(1, retryAfter(client, "malformed"));
+            assertEquals(1, retryAfter(client, "missing"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static long retryAfter(MicroserviceClient client, String path) throws IOException {
+        try {
+            client.call(path, "");
+            fail("Expected " + path + " to be rate limited");
+            return -1;
+        } catch (RateLimitExceededException e) {
+            return e.getRetryAfterSeconds();
+        }
+    }
+
+    @Test
+    public void testClientsOverTheirRateLimitGet429() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(RateLimitedMicroservice.class);
+        assertTrue(launcher.launch(18198));
+
+        HttpURLConnection conn = open(18198, "limited", "a");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("2", conn.getHeaderField("RateLimit-Limit"));
+        assertEquals("1", conn.getHeaderField("RateLimit-Remaining"));
+        conn = open(18198, "limited", "b");
+        assertEquals(200, conn.getResponseCode());
+        assertEquals("0", conn.getHeaderField("RateLimit-Remaining"));
+
+        conn = open(18198, "limited", "c");
+        assertEquals(429, conn.getResponseCode());
+        assertTrue(Long.parseLong(conn.getHeaderField("Retry-After")) > 0);
+        assertTrue(Long.parseLong(conn.getHeaderField("RateLimit-Reset")) > 0);
+
+        // Another client, identified by its API key, has its own bucket
+        conn = open(18198, "limited", "d");
+        conn.setRequestProperty("X-API-Key", "team-b");
+        assertEquals(200, conn.getResponseCode());
+
+        HttpMicroserviceClient client = new HttpMicroserviceClient("http://localhost:18198");
+        try {
+            client.call("limited", "e");
+            fail("Expected the rate limit to reject the call");
+        } catch (RateLimitExceededException e) {
+            assertTrue(e.getRetryAfterSeconds() > 0);
+        }
+        launcher.stop();
+    }
+
+    @Test
+    public void testTraceparentIsPropagatedToTheServer() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(EchoMicroservice.class);
+        assertTrue(launcher.launch(18199));
+
+        HttpMicroserviceClient client = new HttpMicroserviceClient("http://localhost:18199");
+        String traceId;
+        try (Span root = Tracer.startSpan("root")) {
+            traceId = root.getTraceId();
+            assertEquals("traced", client.call("echo", "traced"));
+        }
+
+        // The server span ends just after the response is sent, so it may be recorded a moment later
+        Span clientSpan = null;
+        Span server = null;
+        Span invoke = null;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server == null && System.currentTimeMillis() < deadline) {
+            for (Span span : Tracer.recentSpans()) {
+                if (!traceId.equals(span.getTraceId())) {
+                    continue;
+                }
+                if ("call echo".equals(span.getName())) {
+                    clientSpan = span;
+                } else if ("POST /echo".equals(span.getName())) {
+                    server = span;
+                } else if ("invoke echo".equals(span.getName())) {
+                    invoke = span;
+                }
+            }
+            Thread.sleep(10);
+        }
+        assertNotNull(clientSpan);
+        assertNotNull(server);
+        assertNotNull(invoke);
+        assertEquals(clientSpan.getSpanId(), server.getParentSpanId());
+        assertEquals(server.getSpanId(), invoke.getParentSpanId());
+        assertEquals("200", server.getAttributes().get("http.status_code"));
+
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:18199/traces?format=otlp").openConnection();
+        assertTrue(readBody(conn).contains("\"resourceSpans\""));
+        launcher.stop();
+    }
+
+    @Test
+    public void testDeadlineIsPropagatedToTheServer() throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.registerMicroservice(DeadlineMicroservice.class);
+        assertTrue(launcher.launch(18200));
+
+        HttpMicroserviceClient client = new HttpMicroserviceClient("http://localhost:18200");
+        assertEquals("none", client.call("remaining", "x"));
+        try (Deadline deadline = Deadline.start(Duration.ofSeconds(5))) {
+            assertSame(deadline, Deadline.current());
+            long remaining = Long.parseLong(client.call("remaining", "x"));
+            assertTrue(remaining > 0 && remaining <= 5000);
+        }
+
+        // a request that arrives with no time left is not run
+        HttpURLConnection conn = open(18200, "remaining", "x");
+        conn.setRequestProperty(Deadline.HEADER, "0");
+        assertEquals(504, conn.getResponseCode());
+
+        // and a client whose deadline has passed does not send it
+        try (Deadline deadline = Deadline.start(Duration.ZERO)) {
+            assertSame(deadline, Deadline.current());
+            client.call("remaining", "x");
+            fail("Expected the deadline to have passed");
+        } catch (DeadlineExceededException e) {
+            assertTrue(e.getMessage().contains("remaining"));
+        }
+        launcher.stop();
+    }
+
+    static String inflate(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    static int status(int port, String route) throws IOException {
+        return ((HttpURLConnection) new URL("http://localhost:" + port + "/" + route).openConnection())
+            .getResponseCode();
+    }
+
+    static HttpURLConnection open(int port, String endpoint, String input) throws IOException {
+        URL url = new URL("http://localhost:" + port + "/" + endpoint + "?input=" +
+            URLEncoder.encode(input, StandardCharsets.UTF_8.toString()));
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    static String readBody(HttpURLConnection conn) throws IOException {
+        try (InputStream in = conn.getResponseCode() < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
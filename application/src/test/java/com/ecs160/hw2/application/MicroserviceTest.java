@@ -3,12 +3,49 @@ package com.ecs160.hw2.application;
 import com.ecs160.hw2.application.microservice.BugFinderMicroservice;
 import com.ecs160.hw2.application.microservice.IssueComparatorMicroservice;
 import com.ecs160.hw2.application.microservice.IssueSummarizerMicroservice;
+import com.ecs160.hw2.application.model.BugIssue;
+import com.ecs160.hw2.application.service.BugIssueCodec;
+import com.ecs160.hw2.application.service.BugIssueMatcher;
+import com.ecs160.hw2.application.service.CFunctionChunker;
+import com.ecs160.hw2.application.service.EmbeddingIndex;
+import com.ecs160.hw2.application.service.JsonObjectScanner;
+import com.ecs160.hw2.application.service.LlmScheduler;
 import com.ecs160.hw2.application.service.OllamaClient;
+import com.ecs160.hw2.application.service.PromptCache;
+import com.ecs160.hw2.application.service.QueueDeadlineExceededException;
+import com.ecs160.hw2.application.service.RetryBudget;
+import com.ecs160.hw2.microservice.Deadline;
+import com.ecs160.hw2.microservice.DeadlineExceededException;
+import com.ecs160.hw2.microservice.DegradedResponseException;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.when;
 
@@ -66,5 +103,534 @@ public class MicroserviceTest {
             System.out.println("Ollama not available, skipping test: " + e.getMessage());
         }
     }
-}
 
+    @Test
+    public void testJsonObjectScannerEmitsObjectsAsTheyClose() {
+        List<JsonObject> objects = new ArrayList<>();
+        JsonObjectScanner scanner = new JsonObjectScanner(object -> objects.add(object));
+        String output = "<think>maybe {this} or [that]</think>Here are the bugs: [{\"bug_type\": \"Leak\", " +
+            "\"description\": \"buffer  not {freed}\\\" here\"}, {\"bug_type\": \"Overflow\"}] and some more text";
+
+        // fed a few characters at a time, like tokens; the first object arrives before the second is generated
+        int secondStart = output.indexOf(", {") + 1;
+        boolean more = true;
+        for (int i = 0; i < output.length() && more; i += 3) {
+            more = scanner.feed(output.substring(i, Math.min(output.length(), i + 3)));
+            if (i + 3 <= secondStart) {
+                assertEquals(i + 3 > output.indexOf("}, {") ? 1 : 0, objects.size());
+            }
+        }
+
+        assertFalse(more);
+        assertTrue(scanner.isArrayClosed());
+        assertEquals(2, objects.size());
+        assertEquals("buffer  not {freed}\" here", objects.get(0).get("description").getAsString());
+        assertEquals("Overflow", objects.get(1).get("bug_type").getAsString());
+    }
+
+    @Test
+    public void testJsonObjectScannerStopsWhenAsked() {
+        List<JsonObject> objects = new ArrayList<>();
+        JsonObjectScanner scanner = new JsonObjectScanner(object -> !objects.add(object));
+        assertFalse(scanner.feed("{\"bug_type\": \"A\"} {\"bug_type\": \"B\"}"));
+        assertEquals(1, objects.size());
+    }
+
+    @Test
+    public void testPromptCacheServesFromDiskAfterRestart() throws Exception {
+        Path dir = Files.createTempDirectory("prompt-cache");
+        String key = PromptCache.key("model", "{}", "prompt");
+        try (PromptCache cache = new PromptCache(dir, 1024 * 1024, 1024, PromptCache.Mode.READ_WRITE)) {
+            assertNull(cache.get(key));
+            cache.put(key, "line one\n  indented \u00e9");
+            assertEquals(1, cache.getMisses());
+        }
+
+        try (PromptCache cache = new PromptCache(dir, 1024 * 1024, 1024, PromptCache.Mode.READ_WRITE)) {
+            assertEquals("line one\n  indented \u00e9", cache.get(key));
+            assertEquals(1, cache.getDiskHits());
+            cache.get(key);
+            assertEquals(1, cache.getMemoryHits());
+        }
+    }
+
+    @Test
+    public void testPromptCacheEvictsOldestSegments() throws Exception {
+        Path dir = Files.createTempDirectory("prompt-cache");
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            value.append("0123456789");
+        }
+        try (PromptCache cache = new PromptCache(dir, 8 * 1024, 1024, PromptCache.Mode.READ_WRITE)) {
+            for (int i = 0; i < 50; i++) {
+                cache.put(PromptCache.key("prompt " + i), value.toString());
+            }
+            assertTrue(cache.getEvictions() > 0);
+            assertNull(cache.get(PromptCache.key("prompt 0")));
+            assertEquals(value.toString(), cache.get(PromptCache.key("prompt 49")));
+        }
+        long bytes = 0;
+        try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                bytes += Files.size(file);
+            }
+        }
+        assertTrue(bytes <= 8 * 1024);
+    }
+
+    @Test
+    public void testReplayModeServesRecordedResponsesWithoutOllama() throws Exception {
+        Path dir = Files.createTempDirectory("prompt-cache");
+        try (PromptCache cache = new PromptCache(dir, 1024 * 1024, 1024, PromptCache.Mode.REPLAY)) {
+            OllamaClient client = new OllamaClient(cache);
+            try {
+                client.generate("never recorded");
+                fail("Expected a replay miss");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("replay"));
+            }
+        }
+
+        try (PromptCache cache = new PromptCache(dir, 1024 * 1024, 1024, PromptCache.Mode.READ_WRITE)) {
+            new OllamaClient(cache).record("find bugs", "[{\"bug_type\": \"Leak\", \"line\": 3}]");
+        }
+        try (PromptCache cache = new PromptCache(dir, 1024 * 1024, 1024, PromptCache.Mode.REPLAY)) {
+            List<JsonObject> objects = new ArrayList<>();
+            new OllamaClient(cache).generateJson("find bugs", objects::add);
+            assertEquals(1, objects.size());
+            assertEquals(3, objects.get(0).get("line").getAsInt());
+        }
+    }
+
+    @Test
+    public void testOllamaClientStopsStreamingOnceTheJsonIsComplete() throws Exception {
+        // stands in for ollama: streams the answer, then keeps generating for seconds
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/api/generate", exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = exchange.getResponseBody()) {
+                if (body.contains("\"stream\":false")) {
+                    os.write("{\"response\":\"  spaced\\n  text \",\"done\":true}".getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                String[] tokens = {"[{\\\"bug_type\\\": \\\"A\\\"}", ", {\\\"bug_type\\\": \\\"B\\\"}", "]"};
+                for (String token : tokens) {
+                    os.write(("{\"response\":\"" + token + "\",\"done\":false}\n").getBytes(StandardCharsets.UTF_8));
+                    os.flush();
+                }
+                for (int i = 0; i < 100; i++) {
+                    os.write("{\"response\":\" more\",\"done\":false}\n".getBytes(StandardCharsets.UTF_8));
+                    os.flush();
+                    Thread.sleep(50);
+                }
+            } catch (IOException | InterruptedException e) {
+                // the client hung up
+            }
+        });
+        server.start();
+        URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/api/generate");
+        try (PromptCache cache = new PromptCache(null, 0, 0, PromptCache.Mode.OFF)) {
+            OllamaClient client = new OllamaClient(cache, uri);
+            assertEquals("  spaced\n  text ", client.generateAsync("summarize").get());
+
+            List<JsonObject> objects = new ArrayList<>();
+            long start = System.nanoTime();
+            String response = client.generateJson("find bugs", objects::add);
+            assertTrue(System.nanoTime() - start < 2_000_000_000L);
+            assertEquals(2, objects.size());
+            assertEquals("B", objects.get(1).get("bug_type").getAsString());
+            assertFalse(response.contains("more"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testOllamaClientRetriesServerErrorsAndHedgesSlowGenerations() throws Exception {
+        // the primary fails its first request, then takes seconds to answer
+        AtomicInteger primaryRequests = new AtomicInteger();
+        HttpServer primary = HttpServer.create(new InetSocketAddress(0), 0);
+        primary.createContext("/api/generate", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            if (primaryRequests.incrementAndGet() == 1) {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+                return;
+            }
+            try {
+                if (primaryRequests.get() > 2) {
+                    Thread.sleep(3000);
+                }
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write("{\"response\":\"primary\",\"done\":true}".getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (IOException | InterruptedException e) {
+                // the client hung up
+            }
+        });
+        List<String> hedgeRequests = new CopyOnWriteArrayList<>();
+        HttpServer hedge = HttpServer.create(new InetSocketAddress(0), 0);
+        hedge.createContext("/api/generate", exchange -> {
+            hedgeRequests.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write("{\"response\":\"hedge\",\"done\":true}".getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        primary.start();
+        hedge.start();
+        URI primaryUri = URI.create("http://localhost:" + primary.getAddress().getPort() + "/api/generate");
+        URI hedgeUri = URI.create("http://localhost:" + hedge.getAddress().getPort() + "/api/generate");
+        try (PromptCache cache = new PromptCache(null, 0, 0, PromptCache.Mode.OFF)) {
+            RetryBudget budget = new RetryBudget(0.1, 0, 2);
+            OllamaClient client = new OllamaClient(cache, primaryUri).withRetryBudget(budget);
+            assertEquals("primary", client.generate("summarize"));
+            assertEquals(2, primaryRequests.get());
+            assertEquals(1, budget.getRetries());
+
+            long start = System.nanoTime();
+            OllamaClient hedged = client.withHedge(hedgeUri, "other-model", Duration.ofMillis(100));
+            assertEquals("hedge", hedged.generate("summarize again"));
+            assertTrue(System.nanoTime() - start < 2_000_000_000L);
+            assertEquals(1, hedgeRequests.size());
+            assertTrue(hedgeRequests.get(0).contains("\"model\":\"other-model\""));
+            assertEquals(2, budget.getRetries());
+
+            // the budget is spent, so the next slow generation is not hedged
+            assertEquals("primary", hedged.generate("and again"));
+            assertEquals(1, hedgeRequests.size());
+            assertEquals(1, budget.getRefused());
+        } finally {
+            primary.stop(0);
+            hedge.stop(0);
+        }
+    }
+
+    @Test
+    public void testOllamaClientGivesUpAtTheCallersDeadline() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/api/generate", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            try {
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream os = exchange.getResponseBody();
+                os.write("{\"response\":\"[\",\"done\":false}\n".getBytes(StandardCharsets.UTF_8));
+                os.flush();
+                Thread.sleep(5000);
+                os.close();
+            } catch (IOException | InterruptedException e) {
+                // the client hung up
+            }
+        });
+        server.start();
+        URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/api/generate");
+        try (PromptCache cache = new PromptCache(null, 0, 0, PromptCache.Mode.OFF)) {
+            OllamaClient client = new OllamaClient(cache, uri);
+            long start = System.nanoTime();
+            try (Deadline deadline = Deadline.start(Duration.ofMillis(300))) {
+                assertSame(deadline, Deadline.current());
+                client.generateJson("find bugs", object -> true);
+                fail("Expected the deadline to pass");
+            } catch (DeadlineExceededException e) {
+                assertTrue(System.nanoTime() - start < 2_000_000_000L);
+            }
+
+            // an expired deadline fails before anything is sent
+            try (Deadline deadline = Deadline.start(Duration.ZERO)) {
+                assertSame(deadline, Deadline.current());
+                client.generateAsync("summarize").get();
+                fail("Expected the deadline to have passed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof DeadlineExceededException);
+            }
+            assertNull(Deadline.current());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBatchSummaryRetriesOnlyTheIssuesMissingFromTheAnswer() throws Exception {
+        OllamaClient mockClient = Mockito.mock(OllamaClient.class);
+        List<String> prompts = new ArrayList<>();
+        when(mockClient.generateJson(anyString(), any())).thenAnswer(invocation -> {
+            String prompt = invocation.getArgument(0);
+            Predicate<JsonObject> onObject = invocation.getArgument(1);
+            prompts.add(prompt);
+            if (prompt.contains("Issue 3:")) {
+                // issue 2 is missing and the answer for issue 3 has no usable fields
+                onObject.test(JsonParser.parseString("{\"index\": 1, \"bug_type\": \"Leak\", \"line\": 7}").getAsJsonObject());
+                onObject.test(JsonParser.parseString("{\"index\": 3, \"line\": 9}").getAsJsonObject());
+                onObject.test(JsonParser.parseString("{\"index\": 9, \"bug_type\": \"Bogus\"}").getAsJsonObject());
+            }
+            return "";
+        });
+        when(mockClient.generateBugIssues(anyString(), any())).thenAnswer(invocation -> {
+            Predicate<BugIssue> onBug = invocation.getArgument(1);
+            prompts.add(invocation.getArgument(0));
+            onBug.test(BugIssueCodec.parseObject("{\"bug_type\": \"Retried\", \"line\": -1}"));
+            return "";
+        });
+
+        IssueSummarizerMicroservice service = new IssueSummarizerMicroservice(mockClient);
+        String result = service.handleBatchRequest(
+            "[{\"description\": \"leaks memory\"}, {\"description\": \"crashes\"}, {\"description\": \"hangs\"}]");
+
+        JsonArray summaries = JsonParser.parseString(result).getAsJsonArray();
+        assertEquals(3, summaries.size());
+        assertEquals("Leak", summaries.get(0).getAsJsonObject().get("bug_type").getAsString());
+        assertEquals(7, summaries.get(0).getAsJsonObject().get("line").getAsInt());
+        assertEquals("Retried", summaries.get(1).getAsJsonObject().get("bug_type").getAsString());
+        assertEquals("Retried", summaries.get(2).getAsJsonObject().get("bug_type").getAsString());
+        // one prompt for the batch, then one each for the two issues it did not answer
+        assertEquals(3, prompts.size());
+        assertTrue(prompts.get(1).contains("crashes"));
+        assertTrue(prompts.get(2).contains("hangs"));
+    }
+
+    @Test
+    public void testBatchSummaryFailsOnlyTheIssuesItCannotRead() throws Exception {
+        OllamaClient mockClient = Mockito.mock(OllamaClient.class);
+        List<String> prompts = new ArrayList<>();
+        when(mockClient.generateJson(anyString(), any())).thenAnswer(invocation -> {
+            Predicate<JsonObject> onObject = invocation.getArgument(1);
+            prompts.add(invocation.getArgument(0));
+            for (String type : new String[] {"A", "B", "C"}) {
+                onObject.test(JsonParser.parseString("{\"index\": " + (type.charAt(0) - 'A' + 1) + 
+                    ", \"bug_type\": \"" + type + "\"}").getAsJsonObject());
+            }
+            return "";
+        });
+
+        // the app sends a json null for an issue without a description
+        IssueSummarizerMicroservice service = new IssueSummarizerMicroservice(mockClient);
+        String input = "[{\"description\": \"leaks memory\"}, {\"title\": \"crash on start\", \"description\": null}, " +
+            "42, {\"description\": \"hangs\"}]";
+        try {
+            service.handleBatchRequest(input);
+            fail("Expected a degraded response");
+        } catch (DegradedResponseException e) {
+            JsonArray summaries = JsonParser.parseString(e.getResponse()).getAsJsonArray();
+            assertEquals(4, summaries.size());
+            assertEquals("A", summaries.get(0).getAsJsonObject().get("bug_type").getAsString());
+            assertEquals("B", summaries.get(1).getAsJsonObject().get("bug_type").getAsString());
+            assertEquals("Error", summaries.get(2).getAsJsonObject().get("bug_type").getAsString());
+            assertEquals("C", summaries.get(3).getAsJsonObject().get("bug_type").getAsString());
+        }
+        // one prompt for the three readable issues
+        assertEquals(1, prompts.size());
+        assertTrue(prompts.get(0).contains("Issue 2:\nTitle: crash on start\nDescription: crash on start\n"));
+        assertFalse(prompts.get(0).contains("Issue 4:"));
+    }
+
+    @Test
+    public void testCFunctionChunkerCutsBetweenFunctionsWithOverlap() {
+        String source = "#include <stdio.h>\n" +
+            "int f(void) {\n" +
+            "    char *s = \"}\"; /* { */\n" +
+            "    return 1;\n" +
+            "}\n" +
+            "int g(void) {\n" +
+            "    return 2;\n" +
+            "}\n";
+        // room for the first five numbered lines, but not the second function too
+        CFunctionChunker chunker = new CFunctionChunker(100, 1);
+        List<CFunctionChunker.Chunk> chunks = chunker.chunk(source);
+        assertEquals(2, chunks.size());
+        assertEquals(1, chunks.get(0).getFirstLine());
+        assertEquals(5, chunks.get(0).getLastLine());
+        assertTrue(chunks.get(0).getText().startsWith("1: #include <stdio.h>\n2: int f(void) {\n"));
+        // the second chunk repeats the line before it
+        assertEquals(5, chunks.get(1).getFirstLine());
+        assertEquals(8, chunks.get(1).getLastLine());
+        assertEquals("5: }\n6: int g(void) {\n7:     return 2;\n8: }\n", chunks.get(1).getText());
+        // lines counted from the top of the chunk are mapped back to the file
+        assertEquals(7, chunks.get(1).toFileLine(7));
+        assertEquals(6, chunks.get(1).toFileLine(2));
+        assertEquals(-1, chunks.get(1).toFileLine(40));
+
+        assertEquals(1, new CFunctionChunker(10_000, 5).chunk(source).size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBugFinderAnalyzesChunksAndDropsDuplicateFindings() throws Exception {
+        OllamaClient mockClient = Mockito.mock(OllamaClient.class);
+        AtomicInteger prompts = new AtomicInteger();
+        AtomicInteger reported = new AtomicInteger();
+        when(mockClient.generateBugIssuesAsync(anyString(), any())).thenAnswer(invocation -> {
+            String prompt = invocation.getArgument(0);
+            Predicate<BugIssue> onBug = invocation.getArgument(1);
+            prompts.incrementAndGet();
+            // reports a bug on every line of the chunk, so the lines chunks share are reported twice
+            Matcher line = Pattern.compile("(?m)^(\\d+): int").matcher(prompt);
+            while (line.find()) {
+                reported.incrementAndGet();
+                onBug.test(BugIssueCodec.parseObject("{\"bug_type\": \"Overflow\", \"line\": " + line.group(1) + "}"));
+            }
+            return CompletableFuture.completedFuture("");
+        });
+
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            code.append("int f").append(i).append("(void) { return ").append(i).append("; }\n");
+        }
+        JsonObject input = new JsonObject();
+        input.addProperty("filename", "big.c");
+        input.addProperty("content", code.toString());
+        String result = new BugFinderMicroservice(mockClient).handleRequest(input.toString());
+
+        JsonArray bugs = JsonParser.parseString(result).getAsJsonArray();
+        assertTrue(prompts.get() > 1);
+        assertTrue(reported.get() > 1000);
+        assertEquals(1000, bugs.size());
+        assertEquals(1, bugs.get(0).getAsJsonObject().get("line").getAsInt());
+        assertEquals(1000, bugs.get(999).getAsJsonObject().get("line").getAsInt());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testComparatorConfirmsOnlyCandidatePairsFoundByEmbedding() throws Exception {
+        EmbeddingIndex index = new EmbeddingIndex(Arrays.asList(
+            new float[] {1, 0, 0, 0, 0}, new float[] {0, 2, 0, 0, 0}, new float[] {3, 3, 0, 0, 0}));
+        List<EmbeddingIndex.Match> matches = index.search(new float[] {5, 0, 0, 0, 0}, 0.5f, 5);
+        assertEquals(2, matches.size());
+        assertEquals(0, matches.get(0).getIndex());
+        assertEquals(1.0f, matches.get(0).getScore(), 1e-6f);
+        assertEquals(2, matches.get(1).getIndex());
+
+        // each bug type embeds along its own axis
+        OllamaClient mockClient = Mockito.mock(OllamaClient.class);
+        String[] axes = {"Leak", "Overflow", "Race"};
+        when(mockClient.embedAsync(anyString())).thenAnswer(invocation -> {
+            String text = invocation.getArgument(0);
+            float[] vector = new float[axes.length];
+            for (int i = 0; i < axes.length; i++) {
+                vector[i] = text.startsWith(axes[i]) ? 1 : 0;
+            }
+            return CompletableFuture.completedFuture(vector);
+        });
+        List<String> prompts = new ArrayList<>();
+        when(mockClient.generateJson(anyString(), any())).thenAnswer(invocation -> {
+            String prompt = invocation.getArgument(0);
+            Predicate<JsonObject> onObject = invocation.getArgument(1);
+            prompts.add(prompt);
+            // the overflows turn out to be different bugs
+            String[] pairs = prompt.split("Pair \\d+:");
+            for (int n = 1; n < pairs.length; n++) {
+                boolean same = !pairs[n].contains("Overflow");
+                onObject.test(JsonParser.parseString("{\"pair\": " + n + ", \"same\": " + same + "}").getAsJsonObject());
+            }
+            return "";
+        });
+
+        String input = "{\"mode\": \"embedding\", " +
+            "\"list1\": [{\"bug_type\": \"Leak\", \"description\": \"a\"}, " +
+            "{\"bug_type\": \"Overflow\", \"description\": \"b\"}, {\"bug_type\": \"Race\", \"description\": \"c\"}], " +
+            "\"list2\": [{\"bug_type\": \"Overflow\", \"description\": \"d\"}, {\"bug_type\": \"Leak\", \"description\": \"e\"}]}";
+        JsonArray common = JsonParser.parseString(new IssueComparatorMicroservice(mockClient).handleRequest(input))
+            .getAsJsonArray();
+
+        assertEquals(1, common.size());
+        assertEquals("Leak", common.get(0).getAsJsonObject().get("bug_type").getAsString());
+        // the race has no candidate, and the two candidate pairs fit one prompt
+        assertEquals(1, prompts.size());
+        assertFalse(prompts.get(0).contains("Pair 3:"));
+    }
+
+    @Test
+    public void testIndexedMatcherFindsTheSameBugsAsThePairwiseOne() {
+        String[] types = {"Leak", "leak", "Overflow", "Race"};
+        String[] words = {"null", "pointer", "buffer", "free", "heap", "loop", "index", "lock", "the", "DATA"};
+        Random random = new Random(42);
+        List<List<BugIssue>> lists = new ArrayList<>();
+        for (int l = 0; l < 2; l++) {
+            List<BugIssue> bugs = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                StringBuilder description = new StringBuilder(" ");
+                for (int w = random.nextInt(6); w > 0; w--) {
+                    description.append(words[random.nextInt(words.length)]).append(random.nextBoolean() ? " " : "\t ");
+                }
+                BugIssue bug = new BugIssue();
+                bug.setBug_type(types[random.nextInt(types.length)]);
+                bug.setDescription(description.toString());
+                bugs.add(bug);
+            }
+            lists.add(bugs);
+        }
+
+        List<BugIssue> expected = BugIssueMatcher.findCommonBugsPairwise(lists.get(0), lists.get(1));
+        assertFalse(expected.isEmpty());
+        assertTrue(expected.size() < 1000);
+        assertEquals(expected, BugIssueMatcher.findCommonBugs(lists.get(0), lists.get(1)));
+    }
+
+    @Test
+    public void testBugIssueCodecToleratesLlmNoise() {
+        BugIssue bug = BugIssueCodec.parse("<think>{maybe}</think> Sure! Here it is: " +
+            "{\"bug_type\": \"MemoryLeak\", \"line\": \" 42 \", \"description\": \"buf {never} freed\", " +
+            "\"filename\": \"None\", \"severity\": {\"level\": 3}} Hope this helps.");
+        assertEquals("MemoryLeak", bug.getBug_type());
+        assertEquals(42, bug.getLine());
+        assertEquals("buf {never} freed", bug.getDescription());
+        assertEquals("", bug.getFilename());
+
+        List<BugIssue> bugs = BugIssueCodec.parseAll("Bugs [1] found:\n[{\"bug_type\": null, \"line\": \"None\"}, 7, " +
+            "{\"line\": 12.9, \"description\": [\"x\"], \"filename\": \"a.c\"}, {\"line\": \"12.5\"}]");
+        assertEquals(3, bugs.size());
+        assertEquals("Unknown", bugs.get(0).getBug_type());
+        assertEquals(-1, bugs.get(0).getLine());
+        assertEquals(12, bugs.get(1).getLine());
+        assertEquals("", bugs.get(1).getDescription());
+        assertEquals("a.c", bugs.get(1).getFilename());
+        assertEquals(-1, bugs.get(2).getLine());
+
+        JsonObject parsed = JsonParser.parseString("{\"line\": \"-\", \"bug_type\": 5, \"filename\": \"null\"}")
+            .getAsJsonObject();
+        BugIssue fromTree = BugIssueCodec.fromJson(parsed);
+        assertEquals(-1, fromTree.getLine());
+        assertEquals("5", fromTree.getBug_type());
+        assertEquals("", fromTree.getFilename());
+        assertNull(BugIssueCodec.parse("no json here"));
+        assertNull(BugIssueCodec.parseObject("{\"bug_type\": "));
+    }
+
+    @Test
+    public void testLlmSchedulerServesByPriorityThenTakesTurnsAcrossJobs() throws Exception {
+        LlmScheduler scheduler = new LlmScheduler(1, Duration.ofMinutes(1));
+        CompletableFuture<String> blocker = new CompletableFuture<>();
+        scheduler.submit(LlmScheduler.Priority.NORMAL, "other", () -> blocker);
+
+        List<String> started = new ArrayList<>();
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        String[][] requests = {{"BATCH", "a", "a1"}, {"BATCH", "a", "a2"}, {"BATCH", "b", "b1"}, {"INTERACTIVE", "c", "c1"}};
+        for (String[] request : requests) {
+            results.add(scheduler.submit(LlmScheduler.Priority.valueOf(request[0]), request[1], () -> {
+                started.add(request[2]);
+                return CompletableFuture.completedFuture(request[2]);
+            }));
+        }
+        CompletableFuture<String> late = scheduler.submit(LlmScheduler.Priority.INTERACTIVE, "d", Duration.ofMillis(50),
+            () -> CompletableFuture.completedFuture("too late"));
+        assertEquals(5, scheduler.getQueueDepth());
+
+        try {
+            late.get();
+            fail("Expected the request to be dropped at its deadline");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof QueueDeadlineExceededException);
+        }
+        assertEquals(1, scheduler.getDropped());
+
+        blocker.complete("done");
+        for (CompletableFuture<String> result : results) {
+            result.get();
+        }
+        assertEquals(List.of("c1", "a1", "b1", "a2"), started);
+        assertEquals(0, scheduler.getQueueDepth());
+        assertTrue(scheduler.renderMetrics().contains("llm_scheduler_queue_depth{priority=\"batch\"} 0"));
+    }
+}
@@ -0,0 +1,167 @@
+package com.ecs160.hw2.application;
+
+import com.ecs160.hw2.microservice.JdkServerEngine;
+import com.ecs160.hw2.microservice.MicroserviceLauncher;
+import com.ecs160.hw2.microservice.NioServerEngine;
+import com.ecs160.hw2.microservice.ServerEngine;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Compares the JDK and NIO server engines on the echo endpoint at a fixed request rate.
+ * Not a unit test; run it with
+ * mvn -q test-compile exec:java -Dexec.mainClass=com.ecs160.hw2.application.ServerEngineBenchmark
+ * -Dexec.classpathScope=test [-Dexec.args="rps seconds connections jdk,nio"]
+ *
+ * Each client connection sends keep-alive requests on a fixed schedule and latency is measured
+ * from the scheduled send time, so a server that falls behind is charged for the backlog.
+ */
+public class ServerEngineBenchmark {
+    private static final int REQUEST_TIMEOUT_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int rps = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+
+        String engines = args.length > 3 ? args[3] : "jdk,nio";
+
+        if (engines.contains("jdk")) {
+            run("jdk", JdkServerEngine::new, 18280, rps, seconds, connections);
+        }
+        if (engines.contains("nio")) {
+            run("nio", NioServerEngine::new, 18281, rps, seconds, connections);
+        }
+        System.exit(0);
+    }
+
+    private static void run(String name, Supplier<ServerEngine> engine, int port, int rps, int seconds,
+                            int connections) throws Exception {
+        MicroserviceLauncher launcher = new MicroserviceLauncher();
+        launcher.setServerEngine(engine.get());
+        launcher.registerMicroservice(MicroserviceLauncherTest.EchoMicroservice.class);
+        if (!launcher.launch(port)) {
+            throw new IllegalStateException("Could not launch on port " + port);
+        }
+
+        // Warm up, then measure
+        load(port, rps, 2, connections);
+        long started = System.nanoTime();
+        long[] latencies = load(port, rps, seconds, connections);
+        double elapsedSeconds = (System.nanoTime() - started) / 1e9;
+        launcher.stop();
+
+        long completed = Arrays.stream(latencies).filter(l -> l >= 0).count();
+        long[] sorted = Arrays.stream(latencies).filter(l -> l >= 0).sorted().toArray();
+        System.out.printf("%s: %d/%d requests completed, %.0f req/s, p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms%n",
+            name, completed, latencies.length, completed / elapsedSeconds,
+            percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999));
+    }
+
+    private static long[] load(int port, int rps, int seconds, int connections) throws InterruptedException {
+        int perConnection = rps * seconds / connections;
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) * connections / rps;
+        long[] latencies = new long[perConnection * connections];
+        Arrays.fill(latencies, -1);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+
+        Thread[] clients = new Thread[connections];
+        for (int c = 0; c < connections; c++) {
+            int client = c;
+            clients[c] = new Thread(() -> {
+                byte[] request = ("GET /echo?input=ping" + client + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+                Socket socket = null;
+                InputStream in = null;
+                // Stagger the connections across one interval
+                long scheduled = start + intervalNanos * client / connections;
+                for (int i = 0; i < perConnection; i++, scheduled += intervalNanos) {
+                    try {
+                        long wait = scheduled - System.nanoTime();
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                        if (socket == null) {
+                            socket = new Socket("localhost", port);
+                            socket.setTcpNoDelay(true);
+                            socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+                            in = new BufferedInputStream(socket.getInputStream());
+                        }
+                        socket.getOutputStream().write(request);
+                        socket.getOutputStream().flush();
+                        readResponse(in);
+                        latencies[client * perConnection + i] = System.nanoTime() - scheduled;
+                    } catch (IOException e) {
+                        // Counted as a failed request; the next one reconnects
+                        close(socket);
+                        socket = null;
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                close(socket);
+            });
+            clients[c].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        return latencies;
+    }
+
+    /**
+     * Reads one response with a Content-Length body, which is all the echo endpoint sends.
+     */
+    private static void readResponse(InputStream in) throws IOException {
+        int contentLength = 0;
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed");
+            }
+            if (b != '\n') {
+                line.append((char) b);
+                continue;
+            }
+            String header = line.toString().trim();
+            line.setLength(0);
+            if (header.isEmpty()) {
+                break;
+            }
+            if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Integer.parseInt(header.substring(15).trim());
+            }
+        }
+        for (int i = 0; i < contentLength; i++) {
+            if (in.read() < 0) {
+                throw new IOException("Connection closed");
+            }
+        }
+    }
+
+    private static void close(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1_000_000.0;
+    }
+}
@@ -0,0 +1,111 @@
+package com.ecs160.hw2.microservice;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Isolated thread pool for the endpoints of one microservice class. Callers block until their
+ * invocation has run on a bulkhead thread; when every thread is busy and the queue is full the
+ * invocation is rejected instead of waiting.
+ */
+class Bulkhead {
+    private final String name;
+    private final int queueCapacity;
+    private final ThreadPoolExecutor executor;
+    private final LongAdder rejected = new LongAdder();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    Bulkhead(String name, int threads, int queueCapacity) {
+        this.name = name;
+        this.queueCapacity = Math.max(0, queueCapacity);
+        BlockingQueue<Runnable> queue = this.queueCapacity > 0
+            ? new ArrayBlockingQueue<>(this.queueCapacity) : new SynchronousQueue<>();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, runnable -> {
+            Thread thread = new Thread(runnable, "bulkhead-" + name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the task on a bulkhead thread and waits for its result. Exceptions thrown by the task
+     * are rethrown as they are.
+     *
+     * @throws EndpointOverloadedException if the bulkhead is saturated
+     */
+    <T> T call(String endpoint, Callable<T> task) throws Exception {
+        long submitted = System.nanoTime();
+        Callable<T> traced = Tracer.wrap(Deadline.wrap(task));
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                queueWait.recordNanos(System.nanoTime() - submitted);
+                return traced.call();
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new EndpointOverloadedException(endpoint, 1);
+        }
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getActiveThreads() {
+        return executor.getActiveCount();
+    }
+
+    int getMaxThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    long getCompleted() {
+        return executor.getCompletedTaskCount();
+    }
+
+    LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,18 @@
+package com.ecs160.hw2.microservice;
+
+/**
+ * Second-level store behind the in-memory response cache, shared by all cacheable endpoints.
+ * Keys are content hashes, so implementations never see raw endpoint input.
+ */
+public interface CacheTier {
+
+    /**
+     * Returns the cached value, or null if it is absent or expired.
+     */
+    String get(String key);
+
+    /**
+     * Stores a value that expires at the given wall-clock time in milliseconds.
+     */
+    void put(String key, String value, long expiresAtMillis);
+}
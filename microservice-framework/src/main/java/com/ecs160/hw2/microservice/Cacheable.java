@@ -0,0 +1,28 @@
+package com.ecs160.hw2.microservice;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Method-level annotation that opts an @Endpoint into response caching.
+ * Responses are keyed by a content hash of the endpoint url and its input, so an identical
+ * request is answered from the cache instead of invoking the endpoint again. An endpoint that
+ * falls back to a degraded answer on failure throws DegradedResponseException with it, so that
+ * the fallback is not cached.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Cacheable {
+
+    /**
+     * How long a cached response stays valid, in seconds.
+     */
+    long ttlSeconds() default 3600;
+
+    /**
+     * Maximum number of responses kept in memory; the least recently used are evicted first.
+     */
+    int maxEntries() default 1000;
+}
@@ -0,0 +1,131 @@
+package com.ecs160.hw2.microservice;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control for a single endpoint: at most limit invocations run at once and at most
+ * maxQueue more wait for a slot. Anything beyond that is shed immediately so that the caller
+ * can answer with 503 instead of piling more work onto the backend. A waiting request is shed
+ * when its queue timeout passes, if there is one, or when its Deadline does.
+ *
+ * In adaptive mode the limit is tuned with AIMD: it grows by one slot per limit's worth of
+ * fast completions and shrinks multiplicatively when latency rises well above the best latency
+ * observed so far (the gradient signal) or when an invocation fails.
+ */
+class ConcurrencyLimiter {
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long queueTimeoutNanos;
+    private final boolean adaptive;
+
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private long minLatencyNanos = Long.MAX_VALUE;
+    private long smoothedLatencyNanos;
+
+    ConcurrencyLimiter(int maxLimit, int maxQueue, long queueTimeoutMillis, boolean adaptive) {
+        if (maxLimit <= 0) {
+            throw new IllegalArgumentException("Concurrency limit must be positive: " + maxLimit);
+        }
+        this.maxLimit = maxLimit;
+        this.maxQueue = Math.max(0, maxQueue);
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        this.adaptive = adaptive;
+        this.limit = maxLimit;
+    }
+
+    /**
+     * Takes a slot, waiting in the bounded queue if the endpoint is at its limit, until the queue
+     * timeout or the current Deadline, whichever comes first.
+     *
+     * @return true if the caller may proceed and must later call release, false if it was shed
+     */
+    synchronized boolean acquire() throws InterruptedException {
+        if (inFlight < currentLimit()) {
+            inFlight++;
+            return true;
+        }
+        if (waiting >= maxQueue) {
+            return false;
+        }
+
+        waiting++;
+        try {
+            long waitNanos = waitNanos();
+            long deadline = System.nanoTime() + waitNanos;
+            while (inFlight >= currentLimit()) {
+                if (waitNanos == Long.MAX_VALUE) {
+                    wait();
+                    continue;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            inFlight++;
+            return true;
+        } finally {
+            waiting--;
+        }
+    }
+
+    /**
+     * How long a request may wait in the queue: the queue timeout, capped by the time left
+     * to the current Deadline, or Long.MAX_VALUE if neither applies.
+     */
+    private long waitNanos() {
+        long wait = queueTimeoutNanos > 0 ? queueTimeoutNanos : Long.MAX_VALUE;
+        Deadline current = Deadline.current();
+        if (current != null) {
+            wait = Math.min(wait, current.remaining().toNanos());
+        }
+        return wait;
+    }
+
+    /**
+     * Returns a slot and feeds the observed latency into the adaptive limit.
+     */
+    synchronized void release(long latencyNanos, boolean success) {
+        inFlight--;
+        smoothedLatencyNanos = smoothedLatencyNanos == 0
+            ? latencyNanos
+            : (smoothedLatencyNanos * 7 + latencyNanos) / 8;
+
+        if (adaptive) {
+            minLatencyNanos = Math.min(minLatencyNanos, latencyNanos);
+            if (!success || latencyNanos > minLatencyNanos * LATENCY_TOLERANCE) {
+                limit = Math.max(1, limit * BACKOFF_RATIO);
+            } else {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Suggested Retry-After for a shed request: roughly the time for the work ahead of it to drain.
+     */
+    synchronized long retryAfterSeconds() {
+        long queued = (long) inFlight + waiting;
+        long drainNanos = smoothedLatencyNanos * Math.max(1, queued) / Math.max(1, currentLimit());
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(drainNanos));
+    }
+
+    synchronized int currentLimit() {
+        return (int) limit;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    synchronized int getWaiting() {
+        return waiting;
+    }
+}
@@ -0,0 +1,39 @@
+package com.ecs160.hw2.microservice;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content hashes used to key cached and coalesced endpoint invocations, and any other cache that
+ * is addressed by what it stores, such as the application's prompt cache.
+ */
+public final class ContentHash {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ContentHash() {
+    }
+
+    /**
+     * SHA-256 of the parts, such as an endpoint url and its input, as lowercase hex. Each part is
+     * followed by a zero byte, so that moving text from one part to the next changes the hash.
+     */
+    public static String of(String... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            byte[] hash = digest.digest();
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
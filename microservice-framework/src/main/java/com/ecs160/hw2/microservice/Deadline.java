@@ -0,0 +1,159 @@
+package com.ecs160.hw2.microservice;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+
+/**
+ * Request deadlines. A deadline started on a thread bounds everything the thread does until it is
+ * closed, crosses threads through wrap, and crosses services as the time remaining in the
+ * X-Request-Timeout-Ms header, so one time limit set by the caller bounds every hop below it.
+ * A deadline started inside another never outlasts it. Clients cap their own timeouts with cap
+ * and give up early with check.
+ */
+public final class Deadline implements AutoCloseable {
+    public static final String HEADER = "X-Request-Timeout-Ms";
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long expiresAtNanos;
+    private final Deadline previous;
+
+    private Deadline(long expiresAtNanos, Deadline previous) {
+        this.expiresAtNanos = expiresAtNanos;
+        this.previous = previous;
+    }
+
+    /**
+     * Starts a deadline the timeout from now, or at the current deadline if that is sooner, and
+     * makes it current until closed.
+     */
+    public static Deadline start(Duration timeout) {
+        Deadline current = CURRENT.get();
+        long expiresAt = System.nanoTime() + timeout.toNanos();
+        if (current != null && current.expiresAtNanos - expiresAt < 0) {
+            expiresAt = current.expiresAtNanos;
+        }
+        Deadline deadline = new Deadline(expiresAt, current);
+        CURRENT.set(deadline);
+        return deadline;
+    }
+
+    /**
+     * Starts the deadline carried by an X-Request-Timeout-Ms header, or returns null, starting
+     * nothing, if the header is missing or malformed.
+     */
+    public static Deadline startFromHeader(String header) {
+        if (header == null) {
+            return null;
+        }
+        try {
+            long millis = Long.parseLong(header.trim());
+            return millis >= 0 ? start(Duration.ofMillis(millis)) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The current deadline on this thread, or null.
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * The timeout, shortened to the time left before the current deadline if there is one. Never
+     * less than a millisecond, since zero timeouts mean "none" to some APIs.
+     */
+    public static Duration cap(Duration timeout) {
+        Deadline current = CURRENT.get();
+        if (current == null) {
+            return timeout;
+        }
+        Duration remaining = current.remaining();
+        Duration capped = remaining.compareTo(timeout) < 0 ? remaining : timeout;
+        return capped.toMillis() < 1 ? Duration.ofMillis(1) : capped;
+    }
+
+    /**
+     * Header value for the current deadline, or null when there is none.
+     */
+    public static String currentHeader() {
+        Deadline current = CURRENT.get();
+        return current != null ? String.valueOf(current.remaining().toMillis()) : null;
+    }
+
+    /**
+     * @throws DeadlineExceededException if the current deadline has passed
+     */
+    public static void check(String operation) throws DeadlineExceededException {
+        Deadline current = CURRENT.get();
+        if (current != null && current.isExpired()) {
+            throw new DeadlineExceededException(operation);
+        }
+    }
+
+    /**
+     * Wraps a task so that it runs under the current deadline on another thread.
+     */
+    public static <T> Callable<T> wrap(Callable<T> task) {
+        Deadline deadline = CURRENT.get();
+        if (deadline == null) {
+            return task;
+        }
+        return () -> {
+            Deadline saved = CURRENT.get();
+            CURRENT.set(deadline);
+            try {
+                return task.call();
+            } finally {
+                restore(saved);
+            }
+        };
+    }
+
+    public static Runnable wrap(Runnable task) {
+        Deadline deadline = CURRENT.get();
+        if (deadline == null) {
+            return task;
+        }
+        return () -> {
+            Deadline saved = CURRENT.get();
+            CURRENT.set(deadline);
+            try {
+                task.run();
+            } finally {
+                restore(saved);
+            }
+        };
+    }
+
+    /**
+     * Time left before the deadline, zero once it has passed.
+     */
+    public Duration remaining() {
+        long remaining = expiresAtNanos - System.nanoTime();
+        return Duration.ofNanos(Math.max(0, remaining));
+    }
+
+    public boolean isExpired() {
+        return expiresAtNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * Ends the deadline's scope, making the one it was started in current again.
+     */
+    @Override
+    public void close() {
+        if (CURRENT.get() == this) {
+            restore(previous);
+        }
+    }
+
+    private static void restore(Deadline deadline) {
+        if (deadline != null) {
+            CURRENT.set(deadline);
+        } else {
+            CURRENT.remove();
+        }
+    }
+}
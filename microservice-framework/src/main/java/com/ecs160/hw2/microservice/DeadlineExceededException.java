@@ -0,0 +1,14 @@
+package com.ecs160.hw2.microservice;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an operation is given up because the request's Deadline has passed.
+ */
+public class DeadlineExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public DeadlineExceededException(String operation) {
+        super("Deadline exceeded: " + operation);
+    }
+}
@@ -0,0 +1,24 @@
+package com.ecs160.hw2.microservice;
+
+/**
+ * Thrown by an endpoint to answer with a fallback response, such as an empty result after its
+ * backend failed. The response is sent to the caller as usual but is never put in the endpoint's
+ * response cache, so a transient failure is not served again for the cache's whole TTL.
+ */
+public class DegradedResponseException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final String response;
+
+    public DegradedResponseException(String response, Throwable cause) {
+        super("Degraded response", cause);
+        this.response = response;
+    }
+
+    /**
+     * The fallback response to send.
+     */
+    public String getResponse() {
+        return response;
+    }
+}
@@ -0,0 +1,44 @@
+package com.ecs160.hw2.microservice;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed-size direct buffers, so that socket reads and writes neither allocate per request
+ * nor go through the JDK's temporary copy for heap buffers.
+ */
+class DirectBufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    DirectBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        // Only pooled-size direct buffers come back; anything else is left to the GC
+        if (buffer.isDirect() && buffer.capacity() == bufferSize && pooled.incrementAndGet() <= maxPooled) {
+            free.offer(buffer);
+        } else if (buffer.isDirect() && buffer.capacity() == bufferSize) {
+            pooled.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.ecs160.hw2.microservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache tier that keeps one file per key in a directory, so cached responses survive restarts.
+ * Each file holds the expiry time on its first line followed by the value.
+ * When the directory grows past maxBytes the oldest files are deleted. The size is tracked by
+ * this instance alone, so a directory should not be shared by several processes.
+ */
+public class DiskCacheTier implements CacheTier {
+    private final File directory;
+    private final long maxBytes;
+    private final AtomicLong totalBytes;
+
+    public DiskCacheTier(String directory, long maxBytes) {
+        this.directory = new File(directory);
+        this.maxBytes = maxBytes;
+        if (!this.directory.exists()) {
+            this.directory.mkdirs();
+        }
+        long size = 0;
+        File[] files = this.directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isFile()) {
+                    size += f.length();
+                }
+            }
+        }
+        this.totalBytes = new AtomicLong(size);
+    }
+
+    @Override
+    public String get(String key) {
+        File file = new File(directory, key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            int newline = content.indexOf('\n');
+            if (newline < 0) {
+                return null;
+            }
+            long expiresAt = Long.parseLong(content.substring(0, newline));
+            if (expiresAt < System.currentTimeMillis()) {
+                delete(file);
+                return null;
+            }
+            return content.substring(newline + 1);
+        } catch (IOException | NumberFormatException e) {
+            // An unreadable or partially written entry is treated as a miss
+            return null;
+        }
+    }
+
+    @Override
+    public void put(String key, String value, long expiresAtMillis) {
+        File file = new File(directory, key);
+        File tmp = null;
+        byte[] bytes = (expiresAtMillis + "\n" + value).getBytes(StandardCharsets.UTF_8);
+        try {
+            long previous = file.length();
+            // A temporary file of its own, so that concurrent writers of one key cannot clobber it
+            tmp = Files.createTempFile(directory.toPath(), key, ".tmp").toFile();
+            Files.write(tmp.toPath(), bytes);
+            // Rename so that readers never observe a half-written entry
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            if (totalBytes.addAndGet(bytes.length - previous) > maxBytes) {
+                evictOldest();
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing cache entry " + key + ": " + e.getMessage());
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private synchronized void evictOldest() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File f : files) {
+            if (totalBytes.get() <= maxBytes * 3 / 4) {
+                break;
+            }
+            if (f.isFile()) {
+                delete(f);
+            }
+        }
+    }
+
+    private void delete(File file) {
+        long length = file.length();
+        if (file.delete()) {
+            totalBytes.addAndGet(-length);
+        }
+    }
+}
@@ -7,11 +7,61 @@ import java.lang.annotation.Target;
 
 /**
  * Method-level annotation that indicates the method that is the entry point of a particular microservice url.
- * The method signature should be String handleRequest(String input).
+ * The method signature should be String handleRequest(String input), or
+ * void handleRequest(String input, ResponseStream out) for an endpoint that streams its result.
  */
 @Target(ElementType.METHOD)
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Endpoint {
     String url();
-}
 
+    /**
+     * Maximum number of concurrent invocations of this endpoint. 0 means unlimited.
+     */
+    int maxConcurrency() default 0;
+
+    /**
+     * Maximum number of requests that may wait for a slot once maxConcurrency is reached.
+     * Requests beyond that are rejected with 503 and a Retry-After header.
+     */
+    int maxQueue() default 0;
+
+    /**
+     * How long a queued request waits for a slot before it is rejected, in milliseconds. 0 or
+     * less waits without a time limit of its own. A queued request never waits past its Deadline.
+     */
+    long queueTimeoutMillis() default 30000;
+
+    /**
+     * Tunes the concurrency limit from observed latency, using maxConcurrency as the ceiling.
+     */
+    boolean adaptiveConcurrency() default false;
+
+    /**
+     * Lets concurrent requests with identical input share a single invocation.
+     * Ignored for streaming endpoints.
+     */
+    boolean coalesce() default true;
+
+    /**
+     * Sustained HTTP requests per second accepted from all clients together. Requests beyond it are
+     * rejected with 429. 0 means unlimited.
+     */
+    double rateLimit() default 0;
+
+    /**
+     * Sustained HTTP requests per second accepted from each client, identified by its X-API-Key
+     * header or else its IP address. 0 means unlimited.
+     */
+    double clientRateLimit() default 0;
+
+    /**
+     * Requests a rate limit lets through at once after being idle. 0 allows one second's worth.
+     */
+    int rateLimitBurst() default 0;
+
+    /**
+     * Content-Type of the endpoint's responses.
+     */
+    String contentType() default "application/json; charset=utf-8";
+}
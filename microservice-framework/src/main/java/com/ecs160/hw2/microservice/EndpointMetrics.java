@@ -0,0 +1,16 @@
+package com.ecs160.hw2.microservice;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counters and latency histograms for one endpoint. All recording is lock-free.
+ */
+class EndpointMetrics {
+    final LongAdder requests = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder shed = new LongAdder();
+    final LongAdder rateLimited = new LongAdder();
+    final LongAdder inFlight = new LongAdder();
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LatencyHistogram queueWait = new LatencyHistogram();
+}
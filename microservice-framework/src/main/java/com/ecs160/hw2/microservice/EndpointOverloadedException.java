@@ -0,0 +1,22 @@
+package com.ecs160.hw2.microservice;
+
+/**
+ * Thrown when an endpoint sheds a request because its concurrency limit and wait queue are full.
+ */
+public class EndpointOverloadedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterSeconds;
+
+    public EndpointOverloadedException(String endpoint, long retryAfterSeconds) {
+        super("Endpoint overloaded: " + endpoint);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * How long the caller should wait before retrying, in seconds.
+     */
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,214 @@
+package com.ecs160.hw2.microservice;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * MicroserviceClient that calls endpoints over HTTP, sending inputs as POST bodies.
+ * Built on java.net.http.HttpClient, so connections are kept alive and reused across calls
+ * (negotiating HTTP/2 where the server supports it), and every request has a timeout.
+ * Instances created without an explicit HttpClient share one connection pool.
+ */
+public class HttpMicroserviceClient implements MicroserviceClient {
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofMinutes(5);
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_UNAVAILABLE = 503;
+    private static final long DEFAULT_RETRY_AFTER_SECONDS = 1;
+    private static final HttpResponse.BodyHandler<String> UTF8_BODY = responseInfo -> new Utf8BodySubscriber();
+
+    private final String baseUrl;
+    private final HttpClient httpClient;
+    private final Duration defaultTimeout;
+    private final Map<String, Duration> endpointTimeouts;
+    private final Gson gson;
+
+    public HttpMicroserviceClient(String baseUrl) {
+        this(baseUrl, SharedHttpClient.INSTANCE, DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    public HttpMicroserviceClient(String baseUrl, HttpClient httpClient, Duration defaultTimeout) {
+        this.baseUrl = baseUrl;
+        this.httpClient = httpClient;
+        this.defaultTimeout = defaultTimeout;
+        this.endpointTimeouts = new ConcurrentHashMap<>();
+        this.gson = new Gson();
+    }
+
+    /**
+     * Overrides the request timeout for one endpoint. Use "batch/{endpoint}" for its batch route.
+     */
+    public void setTimeout(String endpoint, Duration timeout) {
+        endpointTimeouts.put(endpoint, timeout);
+    }
+
+    @Override
+    public String call(String endpoint, String input) throws IOException {
+        try (Span span = Tracer.startSpan("call " + endpoint)) {
+            try {
+                Deadline.check("call " + endpoint);
+                HttpResponse<String> response = httpClient.send(request(endpoint, input), UTF8_BODY);
+                span.setAttribute("http.status_code", response.statusCode());
+                return checkStatus(endpoint, response.statusCode(), response).body();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                span.recordError(e);
+                throw new IOException("Interrupted while calling " + endpoint, e);
+            } catch (IOException e) {
+                span.recordError(e);
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> callAsync(String endpoint, String input) {
+        return httpClient.sendAsync(request(endpoint, input), UTF8_BODY)
+            .thenApply(response -> {
+                try {
+                    return checkStatus(endpoint, response.statusCode(), response).body();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            });
+    }
+
+    @Override
+    public List<String> callBatch(String endpoint, List<String> inputs) throws IOException {
+        List<String> results = new ArrayList<>(inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            results.add(null);
+        }
+        if (inputs.isEmpty()) {
+            return results;
+        }
+
+        String path = "batch/" + endpoint;
+        try (Span span = Tracer.startSpan("call " + path)) {
+            span.setAttribute("batch.size", inputs.size());
+            try {
+                Deadline.check("call " + path);
+                readBatch(endpoint, path, inputs, results);
+            } catch (IOException e) {
+                span.recordError(e);
+                throw e;
+            }
+        }
+        return results;
+    }
+
+    private void readBatch(String endpoint, String path, List<String> inputs, List<String> results) throws IOException {
+        HttpResponse<Stream<String>> response;
+        try {
+            response = httpClient.send(request(path, gson.toJson(inputs)), HttpResponse.BodyHandlers.ofLines());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while calling " + path, e);
+        }
+        checkStatus(path, response.statusCode(), response);
+
+        // Lines are consumed as the server streams them; each is one result tagged with its input index
+        try (Stream<String> lines = response.body()) {
+            lines.filter(line -> !line.isEmpty()).forEach(line -> {
+                JsonObject item = gson.fromJson(line, JsonObject.class);
+                int index = item.get("index").getAsInt();
+                if (item.get("status").getAsInt() == HTTP_OK) {
+                    results.set(index, item.get("result").getAsString());
+                } else {
+                    System.err.println("Error calling microservice " + endpoint + " for item " + index + 
+                        ": " + item.get("error").getAsString());
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private HttpRequest request(String path, String body) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + "/" + path))
+            .timeout(Deadline.cap(endpointTimeouts.getOrDefault(path, defaultTimeout)))
+            .header("Content-Type", "application/json; charset=utf-8")
+            .POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8));
+        // Continues the caller's trace in the microservice
+        String traceparent = Tracer.currentTraceparent();
+        if (traceparent != null) {
+            request.header("traceparent", traceparent);
+        }
+        // Passes on the time the caller has left, so the microservice gives up when the caller does
+        String deadline = Deadline.currentHeader();
+        if (deadline != null) {
+            request.header(Deadline.HEADER, deadline);
+        }
+        return request.build();
+    }
+
+    private <T> HttpResponse<T> checkStatus(String path, int status, HttpResponse<T> response) throws IOException {
+        if (status == HTTP_UNAVAILABLE) {
+            String retryAfter = response.headers().firstValue("Retry-After").orElse(null);
+            if (retryAfter != null) {
+                throw new EndpointOverloadedException(path, retryAfterSeconds(retryAfter));
+            }
+        }
+        if (status == HTTP_TOO_MANY_REQUESTS) {
+            String retryAfter = response.headers().firstValue("Retry-After").orElse(null);
+            throw new RateLimitExceededException(path, retryAfterSeconds(retryAfter));
+        }
+        if (status != HTTP_OK) {
+            throw new IOException("Microservice returned error code: " + status);
+        }
+        return response;
+    }
+
+    /**
+     * Reads a Retry-After value, which is either a number of seconds or an HTTP date, as seconds
+     * from now. A missing or malformed value gives the default delay.
+     */
+    static long retryAfterSeconds(String retryAfter) {
+        if (retryAfter == null || retryAfter.trim().isEmpty()) {
+            return DEFAULT_RETRY_AFTER_SECONDS;
+        }
+        String value = retryAfter.trim();
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            // Not a number of seconds, so tries the date form
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            long millis = Duration.between(ZonedDateTime.now(date.getZone()), date).toMillis();
+            return Math.max(0, (millis + 999) / 1000);
+        } catch (DateTimeParseException e) {
+            return DEFAULT_RETRY_AFTER_SECONDS;
+        }
+    }
+
+    /**
+     * Connection pool shared by every client that does not bring its own HttpClient.
+     */
+    private static class SharedHttpClient {
+        static final HttpClient INSTANCE = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
+    }
+}
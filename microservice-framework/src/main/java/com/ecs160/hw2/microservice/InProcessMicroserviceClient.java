@@ -0,0 +1,90 @@
+package com.ecs160.hw2.microservice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * MicroserviceClient that invokes endpoints registered with a launcher in the same JVM directly,
+ * skipping URL encoding, the TCP round trip and response copies. Requests still go through the
+ * endpoint's cache, coalescing and admission control. Endpoints the launcher does not host are
+ * sent to the fallback client.
+ */
+public class InProcessMicroserviceClient implements MicroserviceClient {
+    private final MicroserviceLauncher launcher;
+    private final MicroserviceClient fallback;
+
+    public InProcessMicroserviceClient(MicroserviceLauncher launcher, MicroserviceClient fallback) {
+        this.launcher = launcher;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public String call(String endpoint, String input) throws IOException {
+        RegisteredEndpoint registered = launcher.findEndpoint(endpoint);
+        if (registered == null || registered.isStreaming()) {
+            return callFallback(endpoint).call(endpoint, input);
+        }
+        try {
+            String result = launcher.invokeEndpoint(registered, input);
+            return result != null ? result : "";
+        } catch (EndpointOverloadedException | IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Microservice " + endpoint + " failed: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<String> callAsync(String endpoint, String input) {
+        RegisteredEndpoint registered = launcher.findEndpoint(endpoint);
+        if ((registered == null || registered.isStreaming()) && fallback != null) {
+            return fallback.callAsync(endpoint, input);
+        }
+        Callable<String> task = Tracer.wrap(Deadline.wrap(() -> call(endpoint, input)));
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, launcher.getExecutor());
+    }
+
+    @Override
+    public List<String> callBatch(String endpoint, List<String> inputs) throws IOException {
+        RegisteredEndpoint registered = launcher.findEndpoint(endpoint);
+        if (registered == null || registered.isStreaming()) {
+            return callFallback(endpoint).callBatch(endpoint, inputs);
+        }
+
+        List<CompletableFuture<String>> futures = 
+            launcher.invokeBatch(registered, inputs, launcher.getMaxBatchParallelism());
+        List<String> results = new ArrayList<>(futures.size());
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                String result = futures.get(i).get();
+                results.add(result != null ? result : "");
+            } catch (ExecutionException e) {
+                System.err.println("Error calling microservice " + endpoint + " for item " + i + 
+                    ": " + e.getCause().getMessage());
+                results.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for batch " + endpoint, e);
+            }
+        }
+        return results;
+    }
+
+    private MicroserviceClient callFallback(String endpoint) throws IOException {
+        if (fallback == null) {
+            throw new IOException("Endpoint not hosted in this process: " + endpoint);
+        }
+        return fallback;
+    }
+}
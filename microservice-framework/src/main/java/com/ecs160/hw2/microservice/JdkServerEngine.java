@@ -0,0 +1,38 @@
+package com.ecs160.hw2.microservice;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+/**
+ * ServerEngine backed by the JDK's built-in com.sun.net.httpserver.HttpServer.
+ */
+public class JdkServerEngine implements ServerEngine {
+    private HttpServer server;
+
+    @Override
+    public void start(InetSocketAddress address, int backlog, HttpHandler handler, Executor executor) 
+            throws IOException {
+        server = HttpServer.create(address, backlog);
+        server.setExecutor(executor);
+        // Register a handler for all paths
+        server.createContext("/", handler);
+        server.start();
+    }
+
+    @Override
+    public void stop(int delaySeconds) {
+        if (server != null) {
+            server.stop(delaySeconds);
+            server = null;
+        }
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return server != null ? server.getAddress() : null;
+    }
+}
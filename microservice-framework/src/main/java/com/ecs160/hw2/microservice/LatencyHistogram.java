@@ -0,0 +1,87 @@
+package com.ecs160.hw2.microservice;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram. Values are recorded in microseconds
+ * into log-linear buckets: each power of two is split into 16 linear sub-buckets, which keeps
+ * quantile error within about 6% from 1 microsecond up to several days. Every bucket is a
+ * LongAdder, so concurrent recorders never contend on a lock or a shared counter.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void recordNanos(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        buckets[indexOf(micros)].increment();
+        count.increment();
+        sumMicros.add(micros);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    double getSumSeconds() {
+        return sumMicros.sum() / 1_000_000.0;
+    }
+
+    /**
+     * Value at the given quantile (0..1) in seconds, or 0 if nothing has been recorded.
+     * Reads are not atomic with respect to concurrent recording, which is fine for monitoring.
+     */
+    double quantileSeconds(double quantile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0.0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return midpointMicros(i) / 1_000_000.0;
+            }
+        }
+        return midpointMicros(BUCKET_COUNT - 1) / 1_000_000.0;
+    }
+
+    private static int indexOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(micros));
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) Math.min(SUB_BUCKETS - 1, (micros >>> shift) - SUB_BUCKETS);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static double midpointMicros(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) / 2.0;
+    }
+}
@@ -0,0 +1,291 @@
+package com.ecs160.hw2.microservice;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP load balancer in front of several MicroserviceLauncher instances, such as WorkerProcesses
+ * on other ports or other hosts. Each request goes to the healthy backend with the fewest
+ * requests outstanding. Backends are health-checked through their GET /ready route, and one that
+ * refuses a connection is taken out of rotation until it passes a check again.
+ */
+public class LoadBalancer {
+    private static final Duration DEFAULT_HEALTH_CHECK_INTERVAL = Duration.ofSeconds(2);
+    private static final Duration HEALTH_CHECK_TIMEOUT = Duration.ofSeconds(2);
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(10);
+    private static final int DEFAULT_BACKLOG = 128;
+    private static final String[] FORWARDED_REQUEST_HEADERS = 
+        {"Content-Type", "Accept", "Accept-Encoding", "X-API-Key", "traceparent", Deadline.HEADER};
+    private static final String[] FORWARDED_RESPONSE_HEADERS = {"Content-Type", "Content-Encoding", "Retry-After", 
+        "Vary", "Cache-Control", "RateLimit-Limit", "RateLimit-Remaining", "RateLimit-Reset"};
+
+    private final List<Backend> backends = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextBackend = new AtomicInteger();
+    private final HttpClient httpClient;
+    private final ExecutorService executorService;
+    private ScheduledExecutorService healthChecker;
+    private ServerEngine serverEngine;
+    private Duration healthCheckInterval;
+
+    public LoadBalancer() {
+        // HTTP/1.1 keeps every proxied request on a plain keep-alive connection, without h2c upgrades
+        this.httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
+        this.executorService = Executors.newCachedThreadPool();
+        this.serverEngine = new JdkServerEngine();
+        this.healthCheckInterval = DEFAULT_HEALTH_CHECK_INTERVAL;
+    }
+
+    /**
+     * Adds a backend by its base url, such as http://localhost:8081. Backends start out healthy
+     * until their first health check says otherwise.
+     */
+    public void addBackend(String baseUrl) {
+        backends.add(new Backend(baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl));
+    }
+
+    public void setHealthCheckInterval(Duration healthCheckInterval) {
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    /**
+     * Sets the HTTP server implementation the balancer listens with. Must be called before start.
+     */
+    public void setServerEngine(ServerEngine serverEngine) {
+        this.serverEngine = serverEngine;
+    }
+
+    /**
+     * Starts listening on the port and health-checking backends. Returns once the port is bound.
+     */
+    public void start(int port) throws IOException {
+        if (backends.isEmpty()) {
+            throw new IllegalStateException("No backends added. Please add backends first.");
+        }
+        healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "load-balancer-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, 0, healthCheckInterval.toMillis(),
+            TimeUnit.MILLISECONDS);
+        serverEngine.start(new InetSocketAddress(port), DEFAULT_BACKLOG, new ProxyHandler(), executorService);
+        System.out.println("Load balancer started on port " + port + " for " + backends.size() + " backends");
+    }
+
+    /**
+     * Waits until at least one backend passes a health check, returning false on timeout.
+     */
+    public boolean awaitHealthy(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (getHealthyBackendCount() == 0) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+        return true;
+    }
+
+    public int getHealthyBackendCount() {
+        int healthy = 0;
+        for (Backend backend : backends) {
+            if (backend.healthy && backend.checked) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    public void stop() {
+        serverEngine.stop(0);
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        executorService.shutdown();
+    }
+
+    private void checkHealth() {
+        for (Backend backend : backends) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(backend.baseUrl + "/ready"))
+                .timeout(HEALTH_CHECK_TIMEOUT)
+                .GET()
+                .build();
+            boolean healthy;
+            try {
+                healthy = httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+            } catch (IOException e) {
+                healthy = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (healthy != backend.healthy) {
+                System.out.println("Backend " + backend.baseUrl + " is " + (healthy ? "healthy" : "unhealthy"));
+            }
+            backend.healthy = healthy;
+            backend.checked = true;
+        }
+    }
+
+    /**
+     * Picks the healthy backend with the fewest outstanding requests, skipping the excluded one.
+     * Ties are broken round-robin so that an idle pool still spreads its load.
+     */
+    private Backend choose(Backend excluded) {
+        int size = backends.size();
+        int start = Math.floorMod(nextBackend.getAndIncrement(), size);
+        Backend best = null;
+        for (int i = 0; i < size; i++) {
+            Backend backend = backends.get((start + i) % size);
+            if (!backend.healthy || backend == excluded) {
+                continue;
+            }
+            if (best == null || backend.outstanding.get() < best.outstanding.get()) {
+                best = backend;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Forwards every request to a backend and relays the response as it arrives, so streaming and
+     * batch responses stay incremental.
+     */
+    private class ProxyHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = in.readAllBytes();
+            }
+
+            Backend failed = null;
+            // A request is retried on a second backend only if the first refused the connection,
+            // since then it cannot have run
+            for (int attempt = 0; attempt < 2; attempt++) {
+                Backend backend = choose(failed);
+                if (backend == null) {
+                    break;
+                }
+                backend.outstanding.incrementAndGet();
+                AtomicBoolean released = new AtomicBoolean();
+                Runnable release = () -> {
+                    if (released.compareAndSet(false, true)) {
+                        backend.outstanding.decrementAndGet();
+                    }
+                };
+                try {
+                    HttpResponse<InputStream> response =
+                        httpClient.send(forward(exchange, backend, body), HttpResponse.BodyHandlers.ofInputStream());
+                    relay(exchange, response, release);
+                    return;
+                } catch (ConnectException | HttpConnectTimeoutException e) {
+                    System.err.println("Backend " + backend.baseUrl + " refused a connection: " + e.getMessage());
+                    backend.healthy = false;
+                    failed = backend;
+                } catch (IOException e) {
+                    sendError(exchange, 502, "Backend " + backend.baseUrl + " failed: " + e.getMessage());
+                    return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sendError(exchange, 502, "Interrupted while waiting for " + backend.baseUrl);
+                    return;
+                } finally {
+                    release.run();
+                }
+            }
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            sendError(exchange, 503, "No healthy backend available");
+        }
+
+        private HttpRequest forward(HttpExchange exchange, Backend backend, byte[] body) {
+            HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(backend.baseUrl + exchange.getRequestURI()))
+                .timeout(REQUEST_TIMEOUT)
+                .method(exchange.getRequestMethod(), body.length > 0
+                    ? HttpRequest.BodyPublishers.ofByteArray(body) : HttpRequest.BodyPublishers.noBody());
+            for (String header : FORWARDED_REQUEST_HEADERS) {
+                String value = exchange.getRequestHeaders().getFirst(header);
+                if (value != null) {
+                    request.header(header, value);
+                }
+            }
+            // Backends rate limit per client, so they need the original client address
+            String client = exchange.getRemoteAddress().getAddress().getHostAddress();
+            String forwardedFor = exchange.getRequestHeaders().getFirst("X-Forwarded-For");
+            request.header("X-Forwarded-For", forwardedFor != null ? forwardedFor + ", " + client : client);
+            return request.build();
+        }
+
+        /**
+         * Relays the backend's response. The backend is released once its response has been read,
+         * before the client's response is completed, so that a client which sends its next request
+         * as soon as it has the answer already sees the backend as free.
+         */
+        private void relay(HttpExchange exchange, HttpResponse<InputStream> response, Runnable release)
+                throws IOException {
+            for (String header : FORWARDED_RESPONSE_HEADERS) {
+                response.headers().firstValue(header).ifPresent(value -> exchange.getResponseHeaders().set(header, value));
+            }
+            // Keep fixed-length responses fixed-length; anything else is relayed chunked
+            long length = response.headers().firstValueAsLong("Content-Length").orElse(0);
+            boolean fixedLength = response.headers().firstValue("Content-Length").isPresent();
+            exchange.sendResponseHeaders(response.statusCode(), fixedLength ? (length > 0 ? length : -1) : 0);
+            try (InputStream in = response.body(); OutputStream os = exchange.getResponseBody()) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    os.write(buffer, 0, n);
+                    if (!fixedLength) {
+                        os.flush();
+                    }
+                }
+                release.run();
+            }
+        }
+
+        private void sendError(HttpExchange exchange, int statusCode, String message) throws IOException {
+            byte[] body = message.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(statusCode, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+
+    private static class Backend {
+        final String baseUrl;
+        final AtomicInteger outstanding = new AtomicInteger();
+        volatile boolean healthy = true;
+        volatile boolean checked;
+
+        Backend(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+    }
+}
@@ -11,5 +11,16 @@ import java.lang.annotation.Target;
 @Target(ElementType.TYPE)
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Microservice {
-}
 
+    /**
+     * Size of this microservice's own thread pool (bulkhead), so that its slow endpoints cannot
+     * starve other microservices. 0 runs its endpoints on the launcher's shared executor.
+     */
+    int threads() default 0;
+
+    /**
+     * Invocations that may wait for a bulkhead thread once all are busy. Invocations beyond that
+     * are rejected with 503. Ignored when threads is 0.
+     */
+    int queueCapacity() default 16;
+}
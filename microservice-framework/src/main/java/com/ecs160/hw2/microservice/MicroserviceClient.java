@@ -0,0 +1,48 @@
+package com.ecs160.hw2.microservice;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Client for calling microservice endpoints. The same API is backed either by HTTP or by direct
+ * dispatch to a launcher in the same JVM, so callers can switch transports by configuration.
+ */
+public interface MicroserviceClient {
+
+    /**
+     * Calls an endpoint with a single input and returns its response.
+     *
+     * @throws EndpointOverloadedException if the endpoint shed the request
+     * @throws IOException if the endpoint could not be reached or failed
+     */
+    String call(String endpoint, String input) throws IOException;
+
+    /**
+     * Calls an endpoint without blocking the caller. The future fails with the same exceptions
+     * that call would throw.
+     */
+    CompletableFuture<String> callAsync(String endpoint, String input);
+
+    /**
+     * Calls an endpoint once per input in a single batch. Results are in input order,
+     * with null for items that failed.
+     */
+    List<String> callBatch(String endpoint, List<String> inputs) throws IOException;
+
+    /**
+     * Creates a client for the named transport: "inprocess" dispatches to the launcher's
+     * endpoints directly and falls back to HTTP for endpoints it does not host; "http" always
+     * goes over HTTP to baseUrl.
+     */
+    static MicroserviceClient forTransport(String transport, MicroserviceLauncher launcher, String baseUrl) {
+        HttpMicroserviceClient http = new HttpMicroserviceClient(baseUrl);
+        if ("inprocess".equalsIgnoreCase(transport)) {
+            return new InProcessMicroserviceClient(launcher, http);
+        }
+        if ("http".equalsIgnoreCase(transport)) {
+            return http;
+        }
+        throw new IllegalArgumentException("Unknown microservice transport: " + transport);
+    }
+}
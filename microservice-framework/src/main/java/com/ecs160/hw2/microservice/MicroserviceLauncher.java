@@ -1,38 +1,198 @@
 package com.ecs160.hw2.microservice;
 
-import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Launches microservices that are annotated with @Microservice and @Endpoint.
  */
 public class MicroserviceLauncher {
-    private Map<String, Method> endpointMap;
-    private Map<String, Object> serviceInstances;
+    private static final int DEFAULT_BACKLOG = 128;
+    private static final int DEFAULT_BATCH_PARALLELISM = 4;
+    private static final long BATCH_RETRY_DELAY_MILLIS = 100;
+    private static final String BATCH_PREFIX = "batch/";
+    private static final String METRICS_ROUTE = "metrics";
+    private static final String HEALTH_ROUTE = "health";
+    private static final String READY_ROUTE = "ready";
+    private static final String TRACES_ROUTE = "traces";
+    private static final String TRACEPARENT_HEADER = "traceparent";
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    private static final Duration SHUTDOWN_DRAIN_TIMEOUT = Duration.ofSeconds(30);
+    
+    private Map<String, RegisteredEndpoint> endpointMap;
+    private final Map<Class<?>, Bulkhead> bulkheads = new LinkedHashMap<>();
     private ExecutorService executorService;
     private int port;
-    private boolean running;
+    private int backlog;
+    private CacheTier cacheTier;
+    private int maxBatchParallelism;
+    private int compressionThreshold;
+    private final List<Supplier<String>> metricsSources = new CopyOnWriteArrayList<>();
+    private ServerEngine serverEngine;
+    private volatile boolean running;
+    private volatile boolean draining;
+    private final CountDownLatch readyLatch = new CountDownLatch(1);
+    // Requests being served over HTTP or in-process; a request may be counted more than once while nested
+    private final AtomicInteger activeRequests = new AtomicInteger();
 
     public MicroserviceLauncher() {
         this.endpointMap = new HashMap<>();
-        this.serviceInstances = new HashMap<>();
         this.executorService = Executors.newCachedThreadPool();
+        this.backlog = DEFAULT_BACKLOG;
+        this.maxBatchParallelism = DEFAULT_BATCH_PARALLELISM;
+        this.compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+        this.serverEngine = new JdkServerEngine();
         this.running = false;
     }
 
+    /**
+     * Sets the HTTP server implementation, such as a NioServerEngine. Must be called before launch.
+     * Defaults to the JDK's built-in HttpServer.
+     */
+    public void setServerEngine(ServerEngine serverEngine) {
+        this.serverEngine = serverEngine;
+    }
+
+    /**
+     * Gives a microservice class its own thread pool of the given size, overriding the threads and
+     * queueCapacity declared on its @Microservice annotation. Can be called before or after the
+     * class is registered, but not once requests are being served.
+     */
+    public void setBulkhead(Class<?> serviceClass, int threads, int queueCapacity) {
+        Bulkhead previous = bulkheads.remove(serviceClass);
+        if (previous != null) {
+            previous.shutdown();
+        }
+        Bulkhead bulkhead = threads > 0 ? new Bulkhead(serviceClass.getSimpleName(), threads, queueCapacity) : null;
+        if (bulkhead != null) {
+            bulkheads.put(serviceClass, bulkhead);
+        }
+        for (RegisteredEndpoint registered : endpointMap.values()) {
+            if (registered.getServiceInstance().getClass() == serviceClass) {
+                registered.setBulkhead(bulkhead);
+            }
+        }
+    }
+
+    /**
+     * Sets an endpoint's rate limits, overriding those declared on its @Endpoint annotation, so a
+     * deployment can limit the clients it serves without limiting every other. Zero rates remove
+     * the limits.
+     *
+     * @throws IllegalArgumentException if no endpoint with the url is registered
+     */
+    public void setRateLimit(String url, double rateLimit, double clientRateLimit, int burst) {
+        RegisteredEndpoint registered = endpointMap.get(url);
+        if (registered == null) {
+            throw new IllegalArgumentException("Endpoint not registered: " + url);
+        }
+        registered.setRateLimiter(rateLimit > 0 || clientRateLimit > 0 
+            ? new RateLimiter(rateLimit, clientRateLimit, burst) : null);
+    }
+
+    /**
+     * Sets the TCP accept backlog used when the server is launched.
+     */
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Sets how many items of a batch request may be invoked concurrently. A batch request can ask
+     * for less with its parallelism query parameter but never for more.
+     */
+    public void setMaxBatchParallelism(int maxBatchParallelism) {
+        this.maxBatchParallelism = Math.max(1, maxBatchParallelism);
+    }
+
+    /**
+     * Sets the smallest response, in bytes, that is compressed for clients sending Accept-Encoding
+     * gzip or deflate. Smaller responses are not worth the CPU. Integer.MAX_VALUE disables compression
+     * of fixed-length responses.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = Math.max(0, compressionThreshold);
+    }
+
+    /**
+     * Adds metrics of the hosted application to GET /metrics. The source returns lines in the
+     * Prometheus text format, which are appended after the launcher's own metrics.
+     */
+    public void addMetricsSource(Supplier<String> source) {
+        metricsSources.add(source);
+    }
+
+    Executor getExecutor() {
+        return executorService;
+    }
+
+    int getMaxBatchParallelism() {
+        return maxBatchParallelism;
+    }
+
+    /**
+     * Sets the second-level store shared by all @Cacheable endpoints, such as a DiskCacheTier.
+     */
+    public void setCacheTier(CacheTier cacheTier) {
+        this.cacheTier = cacheTier;
+        for (RegisteredEndpoint registered : endpointMap.values()) {
+            if (registered.getCache() != null) {
+                registered.getCache().setSecondTier(cacheTier);
+            }
+        }
+    }
+
+    /**
+     * Returns the response cache of a @Cacheable endpoint, or null if the endpoint is not cached.
+     */
+    public ResponseCache getResponseCache(String url) {
+        RegisteredEndpoint registered = endpointMap.get(url);
+        return registered != null ? registered.getCache() : null;
+    }
+
+    /**
+     * Returns how many requests to an endpoint were answered by sharing a concurrent identical invocation.
+     */
+    public long getCoalescedRequests(String url) {
+        RegisteredEndpoint registered = endpointMap.get(url);
+        return registered != null && registered.getSingleFlight() != null
+            ? registered.getSingleFlight().getCoalescedCount() : 0;
+    }
+
     /**
      * Scans for classes annotated with @Microservice and registers their endpoints.
      */
@@ -52,6 +212,11 @@ public class MicroserviceLauncher {
      */
     public void registerMicroservice(Class<?> clazz) throws Exception {
         Object serviceInstance = clazz.getDeclaredConstructor().newInstance();
+        Microservice microservice = clazz.getAnnotation(Microservice.class);
+        if (!bulkheads.containsKey(clazz) && microservice != null && microservice.threads() > 0) {
+            bulkheads.put(clazz, new Bulkhead(clazz.getSimpleName(), microservice.threads(), 
+                microservice.queueCapacity()));
+        }
         Method[] methods = clazz.getDeclaredMethods();
         
         for (Method method : methods) {
@@ -60,19 +225,39 @@ public class MicroserviceLauncher {
                 String url = endpoint.url();
                 
                 // Verify method signature: String handleRequest(String input)
-                if (method.getReturnType() != String.class) {
-                    throw new RuntimeException("Method " + method.getName() + 
-                        " must return String");
-                }
-                
+                // or void handleRequest(String input, ResponseStream out)
                 Class<?>[] paramTypes = method.getParameterTypes();
-                if (paramTypes.length != 1 || paramTypes[0] != String.class) {
+                boolean streaming = paramTypes.length == 2 && paramTypes[1] == ResponseStream.class;
+                if (streaming) {
+                    if (method.getReturnType() != void.class) {
+                        throw new RuntimeException("Streaming method " + method.getName() + 
+                            " must return void");
+                    }
+                } else {
+                    if (method.getReturnType() != String.class) {
+                        throw new RuntimeException("Method " + method.getName() + 
+                            " must return String");
+                    }
+                    if (paramTypes.length != 1) {
+                        throw new RuntimeException("Method " + method.getName() + 
+                            " must have exactly one String parameter");
+                    }
+                }
+                if (paramTypes[0] != String.class) {
                     throw new RuntimeException("Method " + method.getName() + 
-                        " must have exactly one String parameter");
+                        " must take a String input as its first parameter");
+                }
+                if (streaming && method.isAnnotationPresent(Cacheable.class)) {
+                    throw new RuntimeException("Streaming method " + method.getName() + 
+                        " cannot be @Cacheable");
                 }
                 
-                endpointMap.put(url, method);
-                serviceInstances.put(url, serviceInstance);
+                RegisteredEndpoint registered = new RegisteredEndpoint(url, method, serviceInstance, streaming);
+                registered.setBulkhead(bulkheads.get(clazz));
+                if (registered.getCache() != null) {
+                    registered.getCache().setSecondTier(cacheTier);
+                }
+                endpointMap.put(url, registered);
                 
                 System.out.println("Registered endpoint: " + url);
             }
@@ -85,32 +270,13 @@ public class MicroserviceLauncher {
      * microservice and invoking it, collecting the response, and sending it back to the client.
      */
     public boolean launch(int port) {
-        this.port = port;
-        
         if (endpointMap.isEmpty()) {
             System.err.println("No endpoints registered. Please register microservices first.");
             return false;
         }
 
         try {
-            HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-            server.setExecutor(executorService);
-            
-            // Register a handler for all paths
-            server.createContext("/", new MicroserviceRequestHandler());
-            
-            this.running = true;
-            server.start();
-            
-            System.out.println("Microservice server started on port " + port);
-            System.out.println("Registered endpoints: " + endpointMap.keySet());
-            
-            // Keep the server running
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                server.stop(0);
-                stop();
-            }));
-            
+            start(port);
             return true;
         } catch (java.net.BindException e) {
             System.err.println("Error starting server: Port " + port + " is already in use.");
@@ -124,17 +290,309 @@ public class MicroserviceLauncher {
         }
     }
 
+    /**
+     * Starts the server on the specified port and returns once it is bound and accepting requests,
+     * at which point the launcher reports ready. On JVM shutdown the server is drained rather than
+     * dropped, so that in-flight requests can finish.
+     */
+    public void start(int port) throws IOException {
+        if (endpointMap.isEmpty()) {
+            throw new IllegalStateException("No endpoints registered. Please register microservices first.");
+        }
+        this.port = port;
+        
+        serverEngine.start(new InetSocketAddress(port), backlog, new MicroserviceRequestHandler(), executorService);
+        this.running = true;
+        readyLatch.countDown();
+        
+        System.out.println("Microservice server started on port " + port);
+        System.out.println("Registered endpoints: " + endpointMap.keySet());
+        
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (running) {
+                drain(SHUTDOWN_DRAIN_TIMEOUT);
+            }
+        }));
+    }
+
+    /**
+     * Waits until the server has started, returning false if it did not within the timeout.
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return readyLatch.await(timeout, unit) && isReady();
+    }
+
+    /**
+     * Whether the server is running and accepting new requests, as reported by GET /ready.
+     */
+    public boolean isReady() {
+        return running && !draining;
+    }
+
+    /**
+     * Gracefully stops the server: GET /ready starts failing and new HTTP requests to endpoints
+     * are refused with 503, then requests already in flight get up to the timeout to finish
+     * before the server is stopped.
+     *
+     * @return true if every in-flight request finished within the timeout
+     */
+    public boolean drain(Duration timeout) {
+        draining = true;
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (activeRequests.get() > 0 && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        boolean drained = activeRequests.get() == 0;
+        if (!drained) {
+            System.err.println("Stopping with " + activeRequests.get() + " requests still in flight");
+        }
+        stop();
+        return drained;
+    }
+
+    /**
+     * Looks up a registered endpoint by url, returning null if this launcher does not host it.
+     */
+    RegisteredEndpoint findEndpoint(String url) {
+        return endpointMap.get(url);
+    }
+    
+    /**
+     * Invokes a request/response endpoint through its response cache, request coalescing and
+     * admission control. Failures thrown by the endpoint method are rethrown unwrapped.
+     *
+     * @throws EndpointOverloadedException if the endpoint shed the request
+     */
+    String invokeEndpoint(RegisteredEndpoint registered, String input) throws Exception {
+        activeRequests.incrementAndGet();
+        try (Span span = Tracer.startSpan("invoke " + registered.getUrl())) {
+            span.setAttribute("endpoint", registered.getUrl());
+            try {
+                return invokeCached(registered, input);
+            } catch (Exception e) {
+                span.recordError(e);
+                throw e;
+            }
+        } finally {
+            activeRequests.decrementAndGet();
+        }
+    }
+    
+    private String invokeCached(RegisteredEndpoint registered, String input) throws Exception {
+        registered.getMetrics().requests.increment();
+        ResponseCache cache = registered.getCache();
+        SingleFlight singleFlight = registered.getSingleFlight();
+        String key = cache != null || singleFlight != null ? ContentHash.of(registered.getUrl(), input) : null;
+        if (cache != null) {
+            String cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        
+        if (singleFlight != null) {
+            return singleFlight.execute(key, () -> invokeAdmitted(registered, input, key));
+        }
+        return invokeAdmitted(registered, input, key);
+    }
+    
+    private String invokeAdmitted(RegisteredEndpoint registered, String input, String key) throws Exception {
+        admit(registered);
+        
+        long start = beginInvocation(registered);
+        boolean success = false;
+        try {
+            // A request whose caller has given up while it queued is not worth running
+            Deadline.check("invoke " + registered.getUrl());
+            String result = (String) invokeMethod(registered, input);
+            success = true;
+            ResponseCache cache = registered.getCache();
+            if (cache != null && result != null) {
+                cache.put(key, result);
+            }
+            return result;
+        } catch (DegradedResponseException e) {
+            // Answered, but counted as an error and not cached
+            return e.getResponse();
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DegradedResponseException) {
+                return ((DegradedResponseException) cause).getResponse();
+            }
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } finally {
+            endInvocation(registered, start, success);
+        }
+    }
+    
+    /**
+     * Admission control: waits in the endpoint's bounded queue for a slot, recording the wait.
+     *
+     * @throws EndpointOverloadedException if the endpoint sheds the request
+     */
+    private void admit(RegisteredEndpoint registered) {
+        ConcurrencyLimiter limiter = registered.getLimiter();
+        if (limiter == null) {
+            return;
+        }
+        long waitStart = System.nanoTime();
+        boolean admitted = acquire(limiter);
+        registered.getMetrics().queueWait.recordNanos(System.nanoTime() - waitStart);
+        if (!admitted) {
+            registered.getMetrics().shed.increment();
+            throw new EndpointOverloadedException(registered.getUrl(), limiter.retryAfterSeconds());
+        }
+    }
+    
+    /**
+     * Calls the endpoint method, on its microservice's bulkhead when it has one.
+     *
+     * @throws EndpointOverloadedException if the bulkhead is saturated
+     */
+    private Object invokeMethod(RegisteredEndpoint registered, Object... args) throws Exception {
+        Bulkhead bulkhead = registered.getBulkhead();
+        if (bulkhead == null) {
+            return registered.getMethod().invoke(registered.getServiceInstance(), args);
+        }
+        return bulkhead.call(registered.getUrl(), 
+            () -> registered.getMethod().invoke(registered.getServiceInstance(), args));
+    }
+    
+    private long beginInvocation(RegisteredEndpoint registered) {
+        registered.getMetrics().inFlight.increment();
+        return System.nanoTime();
+    }
+    
+    /**
+     * Records the invocation's outcome and returns its admission slot.
+     */
+    private void endInvocation(RegisteredEndpoint registered, long start, boolean success) {
+        long elapsed = System.nanoTime() - start;
+        EndpointMetrics metrics = registered.getMetrics();
+        metrics.inFlight.decrement();
+        metrics.latency.recordNanos(elapsed);
+        if (!success) {
+            metrics.errors.increment();
+        }
+        if (registered.getLimiter() != null) {
+            registered.getLimiter().release(elapsed, success);
+        }
+    }
+    
+    /**
+     * Invokes an endpoint once per input, with at most parallelism invocations running at a time,
+     * and no more than the endpoint's concurrency limit. Each item goes through invokeEndpoint, so
+     * it is cached, coalesced and admission-controlled like an individual request, except that an
+     * item the endpoint sheds is tried again until the batch's deadline rather than failed: the
+     * batch has already been accepted, and its items wait their turn. The returned futures are in
+     * input order.
+     */
+    List<CompletableFuture<String>> invokeBatch(RegisteredEndpoint registered, List<String> inputs, int parallelism) {
+        List<CompletableFuture<String>> results = new ArrayList<>(inputs.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            results.add(new CompletableFuture<>());
+        }
+        
+        // Workers beyond the endpoint's limit would only wait in its queue
+        ConcurrencyLimiter limiter = registered.getLimiter();
+        int limit = limiter != null ? Math.max(1, limiter.currentLimit()) : Integer.MAX_VALUE;
+        int workers = Math.min(Math.min(Math.max(1, parallelism), limit), inputs.size());
+        // Each worker pulls the next unclaimed index until the batch is exhausted
+        AtomicInteger next = new AtomicInteger();
+        for (int w = 0; w < workers; w++) {
+            executorService.execute(Tracer.wrap(Deadline.wrap(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < inputs.size()) {
+                    try {
+                        results.get(i).complete(invokeBatchItem(registered, inputs.get(i)));
+                    } catch (Exception e) {
+                        results.get(i).completeExceptionally(e);
+                    }
+                }
+            })));
+        }
+        return results;
+    }
+    
+    /**
+     * Invokes one batch item, trying again after a short pause whenever the endpoint sheds it, for
+     * instance because other requests took its slots or its adaptive limit dropped mid-batch.
+     *
+     * @throws DeadlineExceededException if the batch's deadline passes first
+     */
+    private String invokeBatchItem(RegisteredEndpoint registered, String input) throws Exception {
+        while (true) {
+            Deadline.check("batch item of " + registered.getUrl());
+            try {
+                return invokeEndpoint(registered, input);
+            } catch (EndpointOverloadedException e) {
+                Thread.sleep(BATCH_RETRY_DELAY_MILLIS);
+            }
+        }
+    }
+    
+    private boolean acquire(ConcurrencyLimiter limiter) {
+        try {
+            return limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
     /**
      * HTTP request handler that routes requests to microservice endpoints.
      */
     private class MicroserviceRequestHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
+            String endpoint = extractEndpoint(exchange.getRequestURI().toString());
+            if (HEALTH_ROUTE.equals(endpoint)) {
+                sendStatus(exchange, running, running ? "UP" : "DOWN");
+                return;
+            }
+            if (READY_ROUTE.equals(endpoint)) {
+                sendStatus(exchange, isReady(), isReady() ? "READY" : draining ? "DRAINING" : "NOT_READY");
+                return;
+            }
+            
+            // Counted before the draining check, so drain() cannot miss a request that got past it
+            activeRequests.incrementAndGet();
+            // The request runs under the caller's deadline when it carries one, and the server span
+            // continues the caller's trace when the request carries a traceparent
+            Deadline deadline = Deadline.startFromHeader(exchange.getRequestHeaders().getFirst(Deadline.HEADER));
+            try (Span span = Tracer.startSpan(exchange.getRequestMethod() + " /" + endpoint, 
+                    exchange.getRequestHeaders().getFirst(TRACEPARENT_HEADER))) {
+                if (draining) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    sendResponse(exchange, 503, "Server is shutting down");
+                    return;
+                }
+                route(exchange);
+                span.setAttribute("http.status_code", exchange.getResponseCode());
+            } finally {
+                if (deadline != null) {
+                    deadline.close();
+                }
+                activeRequests.decrementAndGet();
+            }
+        }
+        
+        private void route(HttpExchange exchange) throws IOException {
             String method = exchange.getRequestMethod();
             String uri = exchange.getRequestURI().toString();
             
-            // Only handle GET requests for now
-            if (!"GET".equalsIgnoreCase(method)) {
+            // Input comes from the query string for GET and from the request body for POST
+            boolean post = "POST".equalsIgnoreCase(method);
+            if (!post && !"GET".equalsIgnoreCase(method)) {
                 sendResponse(exchange, 405, "Method not allowed");
                 return;
             }
@@ -142,21 +600,60 @@ public class MicroserviceLauncher {
             // Parse query parameters
             Map<String, String> params = parseQueryString(uri);
             String endpoint = extractEndpoint(uri);
-            String input = params.getOrDefault("input", "");
+            
+            if (METRICS_ROUTE.equals(endpoint)) {
+                StringBuilder metrics = new StringBuilder(PrometheusMetrics.render(endpointMap.values(), bulkheads.values()));
+                for (Supplier<String> source : metricsSources) {
+                    metrics.append(source.get());
+                }
+                sendBody(exchange, 200, "text/plain; version=0.0.4; charset=utf-8", metrics);
+                return;
+            }
+            
+            if (TRACES_ROUTE.equals(endpoint)) {
+                try {
+                    sendBody(exchange, 200, "application/json; charset=utf-8", SpanExporter.render(
+                        Tracer.recentSpans(), params.getOrDefault("format", SpanExporter.JSON), "microservice-" + port));
+                } catch (IllegalArgumentException e) {
+                    sendResponse(exchange, 400, e.getMessage());
+                }
+                return;
+            }
+            
+            if (endpoint.startsWith(BATCH_PREFIX)) {
+                if (!post) {
+                    sendResponse(exchange, 405, "Batch requests must use POST");
+                    return;
+                }
+                handleBatch(exchange, endpoint.substring(BATCH_PREFIX.length()), params);
+                return;
+            }
+            
+            String input = post ? readBody(exchange) : params.getOrDefault("input", "");
             
             // Find the endpoint handler
-            Method handlerMethod = endpointMap.get(endpoint);
-            if (handlerMethod == null) {
+            RegisteredEndpoint registered = endpointMap.get(endpoint);
+            if (registered == null) {
                 sendResponse(exchange, 404, "Endpoint not found: " + endpoint);
                 return;
             }
+            if (!checkRateLimit(exchange, registered)) {
+                return;
+            }
+            
+            if (registered.isStreaming()) {
+                handleStreaming(exchange, registered, input);
+                return;
+            }
             
             try {
-                Object serviceInstance = serviceInstances.get(endpoint);
-                handlerMethod.setAccessible(true);
-                String result = (String) handlerMethod.invoke(serviceInstance, input);
-                
-                sendResponse(exchange, 200, result != null ? result : "");
+                String result = invokeEndpoint(registered, input);
+                sendBody(exchange, 200, registered.getContentType(), result != null ? result : "");
+            } catch (EndpointOverloadedException e) {
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+                sendResponse(exchange, 503, e.getMessage());
+            } catch (DeadlineExceededException e) {
+                sendResponse(exchange, 504, e.getMessage());
             } catch (Exception e) {
                 System.err.println("Error invoking endpoint " + endpoint + ": " + e.getMessage());
                 e.printStackTrace();
@@ -164,12 +661,305 @@ public class MicroserviceLauncher {
             }
         }
         
+        /**
+         * Handles POST /batch/{endpoint}. The body is a JSON array of inputs: a string element is
+         * used as the input as-is and any other element is passed as its JSON text. Results are
+         * streamed back as newline-delimited JSON objects {"index", "status", "result" or "error"},
+         * in completion order by default or in input order when ordered=true.
+         */
+        private void handleBatch(HttpExchange exchange, String endpoint, Map<String, String> params) 
+                throws IOException {
+            RegisteredEndpoint registered = endpointMap.get(endpoint);
+            if (registered == null) {
+                sendResponse(exchange, 404, "Endpoint not found: " + endpoint);
+                return;
+            }
+            if (registered.isStreaming()) {
+                sendResponse(exchange, 400, "Streaming endpoints cannot be batched: " + endpoint);
+                return;
+            }
+            
+            List<String> inputs = new ArrayList<>();
+            try (Reader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+                JsonElement body = JsonParser.parseReader(reader);
+                if (!body.isJsonArray()) {
+                    sendResponse(exchange, 400, "Batch body must be a JSON array of inputs");
+                    return;
+                }
+                for (JsonElement item : body.getAsJsonArray()) {
+                    inputs.add(item.isJsonPrimitive() && item.getAsJsonPrimitive().isString() 
+                        ? item.getAsString() : item.toString());
+                }
+            } catch (JsonParseException e) {
+                sendResponse(exchange, 400, "Invalid batch body: " + e.getMessage());
+                return;
+            }
+            
+            int parallelism = maxBatchParallelism;
+            try {
+                if (params.containsKey("parallelism")) {
+                    parallelism = Math.min(maxBatchParallelism, Integer.parseInt(params.get("parallelism")));
+                }
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "Invalid parallelism: " + params.get("parallelism"));
+                return;
+            }
+            boolean ordered = "true".equalsIgnoreCase(params.get("ordered"));
+            
+            List<CompletableFuture<String>> results = invokeRateLimitedBatch(exchange, registered, inputs, parallelism);
+            
+            exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+            // Batch output is open-ended, so it is compressed whenever the client accepts it and
+            // sync-flushed after every line so results still arrive as they complete
+            String encoding = inputs.isEmpty() 
+                ? null : ResponseBodyEncoder.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            if (encoding != null) {
+                exchange.getResponseHeaders().set("Content-Encoding", encoding);
+            }
+            exchange.sendResponseHeaders(200, inputs.isEmpty() ? -1 : 0);
+            try (OutputStream os = compressing(exchange.getResponseBody(), encoding)) {
+                if (ordered) {
+                    for (int i = 0; i < results.size(); i++) {
+                        writeBatchLine(os, i, results.get(i));
+                    }
+                } else {
+                    // Write each result as soon as it completes, tagged with its index
+                    BlockingQueue<Integer> completed = new LinkedBlockingQueue<>();
+                    for (int i = 0; i < results.size(); i++) {
+                        int index = i;
+                        results.get(i).whenComplete((result, error) -> completed.add(index));
+                    }
+                    for (int i = 0; i < results.size(); i++) {
+                        int index = completed.take();
+                        writeBatchLine(os, index, results.get(index));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        /**
+         * Invokes a batch with each item taking its own rate-limit token. Items over the limit fail
+         * with a 429 status line instead of failing the whole batch.
+         */
+        private List<CompletableFuture<String>> invokeRateLimitedBatch(HttpExchange exchange, 
+                RegisteredEndpoint registered, List<String> inputs, int parallelism) {
+            RateLimiter limiter = registered.getRateLimiter();
+            if (limiter == null) {
+                return invokeBatch(registered, inputs, parallelism);
+            }
+            
+            String client = clientId(exchange);
+            List<CompletableFuture<String>> results = new ArrayList<>(inputs.size());
+            List<String> admitted = new ArrayList<>();
+            RateLimiter.Decision decision = null;
+            for (String input : inputs) {
+                decision = limiter.tryAcquire(client);
+                if (decision.allowed) {
+                    admitted.add(input);
+                    results.add(null);
+                } else {
+                    registered.getMetrics().rateLimited.increment();
+                    results.add(CompletableFuture.failedFuture(
+                        new RateLimitExceededException(registered.getUrl(), decision.retryAfterSeconds)));
+                }
+            }
+            if (decision != null) {
+                setRateLimitHeaders(exchange, decision);
+            }
+            
+            Iterator<CompletableFuture<String>> invoked = invokeBatch(registered, admitted, parallelism).iterator();
+            for (int i = 0; i < results.size(); i++) {
+                if (results.get(i) == null) {
+                    results.set(i, invoked.next());
+                }
+            }
+            return results;
+        }
+        
+        /**
+         * Applies the endpoint's rate limits to a request and sets the RateLimit-* headers.
+         * Answers 429 and returns false when the client or the endpoint is over its limit.
+         */
+        private boolean checkRateLimit(HttpExchange exchange, RegisteredEndpoint registered) throws IOException {
+            RateLimiter limiter = registered.getRateLimiter();
+            if (limiter == null) {
+                return true;
+            }
+            RateLimiter.Decision decision = limiter.tryAcquire(clientId(exchange));
+            setRateLimitHeaders(exchange, decision);
+            if (decision.allowed) {
+                return true;
+            }
+            registered.getMetrics().rateLimited.increment();
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(decision.retryAfterSeconds));
+            sendResponse(exchange, 429, "Rate limit exceeded: " + registered.getUrl());
+            return false;
+        }
+        
+        private void setRateLimitHeaders(HttpExchange exchange, RateLimiter.Decision decision) {
+            exchange.getResponseHeaders().set("RateLimit-Limit", String.valueOf(decision.limit));
+            exchange.getResponseHeaders().set("RateLimit-Remaining", String.valueOf(decision.remaining));
+            exchange.getResponseHeaders().set("RateLimit-Reset", String.valueOf(decision.resetSeconds));
+        }
+        
+        /**
+         * Identifies the client for per-client rate limits: its X-API-Key, or else its IP address.
+         * X-Forwarded-For is only trusted from a local proxy such as a LoadBalancer on this host.
+         */
+        private String clientId(HttpExchange exchange) {
+            String apiKey = exchange.getRequestHeaders().getFirst("X-API-Key");
+            if (apiKey != null && !apiKey.isEmpty()) {
+                return "key:" + apiKey;
+            }
+            InetAddress remote = exchange.getRemoteAddress().getAddress();
+            String forwardedFor = exchange.getRequestHeaders().getFirst("X-Forwarded-For");
+            if (forwardedFor != null && remote.isLoopbackAddress()) {
+                return "ip:" + forwardedFor.split(",")[0].trim();
+            }
+            return "ip:" + remote.getHostAddress();
+        }
+        
+        private void writeBatchLine(OutputStream os, int index, CompletableFuture<String> future) 
+                throws IOException, InterruptedException {
+            JsonObject line = new JsonObject();
+            line.addProperty("index", index);
+            try {
+                String result = future.get();
+                line.addProperty("status", 200);
+                line.addProperty("result", result != null ? result : "");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                line.addProperty("status", cause instanceof RateLimitExceededException ? 429 
+                    : cause instanceof EndpointOverloadedException ? 503 : 500);
+                line.addProperty("error", String.valueOf(cause.getMessage()));
+            }
+            write(os, line.toString() + "\n");
+            os.flush();
+        }
+        
+        private void sendStatus(HttpExchange exchange, boolean ok, String status) throws IOException {
+            JsonObject body = new JsonObject();
+            body.addProperty("status", status);
+            body.addProperty("inFlight", activeRequests.get());
+            sendBody(exchange, ok ? 200 : 503, "application/json; charset=utf-8", body.toString());
+        }
+        
+        private String readBody(HttpExchange exchange) throws IOException {
+            try (InputStream in = exchange.getRequestBody()) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+        
+        /**
+         * Invokes a streaming endpoint, writing each chunk with chunked transfer encoding as soon
+         * as the endpoint produces it. Clients that accept text/event-stream get server-sent events.
+         */
+        private void handleStreaming(HttpExchange exchange, RegisteredEndpoint registered, String input) 
+                throws IOException {
+            // Admission control applies to streaming endpoints too, before any header is sent
+            registered.getMetrics().requests.increment();
+            try {
+                admit(registered);
+            } catch (EndpointOverloadedException e) {
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+                sendResponse(exchange, 503, e.getMessage());
+                return;
+            }
+            
+            // From here on the permit is held, so it is released however the request ends, even if
+            // the client is gone before the headers can be sent
+            long start = beginInvocation(registered);
+            boolean success = false;
+            OutputStream os = null;
+            try {
+                String accept = exchange.getRequestHeaders().getFirst("Accept");
+                boolean sse = accept != null && accept.contains("text/event-stream");
+                exchange.getResponseHeaders().set("Content-Type", 
+                    sse ? "text/event-stream; charset=utf-8" : "text/plain; charset=utf-8");
+                exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                // A response length of 0 selects chunked transfer encoding
+                exchange.sendResponseHeaders(200, 0);
+                
+                os = exchange.getResponseBody();
+                OutputStream body = os;
+                ResponseStream stream = chunk -> {
+                    if (chunk == null || chunk.isEmpty()) {
+                        return;
+                    }
+                    write(body, sse ? toServerSentEvent(chunk) : chunk);
+                    body.flush();
+                };
+                try {
+                    invokeMethod(registered, input, stream);
+                    success = true;
+                } catch (Exception e) {
+                    // Headers are already sent, so the failure can only be logged and the stream ended
+                    Throwable cause = e instanceof InvocationTargetException && e.getCause() != null ? e.getCause() : e;
+                    System.err.println("Error streaming endpoint " + registered.getUrl() + ": " + cause.getMessage());
+                    cause.printStackTrace();
+                }
+            } finally {
+                endInvocation(registered, start, success);
+                if (os != null) {
+                    os.close();
+                }
+            }
+        }
+        
+        private String toServerSentEvent(String chunk) {
+            StringBuilder event = new StringBuilder(chunk.length() + 16);
+            for (String line : chunk.split("\n", -1)) {
+                event.append("data: ").append(line).append('\n');
+            }
+            return event.append('\n').toString();
+        }
+        
+        /**
+         * Sends a plain-text status message, such as an error.
+         */
         private void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
-            exchange.getResponseHeaders().set("Content-Type", "application/json");
-            exchange.sendResponseHeaders(statusCode, response.length());
-            OutputStream os = exchange.getResponseBody();
-            os.write(response.getBytes());
-            os.close();
+            sendBody(exchange, statusCode, "text/plain; charset=utf-8", response);
+        }
+        
+        /**
+         * Sends a fixed-length body, compressed when it reaches the compression threshold and the
+         * client accepts gzip or deflate.
+         */
+        private void sendBody(HttpExchange exchange, int statusCode, String contentType, CharSequence response) 
+                throws IOException {
+            ResponseBodyEncoder encoder = ResponseBodyEncoder.get();
+            // Length must be the encoded byte count, not the char count, or non-ASCII output is cut off
+            ByteBuffer body = encoder.encode(response);
+            String encoding = body.remaining() >= compressionThreshold
+                ? ResponseBodyEncoder.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding")) : null;
+            if (encoding != null) {
+                body = encoder.compress(body, encoding);
+                exchange.getResponseHeaders().set("Content-Encoding", encoding);
+            }
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(statusCode, body.hasRemaining() ? body.remaining() : -1);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+            }
+        }
+        
+        private void write(OutputStream os, String text) throws IOException {
+            ByteBuffer bytes = ResponseBodyEncoder.get().encode(text);
+            os.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        }
+        
+        private OutputStream compressing(OutputStream os, String encoding) throws IOException {
+            if (ResponseBodyEncoder.GZIP.equals(encoding)) {
+                return new GZIPOutputStream(os, true);
+            }
+            if (ResponseBodyEncoder.DEFLATE.equals(encoding)) {
+                return new DeflaterOutputStream(os, true);
+            }
+            return os;
         }
     }
 
@@ -245,7 +1035,11 @@ public class MicroserviceLauncher {
      */
     public void stop() {
         this.running = false;
+        serverEngine.stop(0);
         executorService.shutdown();
+        for (Bulkhead bulkhead : bulkheads.values()) {
+            bulkhead.shutdown();
+        }
     }
 }
 
@@ -0,0 +1,363 @@
+package com.ecs160.hw2.microservice;
+
+import com.sun.net.httpserver.Headers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One client connection of the NioServerEngine. Reading and parsing happen on the loop thread;
+ * parsed requests queue up here and are dispatched to the executor one at a time, and response
+ * bytes from worker threads are queued for the loop thread to write.
+ */
+class NioConnection {
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+    private static final long MAX_BODY_BYTES = 64L * 1024 * 1024;
+    private static final int MAX_QUEUED_REQUESTS = 64;
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final NioServerEngine engine;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ConcurrentLinkedQueue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+
+    // Loop thread only
+    private ByteBuffer in;
+    private int scanFrom;
+    private RequestHead head;
+    private boolean inputClosed;
+
+    // Guarded by this
+    private final ArrayDeque<NioHttpExchange> queued = new ArrayDeque<>();
+    private boolean dispatching;
+    private boolean closeAfterWrites;
+    private boolean closed;
+    // A 100 Continue owed to the request being read, held back until the responses ahead of it are written
+    private boolean continuePending;
+
+    NioConnection(NioServerEngine engine, SocketChannel channel, SelectionKey key) {
+        this.engine = engine;
+        this.channel = channel;
+        this.key = key;
+        this.in = engine.getBufferPool().acquire();
+    }
+
+    /**
+     * Reads what is available and queues every complete request in the buffer.
+     */
+    void onReadable() throws IOException {
+        int n = channel.read(in);
+        if (n < 0) {
+            // The client finished sending; answer what it already sent, then close
+            inputClosed = true;
+            synchronized (this) {
+                closeAfterWrites = true;
+            }
+            return;
+        }
+        if (n > 0) {
+            parse();
+        }
+    }
+
+    private void parse() {
+        in.flip();
+        try {
+            while (true) {
+                if (head == null) {
+                    int end = indexOfHeaderEnd();
+                    if (end < 0) {
+                        if (in.remaining() > MAX_HEADER_BYTES) {
+                            fail(431);
+                        } else {
+                            scanFrom = Math.max(0, in.remaining() - 3);
+                        }
+                        return;
+                    }
+                    byte[] headBytes = new byte[end - in.position()];
+                    in.get(headBytes);
+                    in.position(in.position() + 4);
+                    scanFrom = 0;
+                    try {
+                        head = RequestHead.parse(new String(headBytes, StandardCharsets.ISO_8859_1));
+                    } catch (IllegalArgumentException e) {
+                        fail(400);
+                        return;
+                    }
+                    if (head.chunked) {
+                        fail(501);
+                        return;
+                    }
+                    if (head.contentLength > MAX_BODY_BYTES) {
+                        fail(413);
+                        return;
+                    }
+                    if (head.expectContinue && in.remaining() < head.contentLength) {
+                        sendContinue();
+                    }
+                }
+
+                if (in.remaining() < head.contentLength) {
+                    return;
+                }
+                byte[] body = new byte[(int) head.contentLength];
+                in.get(body);
+                enqueueRequest(new NioHttpExchange(this, head, body));
+                head = null;
+            }
+        } finally {
+            in.compact();
+            resizeInput();
+        }
+    }
+
+    /**
+     * Grows the input buffer when a request does not fit, and returns to a pooled buffer once
+     * the oversized request has been consumed.
+     */
+    private void resizeInput() {
+        if (!in.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            larger.put(in);
+            engine.getBufferPool().release(in);
+            in = larger;
+        } else if (in.position() == 0 && !in.isDirect()) {
+            in = engine.getBufferPool().acquire();
+        }
+    }
+
+    private int indexOfHeaderEnd() {
+        for (int i = in.position() + scanFrom; i + 3 < in.limit(); i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Answers a request that cannot be parsed, after the responses already owed, and closes.
+     */
+    private void fail(int status) {
+        inputClosed = true;
+        enqueueRequest(NioHttpExchange.error(this, status));
+    }
+
+    /**
+     * Tells the client to send the body of the request being read. An interim response cannot
+     * go out in the middle of another response, so it waits while earlier requests are answered.
+     */
+    private synchronized void sendContinue() {
+        if (dispatching || !queued.isEmpty()) {
+            continuePending = true;
+        } else {
+            enqueueWrite(ByteBuffer.wrap(CONTINUE));
+        }
+    }
+
+    private synchronized void enqueueRequest(NioHttpExchange exchange) {
+        // The body arrived without waiting for the 100 Continue, so it is no longer owed
+        continuePending = false;
+        queued.add(exchange);
+        if (!dispatching) {
+            dispatchNext();
+        }
+    }
+
+    private void dispatchNext() {
+        NioHttpExchange next = queued.poll();
+        if (next == null) {
+            dispatching = false;
+            if (continuePending) {
+                continuePending = false;
+                enqueueWrite(ByteBuffer.wrap(CONTINUE));
+            }
+            engine.requestUpdate(this);
+            return;
+        }
+        dispatching = true;
+        engine.dispatch(next);
+    }
+
+    /**
+     * Called by an exchange once its response is complete; starts the next pipelined request.
+     */
+    synchronized void exchangeFinished(NioHttpExchange exchange) {
+        if (!exchange.isKeepAlive()) {
+            closeAfterWrites = true;
+            queued.clear();
+            dispatching = false;
+            engine.requestUpdate(this);
+            return;
+        }
+        dispatchNext();
+    }
+
+    /**
+     * Queues response bytes for the loop thread. Callable from any thread.
+     */
+    void enqueueWrite(ByteBuffer buffer) {
+        writes.add(buffer);
+        engine.requestUpdate(this);
+    }
+
+    /**
+     * Writes as much queued output as the socket accepts and sets the interest ops to match.
+     * Runs on the loop thread.
+     *
+     * @return false if the connection is done and should be closed
+     */
+    boolean flushAndUpdateInterest() throws IOException {
+        if (!key.isValid()) {
+            return false;
+        }
+        ByteBuffer buffer;
+        while ((buffer = writes.peek()) != null) {
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            writes.poll();
+            engine.getBufferPool().release(buffer);
+        }
+
+        boolean pendingWrites;
+        boolean busy;
+        boolean closing;
+        synchronized (this) {
+            busy = dispatching || !queued.isEmpty();
+            closing = closeAfterWrites;
+            // Checked after closeAfterWrites: an exchange queues its last bytes before it finishes,
+            // so a connection seen closing also shows the response it is closing after
+            pendingWrites = !writes.isEmpty();
+            if (closing && !busy && !pendingWrites) {
+                return false;
+            }
+        }
+
+        // Stop reading while too many pipelined requests are waiting, to bound memory
+        int ops = 0;
+        if (!inputClosed && !closing && queuedCount() < MAX_QUEUED_REQUESTS) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (pendingWrites) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+        return true;
+    }
+
+    private synchronized int queuedCount() {
+        return queued.size();
+    }
+
+    DirectBufferPool getBufferPool() {
+        return engine.getBufferPool();
+    }
+
+    InetSocketAddress getRemoteAddress() {
+        try {
+            return (InetSocketAddress) channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queued.clear();
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        engine.getBufferPool().release(in);
+    }
+
+    /**
+     * Request line and headers of one HTTP/1.1 request.
+     */
+    static class RequestHead {
+        final String method;
+        final URI uri;
+        final String protocol;
+        final Headers headers;
+        final long contentLength;
+        final boolean chunked;
+        final boolean expectContinue;
+        final boolean keepAlive;
+
+        private RequestHead(String method, URI uri, String protocol, Headers headers) {
+            this.method = method;
+            this.uri = uri;
+            this.protocol = protocol;
+            this.headers = headers;
+
+            String length = headers.getFirst("Content-Length");
+            try {
+                this.contentLength = length != null ? Long.parseLong(length.trim()) : 0;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid Content-Length: " + length);
+            }
+            if (contentLength < 0) {
+                throw new IllegalArgumentException("Invalid Content-Length: " + length);
+            }
+            String encoding = headers.getFirst("Transfer-Encoding");
+            this.chunked = encoding != null && encoding.toLowerCase().contains("chunked");
+            String expect = headers.getFirst("Expect");
+            this.expectContinue = expect != null && expect.equalsIgnoreCase("100-continue");
+            String connection = headers.getFirst("Connection");
+            this.keepAlive = "HTTP/1.1".equals(protocol)
+                ? connection == null || !connection.equalsIgnoreCase("close")
+                : connection != null && connection.equalsIgnoreCase("keep-alive");
+        }
+
+        static RequestHead parse(String head) {
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                throw new IllegalArgumentException("Invalid request line: " + lines[0]);
+            }
+            Headers headers = new Headers();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException("Invalid header: " + lines[i]);
+                }
+                headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+            try {
+                return new RequestHead(requestLine[0], new URI(requestLine[1]), requestLine[2], headers);
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException("Invalid request target: " + requestLine[1]);
+            }
+        }
+
+        static RequestHead forError() {
+            return new RequestHead("GET", URI.create("/"), "HTTP/1.1", new Headers());
+        }
+    }
+}
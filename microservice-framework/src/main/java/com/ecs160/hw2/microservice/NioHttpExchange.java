@@ -0,0 +1,322 @@
+package com.ecs160.hw2.microservice;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HttpExchange for a request parsed by the NioServerEngine, so that the same HttpHandler serves
+ * both engines. Response bytes are staged in pooled direct buffers and handed to the connection's
+ * write queue; a small response goes out as a single buffer holding its headers and body.
+ */
+class NioHttpExchange extends HttpExchange {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final NioConnection connection;
+    private final NioConnection.RequestHead head;
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private final int errorStatus;
+    private InputStream requestBody;
+    private OutputStream responseBody;
+    private final ResponseBodyStream rawResponseBody = new ResponseBodyStream();
+    private boolean keepAlive;
+    private int responseCode = -1;
+    private boolean chunked;
+    private boolean noBody;
+
+    NioHttpExchange(NioConnection connection, NioConnection.RequestHead head, byte[] body) {
+        this(connection, head, body, 0);
+    }
+
+    private NioHttpExchange(NioConnection connection, NioConnection.RequestHead head, byte[] body, int errorStatus) {
+        this.connection = connection;
+        this.head = head;
+        this.errorStatus = errorStatus;
+        this.keepAlive = head.keepAlive && errorStatus == 0;
+        this.requestBody = new ByteArrayInputStream(body);
+        this.responseBody = rawResponseBody;
+    }
+
+    /**
+     * Exchange that answers a malformed request with the given status and closes the connection.
+     */
+    static NioHttpExchange error(NioConnection connection, int status) {
+        return new NioHttpExchange(connection, NioConnection.RequestHead.forError(), new byte[0], status);
+    }
+
+    int getErrorStatus() {
+        return errorStatus;
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Gives up on the exchange after a handler failure: answers 500 if nothing was sent yet,
+     * otherwise the connection is closed without ending the body, so that the client sees the
+     * response as cut off rather than complete.
+     */
+    void abort() {
+        keepAlive = false;
+        if (responseCode == -1) {
+            try {
+                sendResponseHeaders(500, -1);
+            } catch (IOException e) {
+                // Ignore
+            }
+        } else {
+            rawResponseBody.abort();
+        }
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return head.headers;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return head.uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return head.method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        try {
+            requestBody.close();
+            if (responseCode == -1) {
+                // The handler never answered; the connection cannot be reused
+                keepAlive = false;
+            }
+            rawResponseBody.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (responseCode != -1) {
+            throw new IOException("Response headers already sent");
+        }
+        responseCode = rCode;
+        if (responseLength > 0) {
+            responseHeaders.set("Content-Length", String.valueOf(responseLength));
+        } else if (responseLength == 0) {
+            chunked = true;
+            responseHeaders.set("Transfer-Encoding", "chunked");
+        } else {
+            noBody = true;
+            responseHeaders.set("Content-Length", "0");
+        }
+        if (!keepAlive) {
+            responseHeaders.set("Connection", "close");
+        }
+
+        StringBuilder status = new StringBuilder(256);
+        status.append("HTTP/1.1 ").append(rCode).append(' ').append(reasonPhrase(rCode)).append("\r\n");
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            for (String value : header.getValue()) {
+                status.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        status.append("\r\n");
+        byte[] bytes = status.toString().getBytes(StandardCharsets.ISO_8859_1);
+        rawResponseBody.put(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.getRemoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.getLocalAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+        return head.protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            requestBody = i;
+        }
+        if (o != null) {
+            responseBody = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    private static String reasonPhrase(int code) {
+        switch (code) {
+            case 200: return "OK";
+            case 204: return "No Content";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 413: return "Payload Too Large";
+            case 429: return "Too Many Requests";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default: return "Status";
+        }
+    }
+
+    /**
+     * Response body that frames writes as chunks when needed and fills pooled direct buffers,
+     * queueing each one for the loop thread when it is full, flushed or closed.
+     */
+    private class ResponseBodyStream extends OutputStream {
+        private ByteBuffer current;
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Response body is closed");
+            }
+            if (responseCode == -1) {
+                throw new IOException("sendResponseHeaders must be called before writing the body");
+            }
+            if (noBody) {
+                throw new IOException("Response was sent without a body");
+            }
+            if (len == 0) {
+                return;
+            }
+            if (chunked) {
+                byte[] size = (Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+                put(size, 0, size.length);
+                put(b, off, len);
+                put(CRLF, 0, CRLF.length);
+            } else {
+                put(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() {
+            emit();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (chunked) {
+                put(LAST_CHUNK, 0, LAST_CHUNK.length);
+            }
+            emit();
+            connection.exchangeFinished(NioHttpExchange.this);
+        }
+
+        /**
+         * Sends what was written so far, without the last chunk, and finishes the exchange. The
+         * exchange is no longer keep-alive, so the connection closes once the bytes are written.
+         */
+        void abort() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            emit();
+            connection.exchangeFinished(NioHttpExchange.this);
+        }
+
+        void put(byte[] b, int off, int len) {
+            while (len > 0) {
+                if (current == null) {
+                    current = connection.getBufferPool().acquire();
+                }
+                int n = Math.min(current.remaining(), len);
+                current.put(b, off, n);
+                off += n;
+                len -= n;
+                if (!current.hasRemaining()) {
+                    emit();
+                }
+            }
+        }
+
+        private void emit() {
+            if (current != null && current.position() > 0) {
+                current.flip();
+                connection.enqueueWrite(current);
+                current = null;
+            }
+        }
+    }
+}
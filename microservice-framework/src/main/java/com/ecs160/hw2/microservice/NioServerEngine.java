@@ -0,0 +1,215 @@
+package com.ecs160.hw2.microservice;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ServerEngine built on a single selector event loop. The loop thread accepts connections, reads
+ * into pooled direct buffers, parses HTTP/1.1 (keep-alive and pipelining included) and writes
+ * responses; each parsed request is handed to the executor as an HttpExchange. Requests pipelined
+ * on one connection are handled one at a time so that responses go out in request order.
+ */
+public class NioServerEngine implements ServerEngine {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    private final DirectBufferPool bufferPool = new DirectBufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    private final ConcurrentLinkedQueue<NioConnection> pendingUpdates = new ConcurrentLinkedQueue<>();
+    private final Set<NioConnection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger activeExchanges = new AtomicInteger();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread loopThread;
+    private volatile boolean running;
+    private HttpHandler handler;
+    private Executor executor;
+
+    @Override
+    public void start(InetSocketAddress address, int backlog, HttpHandler handler, Executor executor) 
+            throws IOException {
+        this.handler = handler;
+        this.executor = executor;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(address, backlog);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+
+        running = true;
+        loopThread = new Thread(this::runLoop, "nio-http-loop-" + address.getPort());
+        loopThread.start();
+    }
+
+    @Override
+    public void stop(int delaySeconds) {
+        if (!running) {
+            return;
+        }
+        // Stop accepting first, then give exchanges in progress up to the delay to finish
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(delaySeconds);
+        while (activeExchanges.get() > 0 && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        running = false;
+        selector.wakeup();
+        try {
+            loopThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        try {
+            return running ? (InetSocketAddress) serverChannel.getLocalAddress() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    DirectBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Asks the loop thread to flush a connection's writes and refresh its interest set.
+     * Only the loop thread touches selection keys, so other threads go through this queue.
+     */
+    void requestUpdate(NioConnection connection) {
+        pendingUpdates.add(connection);
+        if (Thread.currentThread() != loopThread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs an exchange on the executor. The exchange is always closed afterwards, which completes
+     * its response and lets the connection move on to the next pipelined request.
+     */
+    void dispatch(NioHttpExchange exchange) {
+        activeExchanges.incrementAndGet();
+        executor.execute(() -> {
+            try {
+                if (exchange.getErrorStatus() > 0) {
+                    exchange.sendResponseHeaders(exchange.getErrorStatus(), -1);
+                } else {
+                    handler.handle(exchange);
+                }
+            } catch (Throwable t) {
+                System.err.println("Error handling request " + exchange.getRequestURI() + ": " + t.getMessage());
+                exchange.abort();
+            } finally {
+                exchange.close();
+                activeExchanges.decrementAndGet();
+            }
+        });
+    }
+
+    private void runLoop() {
+        try {
+            while (running) {
+                selector.select();
+
+                NioConnection updated;
+                while ((updated = pendingUpdates.poll()) != null) {
+                    service(updated);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        service(connection);
+                    } catch (IOException | CancelledKeyException e) {
+                        close(connection);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("NIO server loop failed: " + e.getMessage());
+        } finally {
+            for (NioConnection connection : connections) {
+                close(connection);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            NioConnection connection = new NioConnection(this, channel, key);
+            key.attach(connection);
+            connections.add(connection);
+        }
+    }
+
+    private void service(NioConnection connection) {
+        try {
+            if (!connection.flushAndUpdateInterest()) {
+                close(connection);
+            }
+        } catch (IOException | CancelledKeyException e) {
+            close(connection);
+        }
+    }
+
+    private void close(NioConnection connection) {
+        connections.remove(connection);
+        connection.close();
+    }
+}
@@ -0,0 +1,113 @@
+package com.ecs160.hw2.microservice;
+
+import java.util.Collection;
+import java.util.function.Function;
+
+/**
+ * Renders launcher metrics in the Prometheus text exposition format.
+ */
+class PrometheusMetrics {
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private final StringBuilder out = new StringBuilder(4096);
+
+    static String render(Collection<RegisteredEndpoint> endpoints, Collection<Bulkhead> bulkheads) {
+        PrometheusMetrics metrics = new PrometheusMetrics();
+        Function<RegisteredEndpoint, String> url = e -> label("endpoint", e.getUrl());
+        metrics.counter("microservice_requests_total", "Requests received per endpoint.",
+            endpoints, url, e -> e.getMetrics().requests.sum());
+        metrics.counter("microservice_errors_total", "Requests that failed with an error.",
+            endpoints, url, e -> e.getMetrics().errors.sum());
+        metrics.counter("microservice_shed_total", "Requests rejected by admission control.",
+            endpoints, url, e -> e.getMetrics().shed.sum());
+        metrics.counter("microservice_rate_limited_total", "Requests rejected by a rate limit.",
+            endpoints, url, e -> e.getRateLimiter() != null ? e.getMetrics().rateLimited.sum() : null);
+        metrics.gauge("microservice_in_flight", "Invocations currently running.",
+            endpoints, url, e -> e.getMetrics().inFlight.sum());
+        metrics.gauge("microservice_concurrency_limit", "Current admission limit of limited endpoints.",
+            endpoints, url, e -> e.getLimiter() != null ? (long) e.getLimiter().currentLimit() : null);
+        metrics.summary("microservice_request_duration_seconds", "Endpoint invocation latency.",
+            endpoints, url, e -> e.getMetrics().latency);
+        metrics.summary("microservice_queue_wait_seconds", "Time spent waiting for an admission slot.",
+            endpoints, url, e -> e.getMetrics().queueWait);
+        metrics.counter("microservice_coalesced_total", "Requests answered by a concurrent identical invocation.",
+            endpoints, url, e -> e.getSingleFlight() != null ? e.getSingleFlight().getCoalescedCount() : null);
+        metrics.counter("microservice_cache_hits_total", "Response cache hits in either tier.",
+            endpoints, url, e -> e.getCache() != null ? e.getCache().getHits() + e.getCache().getSecondTierHits() : null);
+        metrics.counter("microservice_cache_misses_total", "Response cache misses.",
+            endpoints, url, e -> e.getCache() != null ? e.getCache().getMisses() : null);
+
+        Function<Bulkhead, String> name = b -> label("bulkhead", b.getName());
+        metrics.gauge("microservice_bulkhead_active_threads", "Bulkhead threads currently running an invocation.",
+            bulkheads, name, b -> (long) b.getActiveThreads());
+        metrics.gauge("microservice_bulkhead_max_threads", "Size of each bulkhead thread pool.",
+            bulkheads, name, b -> (long) b.getMaxThreads());
+        metrics.gauge("microservice_bulkhead_queue_depth", "Invocations waiting for a bulkhead thread.",
+            bulkheads, name, b -> (long) b.getQueueDepth());
+        metrics.gauge("microservice_bulkhead_queue_capacity", "Invocations a bulkhead can queue before rejecting.",
+            bulkheads, name, b -> (long) b.getQueueCapacity());
+        metrics.counter("microservice_bulkhead_rejected_total", "Invocations rejected by a saturated bulkhead.",
+            bulkheads, name, Bulkhead::getRejected);
+        metrics.counter("microservice_bulkhead_completed_total", "Invocations completed on a bulkhead.",
+            bulkheads, name, Bulkhead::getCompleted);
+        metrics.summary("microservice_bulkhead_queue_wait_seconds", "Time spent waiting for a bulkhead thread.",
+            bulkheads, name, Bulkhead::getQueueWait);
+        return metrics.out.toString();
+    }
+
+    private <T> void counter(String name, String help, Collection<T> items, Function<T, String> label,
+                             Function<T, Long> value) {
+        family(name, help, "counter", items, label, value);
+    }
+
+    private <T> void gauge(String name, String help, Collection<T> items, Function<T, String> label,
+                           Function<T, Long> value) {
+        family(name, help, "gauge", items, label, value);
+    }
+
+    private <T> void family(String name, String help, String type, Collection<T> items, Function<T, String> label,
+                            Function<T, Long> value) {
+        if (items.isEmpty()) {
+            return;
+        }
+        header(name, help, type);
+        for (T item : items) {
+            Long v = value.apply(item);
+            if (v != null) {
+                out.append(name).append(labels(label.apply(item), null)).append(' ').append(v).append('\n');
+            }
+        }
+    }
+
+    private <T> void summary(String name, String help, Collection<T> items, Function<T, String> label,
+                             Function<T, LatencyHistogram> histogram) {
+        if (items.isEmpty()) {
+            return;
+        }
+        header(name, help, "summary");
+        for (T item : items) {
+            LatencyHistogram h = histogram.apply(item);
+            for (double q : QUANTILES) {
+                out.append(name).append(labels(label.apply(item), String.valueOf(q)))
+                    .append(' ').append(h.quantileSeconds(q)).append('\n');
+            }
+            out.append(name).append("_sum").append(labels(label.apply(item), null))
+                .append(' ').append(h.getSumSeconds()).append('\n');
+            out.append(name).append("_count").append(labels(label.apply(item), null))
+                .append(' ').append(h.getCount()).append('\n');
+        }
+    }
+
+    private void header(String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String labels(String label, String quantile) {
+        return quantile == null ? "{" + label + "}" : "{" + label + ",quantile=\"" + quantile + "\"}";
+    }
+}
@@ -0,0 +1,23 @@
+package com.ecs160.hw2.microservice;
+
+/**
+ * Thrown when a request is rejected because its client or the endpoint as a whole has used up
+ * its rate limit.
+ */
+public class RateLimitExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterSeconds;
+
+    public RateLimitExceededException(String endpoint, long retryAfterSeconds) {
+        super("Rate limit exceeded: " + endpoint);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * How long the caller should wait before retrying, in seconds.
+     */
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
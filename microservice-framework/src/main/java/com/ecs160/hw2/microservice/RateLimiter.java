@@ -0,0 +1,97 @@
+package com.ecs160.hw2.microservice;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limits of one endpoint: an optional bucket shared by all clients and an optional bucket
+ * per client. A request must get a token from both.
+ */
+class RateLimiter {
+    // Past this many tracked clients, buckets that have refilled completely are dropped
+    private static final int MAX_IDLE_CLIENTS = 10_000;
+
+    private final TokenBucket global;
+    private final double clientRate;
+    private final int clientBurst;
+    private final Map<String, TokenBucket> clients = new ConcurrentHashMap<>();
+
+    RateLimiter(double rate, double clientRate, int burst) {
+        this.global = rate > 0 ? new TokenBucket(rate, burst > 0 ? burst : (int) Math.ceil(rate)) : null;
+        this.clientRate = clientRate;
+        this.clientBurst = burst > 0 ? burst : (int) Math.ceil(clientRate);
+    }
+
+    /**
+     * Takes a token for the client from each configured bucket, or none if either is empty.
+     */
+    Decision tryAcquire(String clientId) {
+        long now = System.nanoTime();
+        TokenBucket client = clientRate > 0 ? clientBucket(clientId, now) : null;
+
+        long clientRemaining = client != null ? client.tryAcquire(now) : Long.MAX_VALUE;
+        if (clientRemaining < 0) {
+            return Decision.rejected(client, now);
+        }
+        long globalRemaining = global != null ? global.tryAcquire(now) : Long.MAX_VALUE;
+        if (globalRemaining < 0) {
+            if (client != null) {
+                client.refund();
+            }
+            return Decision.rejected(global, now);
+        }
+        // Report whichever bucket is closer to running out
+        return clientRemaining <= globalRemaining
+            ? Decision.allowed(client, clientRemaining, now)
+            : Decision.allowed(global, globalRemaining, now);
+    }
+
+    private TokenBucket clientBucket(String clientId, long now) {
+        TokenBucket bucket = clients.get(clientId);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (clients.size() >= MAX_IDLE_CLIENTS) {
+            for (Iterator<TokenBucket> it = clients.values().iterator(); it.hasNext(); ) {
+                if (it.next().nanosUntilFull(now) == 0) {
+                    it.remove();
+                }
+            }
+        }
+        return clients.computeIfAbsent(clientId, id -> new TokenBucket(clientRate, clientBurst));
+    }
+
+    /**
+     * Outcome of a rate-limit check, with the values for the RateLimit-* response headers.
+     */
+    static class Decision {
+        final boolean allowed;
+        final int limit;
+        final long remaining;
+        final long resetSeconds;
+        final long retryAfterSeconds;
+
+        private Decision(boolean allowed, int limit, long remaining, long resetSeconds, long retryAfterSeconds) {
+            this.allowed = allowed;
+            this.limit = limit;
+            this.remaining = remaining;
+            this.resetSeconds = resetSeconds;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        static Decision allowed(TokenBucket bucket, long remaining, long now) {
+            return new Decision(true, bucket.getBurst(), remaining, seconds(bucket.nanosUntilFull(now)), 0);
+        }
+
+        static Decision rejected(TokenBucket bucket, long now) {
+            return new Decision(false, bucket.getBurst(), 0, seconds(bucket.nanosUntilFull(now)),
+                Math.max(1, seconds(bucket.nanosUntilAvailable(now))));
+        }
+
+        private static long seconds(long nanos) {
+            return (nanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.ecs160.hw2.microservice;
+
+import java.lang.reflect.Method;
+
+/**
+ * A registered @Endpoint: the handler method, the service instance it is invoked on,
+ * and how its result is delivered.
+ */
+class RegisteredEndpoint {
+    private final String url;
+    private final Method method;
+    private final Object serviceInstance;
+    private final boolean streaming;
+    private final String contentType;
+    private final ConcurrencyLimiter limiter;
+    private final ResponseCache cache;
+    private final SingleFlight singleFlight;
+    private volatile RateLimiter rateLimiter;
+    private final EndpointMetrics metrics = new EndpointMetrics();
+    private volatile Bulkhead bulkhead;
+
+    RegisteredEndpoint(String url, Method method, Object serviceInstance, boolean streaming) {
+        this.url = url;
+        this.method = method;
+        this.serviceInstance = serviceInstance;
+        this.streaming = streaming;
+        this.method.setAccessible(true);
+
+        Endpoint endpoint = method.getAnnotation(Endpoint.class);
+        this.contentType = endpoint != null ? endpoint.contentType() : "application/json; charset=utf-8";
+        this.limiter = endpoint != null && endpoint.maxConcurrency() > 0
+            ? new ConcurrencyLimiter(endpoint.maxConcurrency(), endpoint.maxQueue(),
+                endpoint.queueTimeoutMillis(), endpoint.adaptiveConcurrency())
+            : null;
+
+        Cacheable cacheable = method.getAnnotation(Cacheable.class);
+        this.cache = cacheable != null
+            ? new ResponseCache(url, cacheable.ttlSeconds(), cacheable.maxEntries())
+            : null;
+
+        this.rateLimiter = endpoint != null && (endpoint.rateLimit() > 0 || endpoint.clientRateLimit() > 0)
+            ? new RateLimiter(endpoint.rateLimit(), endpoint.clientRateLimit(), endpoint.rateLimitBurst())
+            : null;
+
+        this.singleFlight = !streaming && (endpoint == null || endpoint.coalesce()) ? new SingleFlight() : null;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    Method getMethod() {
+        return method;
+    }
+
+    Object getServiceInstance() {
+        return serviceInstance;
+    }
+
+    boolean isStreaming() {
+        return streaming;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Admission limiter for this endpoint, or null when its concurrency is unlimited.
+     */
+    ConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Response cache for this endpoint, or null when it is not @Cacheable.
+     */
+    ResponseCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Rate limits for HTTP requests to this endpoint, or null when it is not rate limited.
+     */
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    EndpointMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Isolated executor of this endpoint's microservice, or null when it runs on the shared executor.
+     */
+    Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    void setBulkhead(Bulkhead bulkhead) {
+        this.bulkhead = bulkhead;
+    }
+
+    /**
+     * Coalescer for concurrent identical requests, or null when coalescing is disabled.
+     */
+    SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+}
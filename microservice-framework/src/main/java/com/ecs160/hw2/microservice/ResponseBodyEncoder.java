@@ -0,0 +1,161 @@
+package com.ecs160.hw2.microservice;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Per-thread encoder for response bodies. Text is encoded as UTF-8 straight into a reused buffer,
+ * and compressed with a reused Deflater into a second reused buffer, so sending a response does
+ * not allocate byte arrays or native zlib state. Buffers are only valid until the thread's next call.
+ */
+class ResponseBodyEncoder {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    // Buffers that grew past this for one large response are not kept around
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final ThreadLocal<ResponseBodyEncoder> LOCAL = ThreadLocal.withInitial(ResponseBodyEncoder::new);
+
+    private final CharsetEncoder utf8 = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // Raw deflate for gzip, which adds its own header and trailer, and zlib-wrapped for deflate
+    private final Deflater rawDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Deflater zlibDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, false);
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer text = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private byte[] compressed = new byte[INITIAL_CAPACITY];
+
+    static ResponseBodyEncoder get() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Picks the response encoding for an Accept-Encoding header: gzip or deflate, whichever has the
+     * higher q-value (gzip on a tie), or null when the client accepts neither.
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return null;
+        }
+        double gzip = 0;
+        double deflate = 0;
+        double wildcard = 0;
+        boolean gzipListed = false;
+        boolean deflateListed = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] fields = part.trim().split(";");
+            String coding = fields[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < fields.length; i++) {
+                String param = fields[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (GZIP.equals(coding) || "x-gzip".equals(coding)) {
+                gzip = q;
+                gzipListed = true;
+            } else if (DEFLATE.equals(coding)) {
+                deflate = q;
+                deflateListed = true;
+            } else if ("*".equals(coding)) {
+                wildcard = q;
+            }
+        }
+        if (!gzipListed) {
+            gzip = wildcard;
+        }
+        if (!deflateListed) {
+            deflate = wildcard;
+        }
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    /**
+     * Encodes text as UTF-8. The returned heap buffer is positioned over the encoded bytes.
+     */
+    ByteBuffer encode(CharSequence chars) {
+        int needed = (int) Math.min(Integer.MAX_VALUE, (long) chars.length() * 3);
+        if (text.capacity() < needed || text.capacity() > Math.max(MAX_RETAINED_CAPACITY, needed)) {
+            text = ByteBuffer.allocate(Math.max(INITIAL_CAPACITY, needed));
+        }
+        text.clear();
+        utf8.reset();
+        // Three bytes per char always suffices for UTF-8, so a single pass cannot overflow
+        utf8.encode(CharBuffer.wrap(chars), text, true);
+        utf8.flush(text);
+        text.flip();
+        return text;
+    }
+
+    /**
+     * Compresses the buffer's remaining bytes with the given encoding (gzip or deflate),
+     * consuming them. The returned heap buffer is positioned over the compressed bytes.
+     */
+    ByteBuffer compress(ByteBuffer input, String encoding) {
+        boolean gzip = GZIP.equals(encoding);
+        Deflater deflater = gzip ? rawDeflater : zlibDeflater;
+        byte[] in = input.array();
+        int offset = input.arrayOffset() + input.position();
+        int length = input.remaining();
+        input.position(input.limit());
+
+        int needed = length + length / 1000 + 64;
+        if (compressed.length < needed || compressed.length > Math.max(MAX_RETAINED_CAPACITY, needed)) {
+            compressed = new byte[Math.max(INITIAL_CAPACITY, needed)];
+        }
+        int size = 0;
+        if (gzip) {
+            System.arraycopy(GZIP_HEADER, 0, compressed, 0, GZIP_HEADER.length);
+            size = GZIP_HEADER.length;
+        }
+
+        deflater.reset();
+        deflater.setInput(in, offset, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (size == compressed.length) {
+                byte[] grown = new byte[compressed.length * 2];
+                System.arraycopy(compressed, 0, grown, 0, size);
+                compressed = grown;
+            }
+            size += deflater.deflate(compressed, size, compressed.length - size);
+        }
+
+        if (gzip) {
+            if (compressed.length - size < 8) {
+                byte[] grown = new byte[size + 8];
+                System.arraycopy(compressed, 0, grown, 0, size);
+                compressed = grown;
+            }
+            crc.reset();
+            crc.update(in, offset, length);
+            size = writeIntLE(compressed, size, (int) crc.getValue());
+            size = writeIntLE(compressed, size, length);
+        }
+        return ByteBuffer.wrap(compressed, 0, size);
+    }
+
+    private static int writeIntLE(byte[] out, int at, int value) {
+        out[at] = (byte) value;
+        out[at + 1] = (byte) (value >> 8);
+        out[at + 2] = (byte) (value >> 16);
+        out[at + 3] = (byte) (value >> 24);
+        return at + 4;
+    }
+}
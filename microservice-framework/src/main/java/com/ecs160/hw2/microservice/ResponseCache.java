@@ -0,0 +1,120 @@
+package com.ecs160.hw2.microservice;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, TTL-based cache of responses for one @Cacheable endpoint.
+ * The memory tier is an LRU map; misses fall through to an optional shared CacheTier.
+ */
+public class ResponseCache {
+    private final String endpoint;
+    private final long ttlMillis;
+    private final Map<String, CachedResponse> entries;
+    private volatile CacheTier secondTier;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder secondTierHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    ResponseCache(String endpoint, long ttlSeconds, int maxEntries) {
+        this.endpoint = endpoint;
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        this.entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    void setSecondTier(CacheTier secondTier) {
+        this.secondTier = secondTier;
+    }
+
+    /**
+     * Looks up the response for an input hash, returning null on a miss.
+     */
+    String get(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            CachedResponse entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expiresAtMillis >= now) {
+                    hits.increment();
+                    return entry.value;
+                }
+                entries.remove(key);
+            }
+        }
+
+        CacheTier tier = secondTier;
+        if (tier != null) {
+            String value = tier.get(key);
+            if (value != null) {
+                secondTierHits.increment();
+                synchronized (entries) {
+                    entries.put(key, new CachedResponse(value, now + ttlMillis));
+                }
+                return value;
+            }
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    void put(String key, String value) {
+        long expiresAt = System.currentTimeMillis() + ttlMillis;
+        synchronized (entries) {
+            entries.put(key, new CachedResponse(value, expiresAt));
+        }
+        CacheTier tier = secondTier;
+        if (tier != null) {
+            tier.put(key, value, expiresAt);
+        }
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getSecondTierHits() {
+        return secondTierHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Fraction of lookups answered from either tier.
+     */
+    public double getHitRate() {
+        long found = getHits() + getSecondTierHits();
+        long total = found + getMisses();
+        return total == 0 ? 0.0 : (double) found / total;
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static class CachedResponse {
+        final String value;
+        final long expiresAtMillis;
+
+        CachedResponse(String value, long expiresAtMillis) {
+            this.value = value;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+}
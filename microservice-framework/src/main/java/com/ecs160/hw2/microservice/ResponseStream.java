@@ -0,0 +1,15 @@
+package com.ecs160.hw2.microservice;
+
+import java.io.IOException;
+
+/**
+ * Sink handed to streaming endpoints so that results reach the client as they are produced.
+ * A streaming endpoint has the signature void handleRequest(String input, ResponseStream out).
+ */
+public interface ResponseStream {
+
+    /**
+     * Writes a chunk of the response and flushes it to the client immediately.
+     */
+    void write(String chunk) throws IOException;
+}
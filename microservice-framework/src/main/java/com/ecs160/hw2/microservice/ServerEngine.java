@@ -0,0 +1,30 @@
+package com.ecs160.hw2.microservice;
+
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+/**
+ * HTTP server implementation used by MicroserviceLauncher. An engine accepts connections, parses
+ * requests and hands each one to the handler as an HttpExchange on the given executor.
+ */
+public interface ServerEngine {
+
+    /**
+     * Binds to the address and starts serving. Returns once the socket is bound.
+     */
+    void start(InetSocketAddress address, int backlog, HttpHandler handler, Executor executor) throws IOException;
+
+    /**
+     * Stops accepting connections and closes the server, waiting up to delaySeconds for
+     * exchanges in progress to finish.
+     */
+    void stop(int delaySeconds);
+
+    /**
+     * Address the engine is bound to, or null if it is not running.
+     */
+    InetSocketAddress getAddress();
+}
@@ -0,0 +1,66 @@
+package com.ecs160.hw2.microservice;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces concurrent identical invocations of one endpoint: the first caller for a key runs
+ * the invocation and every caller that arrives while it is in flight waits for and shares its
+ * result (or its failure). Nothing is remembered once the invocation completes. A waiting caller
+ * gives up at its own Deadline, whatever the invocation it waits for is doing.
+ */
+class SingleFlight {
+    private final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    String execute(String key, Callable<String> invocation) throws Exception {
+        CompletableFuture<String> mine = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            coalesced.increment();
+            return await(existing);
+        }
+
+        try {
+            String result = invocation.call();
+            mine.complete(result);
+            return result;
+        } catch (Throwable e) {
+            // Errors too, or the callers waiting on this invocation would wait forever
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private String await(CompletableFuture<String> leader) throws Exception {
+        Deadline deadline = Deadline.current();
+        try {
+            if (deadline == null) {
+                return leader.get();
+            }
+            return leader.get(deadline.remaining().toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new DeadlineExceededException("waiting for an identical request");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Number of requests that were answered by another request's invocation.
+     */
+    long getCoalescedCount() {
+        return coalesced.sum();
+    }
+}
@@ -0,0 +1,114 @@
+package com.ecs160.hw2.microservice;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A timed operation within a trace, started with Tracer.startSpan and ended by close(), which
+ * records it in the tracer's ring buffer. Meant to be used in a try-with-resources block on the
+ * thread that started it.
+ */
+public final class Span implements AutoCloseable {
+    private final String name;
+    private final String traceId;
+    private final String spanId;
+    private final String parentSpanId;
+    private final Span previous;
+    private final long startEpochNanos;
+    private final long startNanos;
+    private final Map<String, String> attributes = new LinkedHashMap<>();
+    private volatile long durationNanos = -1;
+    private volatile String error;
+
+    Span(String name, String traceId, String spanId, String parentSpanId, Span previous) {
+        this.name = name;
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.previous = previous;
+        this.startEpochNanos = System.currentTimeMillis() * 1_000_000L;
+        this.startNanos = System.nanoTime();
+    }
+
+    public Span setAttribute(String key, Object value) {
+        synchronized (attributes) {
+            attributes.put(key, String.valueOf(value));
+        }
+        return this;
+    }
+
+    /**
+     * Marks the span as failed with the error's message.
+     */
+    public Span recordError(Throwable t) {
+        this.error = t.getClass().getSimpleName() + ": " + t.getMessage();
+        return this;
+    }
+
+    /**
+     * This span's W3C traceparent header value, for propagating the trace to another service.
+     */
+    public String traceparent() {
+        return "00-" + traceId + "-" + spanId + "-01";
+    }
+
+    /**
+     * Ends the span, records it, and makes its parent the current span again.
+     */
+    @Override
+    public void close() {
+        if (durationNanos >= 0) {
+            return;
+        }
+        durationNanos = System.nanoTime() - startNanos;
+        Tracer.end(this);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * Span id of the parent, or null for the root span of a trace.
+     */
+    public String getParentSpanId() {
+        return parentSpanId;
+    }
+
+    public long getStartEpochNanos() {
+        return startEpochNanos;
+    }
+
+    /**
+     * Duration in nanoseconds, or -1 while the span is still running.
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * Error recorded on the span, or null if it succeeded.
+     */
+    public String getError() {
+        return error;
+    }
+
+    public Map<String, String> getAttributes() {
+        synchronized (attributes) {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(attributes));
+        }
+    }
+
+    Span getPrevious() {
+        return previous;
+    }
+}
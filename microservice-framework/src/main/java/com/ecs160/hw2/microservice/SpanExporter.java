@@ -0,0 +1,139 @@
+package com.ecs160.hw2.microservice;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes finished spans, either as a flat JSON array or as an OTLP/JSON ExportTraceServiceRequest
+ * that OpenTelemetry collectors and trace viewers can import.
+ */
+class SpanExporter {
+    static final String JSON = "json";
+    static final String OTLP = "otlp";
+
+    private static final String SCOPE_NAME = "com.ecs160.hw2.microservice";
+    private static final int STATUS_OK = 1;
+    private static final int STATUS_ERROR = 2;
+
+    private SpanExporter() {
+    }
+
+    /**
+     * Renders spans in the given format, json or otlp.
+     */
+    static String render(List<Span> spans, String format, String serviceName) {
+        JsonObject json;
+        if (OTLP.equalsIgnoreCase(format)) {
+            json = toOtlp(spans, serviceName);
+        } else if (JSON.equalsIgnoreCase(format)) {
+            json = new JsonObject();
+            json.add("spans", toJson(spans));
+        } else {
+            throw new IllegalArgumentException("Unknown trace format: " + format);
+        }
+        return new GsonBuilder().setPrettyPrinting().create().toJson(json);
+    }
+
+    static void write(List<Span> spans, String format, String serviceName, Path file) throws IOException {
+        String rendered = render(spans, format, serviceName);
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(rendered);
+        }
+    }
+
+    private static JsonArray toJson(List<Span> spans) {
+        JsonArray array = new JsonArray();
+        for (Span span : spans) {
+            JsonObject json = new JsonObject();
+            json.addProperty("traceId", span.getTraceId());
+            json.addProperty("spanId", span.getSpanId());
+            json.addProperty("parentSpanId", span.getParentSpanId());
+            json.addProperty("name", span.getName());
+            json.addProperty("startEpochMicros", span.getStartEpochNanos() / 1000);
+            json.addProperty("durationMicros", span.getDurationNanos() / 1000);
+            JsonObject attributes = new JsonObject();
+            for (Map.Entry<String, String> attribute : span.getAttributes().entrySet()) {
+                attributes.addProperty(attribute.getKey(), attribute.getValue());
+            }
+            json.add("attributes", attributes);
+            if (span.getError() != null) {
+                json.addProperty("error", span.getError());
+            }
+            array.add(json);
+        }
+        return array;
+    }
+
+    private static JsonObject toOtlp(List<Span> spans, String serviceName) {
+        JsonArray otlpSpans = new JsonArray();
+        for (Span span : spans) {
+            JsonObject json = new JsonObject();
+            json.addProperty("traceId", span.getTraceId());
+            json.addProperty("spanId", span.getSpanId());
+            if (span.getParentSpanId() != null) {
+                json.addProperty("parentSpanId", span.getParentSpanId());
+            }
+            json.addProperty("name", span.getName());
+            // OTLP/JSON encodes 64-bit integers as strings
+            json.addProperty("startTimeUnixNano", String.valueOf(span.getStartEpochNanos()));
+            json.addProperty("endTimeUnixNano", String.valueOf(span.getStartEpochNanos() + span.getDurationNanos()));
+            JsonArray attributes = new JsonArray();
+            for (Map.Entry<String, String> attribute : span.getAttributes().entrySet()) {
+                attributes.add(keyValue(attribute.getKey(), attribute.getValue()));
+            }
+            json.add("attributes", attributes);
+            JsonObject status = new JsonObject();
+            if (span.getError() != null) {
+                status.addProperty("code", STATUS_ERROR);
+                status.addProperty("message", span.getError());
+            } else {
+                status.addProperty("code", STATUS_OK);
+            }
+            json.add("status", status);
+            otlpSpans.add(json);
+        }
+
+        JsonObject scope = new JsonObject();
+        scope.addProperty("name", SCOPE_NAME);
+        JsonObject scopeSpans = new JsonObject();
+        scopeSpans.add("scope", scope);
+        scopeSpans.add("spans", otlpSpans);
+        JsonArray scopeSpansArray = new JsonArray();
+        scopeSpansArray.add(scopeSpans);
+
+        JsonArray resourceAttributes = new JsonArray();
+        resourceAttributes.add(keyValue("service.name", serviceName));
+        JsonObject resource = new JsonObject();
+        resource.add("attributes", resourceAttributes);
+
+        JsonObject resourceSpans = new JsonObject();
+        resourceSpans.add("resource", resource);
+        resourceSpans.add("scopeSpans", scopeSpansArray);
+        JsonArray resourceSpansArray = new JsonArray();
+        resourceSpansArray.add(resourceSpans);
+        JsonObject request = new JsonObject();
+        request.add("resourceSpans", resourceSpansArray);
+        return request;
+    }
+
+    private static JsonObject keyValue(String key, String value) {
+        JsonObject stringValue = new JsonObject();
+        stringValue.addProperty("stringValue", value);
+        JsonObject keyValue = new JsonObject();
+        keyValue.addProperty("key", key);
+        keyValue.add("value", stringValue);
+        return keyValue;
+    }
+}
@@ -0,0 +1,58 @@
+package com.ecs160.hw2.microservice;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket. Rather than a token count and a refill timestamp, it keeps one value,
+ * the time at which the bucket would be full again (the generic cell rate algorithm), so that
+ * taking a token is a single compare-and-set.
+ */
+class TokenBucket {
+    private final int burst;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+    TokenBucket(double tokensPerSecond, int burst) {
+        this.burst = Math.max(1, burst);
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000L / tokensPerSecond));
+        this.burstNanos = this.burst * intervalNanos;
+    }
+
+    int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return the tokens left afterwards, or -1 if the bucket was empty
+     */
+    long tryAcquire(long nowNanos) {
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, nowNanos) + intervalNanos;
+            if (next - nowNanos > burstNanos) {
+                return -1;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return (burstNanos - (next - nowNanos)) / intervalNanos;
+            }
+        }
+    }
+
+    /**
+     * Returns a token taken by tryAcquire, when the request was rejected by another limit.
+     */
+    void refund() {
+        fullAt.addAndGet(-intervalNanos);
+    }
+
+    long nanosUntilAvailable(long nowNanos) {
+        return Math.max(0, Math.max(fullAt.get(), nowNanos) + intervalNanos - burstNanos - nowNanos);
+    }
+
+    long nanosUntilFull(long nowNanos) {
+        return Math.max(0, fullAt.get() - nowNanos);
+    }
+}
@@ -0,0 +1,188 @@
+package com.ecs160.hw2.microservice;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lightweight in-process tracing. Spans nest through a per-thread current span, cross threads
+ * through wrap, and cross services through the W3C traceparent header. Finished spans go to a
+ * fixed-size ring buffer, so tracing costs a few allocations per span and bounded memory;
+ * SpanExporter writes them out as JSON or OTLP/JSON.
+ */
+public final class Tracer {
+    private static final int RING_SIZE = 4096;
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<>();
+    private static final AtomicReferenceArray<Span> RING = new AtomicReferenceArray<>(RING_SIZE);
+    private static final AtomicLong RECORDED = new AtomicLong();
+
+    private Tracer() {
+    }
+
+    /**
+     * Starts a span as a child of the current span, or as the root of a new trace if there is none,
+     * and makes it the current span.
+     */
+    public static Span startSpan(String name) {
+        Span parent = CURRENT.get();
+        String traceId = parent != null ? parent.getTraceId() : randomHex(16);
+        return start(name, traceId, parent != null ? parent.getSpanId() : null, parent, true);
+    }
+
+    /**
+     * Starts a child of the current span without making it current, for an operation that finishes
+     * on another thread. Whichever thread completes the operation closes it.
+     */
+    public static Span startAsyncSpan(String name) {
+        Span parent = CURRENT.get();
+        String traceId = parent != null ? parent.getTraceId() : randomHex(16);
+        return start(name, traceId, parent != null ? parent.getSpanId() : null, null, false);
+    }
+
+    /**
+     * Starts a span whose parent is in another service, as described by a traceparent header.
+     * Falls back to startSpan(name) if the header is missing or malformed.
+     */
+    public static Span startSpan(String name, String traceparent) {
+        if (traceparent == null || !isValidTraceparent(traceparent)) {
+            return startSpan(name);
+        }
+        String[] fields = traceparent.split("-");
+        return start(name, fields[1], fields[2], CURRENT.get(), true);
+    }
+
+    /**
+     * The current span on this thread, or null.
+     */
+    public static Span current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * traceparent header value for the current span, or null when no span is active.
+     */
+    public static String currentTraceparent() {
+        Span current = CURRENT.get();
+        return current != null ? current.traceparent() : null;
+    }
+
+    /**
+     * Wraps a task so that spans it starts on another thread are children of the current span.
+     */
+    public static <T> Callable<T> wrap(Callable<T> task) {
+        Span parent = CURRENT.get();
+        if (parent == null) {
+            return task;
+        }
+        return () -> {
+            Span saved = CURRENT.get();
+            CURRENT.set(parent);
+            try {
+                return task.call();
+            } finally {
+                restore(saved);
+            }
+        };
+    }
+
+    public static Runnable wrap(Runnable task) {
+        Span parent = CURRENT.get();
+        if (parent == null) {
+            return task;
+        }
+        return () -> {
+            Span saved = CURRENT.get();
+            CURRENT.set(parent);
+            try {
+                task.run();
+            } finally {
+                restore(saved);
+            }
+        };
+    }
+
+    /**
+     * Finished spans still in the ring buffer, oldest first.
+     */
+    public static List<Span> recentSpans() {
+        long end = RECORDED.get();
+        long start = Math.max(0, end - RING_SIZE);
+        List<Span> spans = new ArrayList<>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            Span span = RING.get((int) (i % RING_SIZE));
+            if (span != null) {
+                spans.add(span);
+            }
+        }
+        return spans;
+    }
+
+    /**
+     * Writes the recent spans to a file as JSON or as OTLP/JSON (format "json" or "otlp"),
+     * creating parent directories as needed.
+     */
+    public static void export(Path file, String format, String serviceName) throws IOException {
+        SpanExporter.write(recentSpans(), format, serviceName, file);
+    }
+
+    static void end(Span span) {
+        long slot = RECORDED.getAndIncrement();
+        RING.set((int) (slot % RING_SIZE), span);
+        if (CURRENT.get() == span) {
+            restore(span.getPrevious());
+        }
+    }
+
+    private static Span start(String name, String traceId, String parentSpanId, Span previous, boolean current) {
+        Span span = new Span(name, traceId, randomHex(8), parentSpanId, previous);
+        if (current) {
+            CURRENT.set(span);
+        }
+        return span;
+    }
+
+    private static void restore(Span span) {
+        if (span != null) {
+            CURRENT.set(span);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    private static boolean isValidTraceparent(String header) {
+        // version-traceid-parentid-flags, e.g. 00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01
+        if (header.length() != 55 || !header.startsWith("00-")
+                || header.charAt(35) != '-' || header.charAt(52) != '-') {
+            return false;
+        }
+        String traceId = header.substring(3, 35);
+        String parentId = header.substring(36, 52);
+        return isHex(traceId) && isHex(parentId) && isHex(header.substring(53))
+            && !traceId.equals("00000000000000000000000000000000") && !parentId.equals("0000000000000000");
+    }
+
+    private static boolean isHex(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String randomHex(int bytes) {
+        StringBuilder hex = new StringBuilder(bytes * 2);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < bytes; i++) {
+            int b = random.nextInt(256);
+            hex.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
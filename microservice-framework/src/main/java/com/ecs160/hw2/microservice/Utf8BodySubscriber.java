@@ -0,0 +1,85 @@
+package com.ecs160.hw2.microservice;
+
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Body subscriber that decodes UTF-8 straight out of the client's network buffers into the result,
+ * instead of first collecting the body into byte arrays and copying them into a String.
+ * A multi-byte character split across two buffers is carried over in a small pending buffer.
+ */
+class Utf8BodySubscriber implements HttpResponse.BodySubscriber<String> {
+    private final CompletableFuture<String> result = new CompletableFuture<>();
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer chars = CharBuffer.allocate(8192);
+    private final ByteBuffer pending = ByteBuffer.allocate(8);
+    private final StringBuilder text = new StringBuilder();
+
+    @Override
+    public CompletionStage<String> getBody() {
+        return result;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> buffers) {
+        for (ByteBuffer buffer : buffers) {
+            decode(buffer);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        pending.flip();
+        drain(pending, true);
+        decoder.flush(chars);
+        chars.flip();
+        text.append(chars);
+        result.complete(text.toString());
+    }
+
+    private void decode(ByteBuffer buffer) {
+        // Finish a character left incomplete by the previous buffer one byte at a time
+        while (pending.position() > 0 && buffer.hasRemaining()) {
+            pending.put(buffer.get());
+            pending.flip();
+            drain(pending, false);
+            pending.compact();
+        }
+        drain(buffer, false);
+        if (buffer.hasRemaining()) {
+            pending.put(buffer);
+        }
+    }
+
+    private void drain(ByteBuffer in, boolean endOfInput) {
+        while (true) {
+            boolean overflow = decoder.decode(in, chars, endOfInput).isOverflow();
+            chars.flip();
+            text.append(chars);
+            chars.clear();
+            if (!overflow) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.ecs160.hw2.microservice;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A microservice worker running in its own JVM on the same classpath, for example behind a
+ * LoadBalancer so that CPU-heavy endpoints can use every core. The worker's main class is expected
+ * to launch a MicroserviceLauncher on the given port.
+ */
+public class WorkerProcess {
+    private final Process process;
+    private final int port;
+
+    private WorkerProcess(Process process, int port) {
+        this.process = process;
+        this.port = port;
+    }
+
+    /**
+     * Starts mainClass in a new JVM with the given arguments. The worker gets this JVM's options,
+     * such as its -D system properties and heap size, but not its debugger agent, whose port it
+     * would clash on. Its output goes to this process's console.
+     */
+    public static WorkerProcess spawn(Class<?> mainClass, int port, String... args) throws IOException {
+        return spawn(mainClass, port, Map.of(), args);
+    }
+
+    /**
+     * Like {@link #spawn(Class, int, String...)}, with the given system properties set in the
+     * worker on top of, and in place of, the ones it inherits.
+     */
+    public static WorkerProcess spawn(Class<?> mainClass, int port, Map<String, String> properties, String... args)
+            throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        for (String option : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!isDebuggerOption(option)) {
+                command.add(option);
+            }
+        }
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            command.add("-D" + property.getKey() + "=" + property.getValue());
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass.getName());
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        return new WorkerProcess(process, port);
+    }
+
+    private static boolean isDebuggerOption(String option) {
+        return option.startsWith("-agentlib:jdwp") || option.startsWith("-Xrunjdwp") || option.equals("-Xdebug");
+    }
+
+    public String getBaseUrl() {
+        return "http://localhost:" + port;
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    /**
+     * Asks the worker to shut down, which lets its launcher drain in-flight requests, and kills
+     * it if it has not exited within the timeout.
+     */
+    public void stop(Duration timeout) {
+        process.destroy();
+        try {
+            if (!process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroyForcibly();
+        }
+    }
+}